@@ -0,0 +1,124 @@
+package org.cheminfo.scripting.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Saves the images of an IJ instance in background threads. The threads are
+ * shared by all the instances, and the number of images waiting to be written
+ * is bounded: saveAsync blocks when the writers are late, so the memory used
+ * by the snapshots stays limited.
+ *
+ * Each save writes a snapshot of the image taken when it is submitted, so the
+ * script can keep modifying the image.
+ */
+class AsyncWriter {
+	private static final int WRITERS = Math.max(2, Runtime.getRuntime()
+			.availableProcessors());
+	/** Maximal number of images waiting or being written */
+	private static final Semaphore pending = new Semaphore(2 * WRITERS);
+	private static ExecutorService executor;
+
+	private IJ ij;
+	private List<SaveHandle> handles = new ArrayList<SaveHandle>();
+
+	AsyncWriter(IJ ij) {
+		this.ij = ij;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(WRITERS,
+					new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "EIJ writer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Submits the save of a snapshot of an image, waiting if too many images
+	 * are already waiting
+	 */
+	SaveHandle submit(EIJ image, final String name, final Object options) {
+		final ImageLog log = new ImageLog(ij, 1);
+		final EIJ snapshot = image.snapshot(log);
+		final SaveHandle handle = new SaveHandle(name);
+		synchronized (handles) {
+			handles.add(handle);
+		}
+		pending.acquireUninterruptibly();
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					// the handle is completed whatever the encoder throws, so
+					// that waitFor and flush always return
+					boolean completed = false;
+					try {
+						boolean saved = snapshot.save(name, options);
+						handle.complete(saved, saved ? null
+								: log.error != null ? log.error
+										: "The image could not be saved");
+						completed = true;
+					} catch (RuntimeException ex) {
+						handle.complete(false, ex.toString());
+						completed = true;
+					} catch (Error error) {
+						handle.complete(false, error.toString());
+						completed = true;
+						throw error;
+					} finally {
+						if (!completed)
+							handle.complete(false, "The image could not be saved");
+						pending.release();
+					}
+				}
+			});
+		} catch (RuntimeException ex) {
+			pending.release();
+			handle.complete(false, ex.toString());
+		}
+		return handle;
+	}
+
+	/**
+	 * Waits for all the saves submitted since the last flush
+	 * 
+	 * @return {saved, failed, errors:[{file, error}]}
+	 */
+	JSONObject flush() {
+		List<SaveHandle> submitted;
+		synchronized (handles) {
+			submitted = new ArrayList<SaveHandle>(handles);
+			handles.clear();
+		}
+		int saved = 0;
+		JSONArray errors = new JSONArray();
+		for (SaveHandle handle : submitted) {
+			if (handle.waitFor()) {
+				saved++;
+			} else {
+				JSONObject error = new JSONObject();
+				error.put("file", handle.getFilename());
+				error.put("error", handle.getError());
+				errors.put(error);
+			}
+		}
+		JSONObject report = new JSONObject();
+		report.put("saved", saved);
+		report.put("failed", errors.length());
+		report.put("errors", errors);
+		return report;
+	}
+}
@@ -0,0 +1,591 @@
+package org.cheminfo.scripting.image;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.cheminfo.function.scripting.SecureFileManager;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Applies a pipeline of EIJ methods to all the images of a folder. The images
+ * are decoded, processed and saved by three groups of threads joined by
+ * bounded queues, so the decoding of the next images and the saving of the
+ * previous ones overlap with the processing, and a slow stage blocks the
+ * others instead of letting the images pile up in memory. The images also
+ * hold a share of a memory budget, estimated from the header of the file
+ * before they are decoded, until they are saved.
+ *
+ * A failure only stops the processing of its image, the errors are collected
+ * in the report returned by run. An error that kills a thread of a stage
+ * aborts the batch: the other threads stop waiting on the queues and the
+ * images not finished yet are reported as failed.
+ */
+class BatchProcessor {
+	private IJ ij;
+	private String basedir;
+	private String key;
+	private String folder;
+	private Pattern pattern;
+	private JSONArray pipeline;
+
+	private String output;
+	private String format;
+	private Object saveOptions;
+	private int concurrency;
+	private int decoders;
+	private int encoders;
+	private int queueSize;
+	private int threads;
+	private int memoryBudget;
+
+	private Semaphore memory;
+	/** Error that killed a stage and aborted the batch */
+	private volatile Throwable failure;
+	private int total;
+	private AtomicInteger done = new AtomicInteger();
+	private int lastProgress;
+	private Map<String, String> errors = new TreeMap<String, String>();
+	private JSONObject results = new JSONObject();
+
+	/** Marks the end of a queue */
+	private static final Item END = new Item(null);
+
+	/**
+	 * @param input
+	 *            folder, or folder followed by a pattern of file names where *
+	 *            matches any characters and ? one character (folder/*.jpg)
+	 * @param pipeline
+	 *            array of steps {method:name of an EIJ method,
+	 *            arguments:[optional arguments], options:{optional last
+	 *            argument}}
+	 * @param options
+	 *            {output:(folder of the results, nothing saved if missing),
+	 *            format:(extension of the results, by default the one of the
+	 *            image), saveOptions:{options of save}, concurrency:(number of
+	 *            images processed at the same time, by default the number of
+	 *            processors), decoders:(default 2), encoders:(default 2),
+	 *            queueSize:(images waiting between two stages, default twice
+	 *            the concurrency), threads:(threads of the filters for each
+	 *            image, default 1), memory:(memory budget of the decoded
+	 *            images in MB, default a quarter of the maximal memory)}
+	 */
+	BatchProcessor(IJ ij, String basedir, String key, String input,
+			JSONArray pipeline, JSONObject options) {
+		this.ij = ij;
+		this.basedir = basedir;
+		this.key = key;
+		this.pipeline = pipeline;
+
+		String name = input.replaceAll("^.*/", "");
+		if (name.indexOf('*') >= 0 || name.indexOf('?') >= 0) {
+			folder = input.substring(0, input.length() - name.length());
+			pattern = Pattern.compile(Pattern.quote(name).replace("*",
+					"\\E.*\\Q").replace("?", "\\E.\\Q"));
+		} else {
+			folder = input.endsWith("/") ? input : input + "/";
+		}
+
+		output = options.has("output") ? options.optString("output") : null;
+		if (output != null && !output.endsWith("/"))
+			output += "/";
+		format = options.has("format") ? options.optString("format") : null;
+		saveOptions = options.opt("saveOptions");
+		concurrency = Math.max(1, options.optInt("concurrency", Runtime
+				.getRuntime().availableProcessors()));
+		decoders = Math.max(1, options.optInt("decoders", 2));
+		encoders = Math.max(1, options.optInt("encoders", 2));
+		queueSize = Math.max(1, options.optInt("queueSize", 2 * concurrency));
+		threads = options.optInt("threads", 1);
+		long defaultMemory = Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024;
+		memoryBudget = (int) Math.min(Integer.MAX_VALUE / 1024, Math.max(1,
+				options.optLong("memory", defaultMemory)));
+	}
+
+	/**
+	 * Processes all the images and returns the report {total, processed,
+	 * failed, errors:[{file, error}], results:{file:value returned by the
+	 * last step}, error:(error that aborted the batch)}
+	 */
+	JSONObject run() throws InterruptedException {
+		final List<String> files = listFiles();
+		total = files.size();
+		memory = new Semaphore(memoryBudget * 1024);
+		final BlockingQueue<Item> toProcess = new ArrayBlockingQueue<Item>(
+				queueSize);
+		final BlockingQueue<Item> toEncode = new ArrayBlockingQueue<Item>(
+				queueSize);
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch decoded = new CountDownLatch(decoders);
+		final CountDownLatch processed = new CountDownLatch(concurrency);
+		final CountDownLatch encoded = new CountDownLatch(encoders);
+
+		ExecutorService executor = Executors.newFixedThreadPool(decoders
+				+ concurrency + encoders);
+		try {
+			for (int i = 0; i < decoders; i++) {
+				executor.execute(new Stage(decoded) {
+					void process() throws InterruptedException {
+						int index;
+						while (failure == null
+								&& (index = next.getAndIncrement()) < files.size()) {
+							Item item = new Item(files.get(index));
+							current = item;
+							decode(item);
+							if (item.failed) {
+								finish(item);
+								current = null;
+							} else if (put(toProcess, item)) {
+								current = null;
+							}
+						}
+					}
+				});
+			}
+			for (int i = 0; i < concurrency; i++) {
+				executor.execute(new Stage(processed) {
+					void process() throws InterruptedException {
+						Item item;
+						while ((item = take(toProcess)) != END) {
+							current = item;
+							if (processImage(item) && output != null) {
+								if (put(toEncode, item))
+									current = null;
+							} else {
+								finish(item);
+								current = null;
+							}
+						}
+					}
+				});
+			}
+			for (int i = 0; i < encoders; i++) {
+				executor.execute(new Stage(encoded) {
+					void process() throws InterruptedException {
+						Item item;
+						while ((item = take(toEncode)) != END) {
+							current = item;
+							encode(item);
+							finish(item);
+							current = null;
+						}
+					}
+				});
+			}
+			decoded.await();
+			close(toProcess, concurrency);
+			processed.await();
+			close(toEncode, encoders);
+			encoded.await();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (failure != null) {
+			ij.appendError("IJ::batch", "Error: " + failure.toString());
+			// the images left in the queues or not decoded yet
+			List<Item> left = new ArrayList<Item>();
+			toProcess.drainTo(left);
+			toEncode.drainTo(left);
+			for (int i = next.get(); i < files.size(); i++)
+				left.add(new Item(files.get(i)));
+			for (Item item : left) {
+				if (item != END)
+					stop(item);
+			}
+		}
+
+		JSONObject report = new JSONObject();
+		report.put("total", files.size());
+		report.put("failed", errors.size());
+		report.put("processed", files.size() - errors.size());
+		JSONArray failures = new JSONArray();
+		for (Map.Entry<String, String> error : errors.entrySet()) {
+			JSONObject failure = new JSONObject();
+			failure.put("file", error.getKey());
+			failure.put("error", error.getValue());
+			failures.put(failure);
+		}
+		report.put("errors", failures);
+		report.put("results", results);
+		if (failure != null)
+			report.put("error", failure.toString());
+		return report;
+	}
+
+	/**
+	 * Returns the names (relative to basedir) of the files of the folder that
+	 * match the pattern, in alphabetical order
+	 */
+	private List<String> listFiles() {
+		List<String> files = new ArrayList<String>();
+		String fullFolder = SecureFileManager.getValidatedFilename(basedir, key,
+				folder);
+		if (fullFolder == null) {
+			ij.appendError("IJ::batch", "The folder is not valid: " + folder);
+			return files;
+		}
+		String[] names = new File(fullFolder).list();
+		if (names == null) {
+			ij.appendError("IJ::batch", "The folder does not exist: " + folder);
+			return files;
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (pattern == null || pattern.matcher(name).matches()) {
+				if (new File(fullFolder, name).isFile())
+					files.add(folder + name);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Waits for the memory of the image and decodes it
+	 */
+	private void decode(Item item) throws InterruptedException {
+		item.log = new ImageLog(ij, threads);
+		String fullName;
+		try {
+			fullName = SecureFileManager.getValidatedFilename(basedir, key,
+					item.file);
+		} catch (Exception ex) {
+			fail(item, ex.toString());
+			return;
+		}
+		if (fullName == null) {
+			fail(item, "The file path is not valid");
+			return;
+		}
+		int permits = estimatePermits(new File(fullName));
+		while (!memory.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+			if (failure != null)
+				return;
+		}
+		item.permits = permits;
+		try {
+			EIJ image = new EIJ(basedir, key, fullName, item.log);
+			if (image.getProcessor() == null) {
+				fail(item, "The image could not be decoded");
+				return;
+			}
+			item.image = image;
+		} catch (Throwable ex) {
+			fail(item, ex.toString());
+			return;
+		}
+		// the estimate is corrected with the decoded size, without waiting
+		// again since the image holds memory already
+		permits = getPermits((long) item.image.getWidth()
+				* item.image.getHeight() * item.image.getBytesPerPixel()
+				* item.image.getStackSize());
+		if (permits < item.permits) {
+			memory.release(item.permits - permits);
+			item.permits = permits;
+		} else if (permits > item.permits
+				&& memory.tryAcquire(permits - item.permits)) {
+			item.permits = permits;
+		}
+	}
+
+	/**
+	 * Returns the memory in KB of an image before decoding it: the dimensions
+	 * are read from the header of the file when ImageIO knows the format,
+	 * counting 4 bytes per pixel, otherwise the size of the file is used
+	 */
+	private int estimatePermits(File file) {
+		long size = file.length();
+		try {
+			ImageInputStream stream = ImageIO.createImageInputStream(file);
+			if (stream != null) {
+				try {
+					Iterator<ImageReader> readers = ImageIO
+							.getImageReaders(stream);
+					if (readers.hasNext()) {
+						ImageReader reader = readers.next();
+						try {
+							reader.setInput(stream, true, true);
+							size = Math.max(size, 4L * reader.getWidth(0)
+									* reader.getHeight(0));
+						} finally {
+							reader.dispose();
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			}
+		} catch (Exception ex) {
+			// the size of the file is kept
+		}
+		return getPermits(size);
+	}
+
+	/**
+	 * Returns the number of permits (KB) of a size in bytes, at most the whole
+	 * budget so that a large image can still be processed alone
+	 */
+	private int getPermits(long size) {
+		return (int) Math.min(memoryBudget * 1024L, Math.max(1, size / 1024));
+	}
+
+	/**
+	 * Applies the pipeline, returns false if a step failed
+	 */
+	private boolean processImage(Item item) {
+		try {
+			for (int i = 0; i < pipeline.length(); i++) {
+				Object result = apply(item.image, pipeline.getJSONObject(i));
+				if (item.log.error != null) {
+					fail(item, item.log.error);
+					return false;
+				}
+				if (result instanceof EIJ) {
+					item.image = (EIJ) result;
+				} else if (Boolean.FALSE.equals(result)) {
+					fail(item, "Step " + i + " failed");
+					return false;
+				} else if (result != null && !(result instanceof Boolean)) {
+					item.result = result;
+				}
+			}
+			return true;
+		} catch (Throwable ex) {
+			fail(item, ex.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Calls the EIJ method of a step with its arguments, followed by its
+	 * options if any
+	 */
+	private Object apply(EIJ image, JSONObject step) throws Throwable {
+		String name = step.getString("method");
+		JSONArray arguments = step.optJSONArray("arguments");
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; arguments != null && i < arguments.length(); i++)
+			values.add(arguments.get(i));
+		if (step.has("options"))
+			values.add(step.get("options"));
+		Method method = findMethod(name, values);
+		if (method == null && !step.has("options")) {
+			// without options, the methods expecting them receive null
+			values.add(null);
+			method = findMethod(name, values);
+		}
+		if (method == null)
+			throw new IllegalArgumentException("Unsupported step: " + name
+					+ " with " + values.size() + " argument(s)");
+		try {
+			return method.invoke(image, convert(method.getParameterTypes(),
+					values));
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause() != null ? ex.getCause() : ex;
+		}
+	}
+
+	private static Method findMethod(String name, List<Object> values) {
+		for (Method method : EIJ.class.getMethods()) {
+			if (!method.getName().equals(name)
+					|| method.getParameterTypes().length != values.size())
+				continue;
+			if (convert(method.getParameterTypes(), values) != null)
+				return method;
+		}
+		return null;
+	}
+
+	/**
+	 * Converts the JSON values to the types of the parameters, returns null if
+	 * they are not compatible
+	 */
+	private static Object[] convert(Class<?>[] types, List<Object> values) {
+		Object[] parameters = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			Object value = values.get(i);
+			Class<?> type = types[i];
+			if (type == Object.class || (value == null && !type.isPrimitive())) {
+				parameters[i] = value;
+			} else if (type == String.class && value instanceof String) {
+				parameters[i] = value;
+			} else if ((type == int.class || type == Integer.class)
+					&& value instanceof Number) {
+				parameters[i] = ((Number) value).intValue();
+			} else if ((type == double.class || type == Double.class)
+					&& value instanceof Number) {
+				parameters[i] = ((Number) value).doubleValue();
+			} else if ((type == boolean.class || type == Boolean.class)
+					&& value instanceof Boolean) {
+				parameters[i] = value;
+			} else {
+				return null;
+			}
+		}
+		return parameters;
+	}
+
+	private void encode(Item item) {
+		String name = item.file.replaceAll("^.*/", "");
+		if (format != null)
+			name = name.replaceAll("\\.[^.]*$", "") + "." + format;
+		try {
+			if (!item.image.save(output + name, saveOptions)) {
+				fail(item, item.log.error != null ? item.log.error
+						: "The image could not be saved");
+			}
+		} catch (Throwable ex) {
+			fail(item, ex.toString());
+		}
+	}
+
+	private synchronized void fail(Item item, String error) {
+		errors.put(item.file, error);
+		item.failed = true;
+	}
+
+	/**
+	 * Puts an image in a queue, returns false if the batch is aborted before
+	 * there is room for it. The threads do not rely on being interrupted, the
+	 * decoders may clear the flag.
+	 */
+	private boolean put(BlockingQueue<Item> queue, Item item)
+			throws InterruptedException {
+		while (failure == null) {
+			if (queue.offer(item, 100, TimeUnit.MILLISECONDS))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the next image of a queue, END once the batch is aborted
+	 */
+	private Item take(BlockingQueue<Item> queue) throws InterruptedException {
+		while (failure == null) {
+			Item item = queue.poll(100, TimeUnit.MILLISECONDS);
+			if (item != null)
+				return item;
+		}
+		return END;
+	}
+
+	/**
+	 * Puts the ends of a queue for its consumers, unless the batch is aborted
+	 * and they are gone
+	 */
+	private void close(BlockingQueue<Item> queue, int consumers)
+			throws InterruptedException {
+		for (int i = 0; i < consumers; i++) {
+			if (!put(queue, END))
+				return;
+		}
+	}
+
+	/**
+	 * Records the error that killed a stage, the other threads stop at their
+	 * next wait
+	 */
+	private synchronized void abort(Throwable ex) {
+		if (failure == null)
+			failure = ex;
+	}
+
+	/**
+	 * Fails an image that was not finished when the batch was aborted
+	 */
+	private void stop(Item item) {
+		fail(item, "The batch was stopped"
+				+ (failure != null ? ": " + failure.toString() : ""));
+		finish(item);
+	}
+
+	/**
+	 * Releases the memory of an image, records its result and reports the
+	 * progress every 10%
+	 */
+	private void finish(Item item) {
+		memory.release(item.permits);
+		item.permits = 0;
+		if (item.image != null)
+			item.image.dispose();
+		item.image = null;
+		synchronized (this) {
+			if (!item.failed && item.result != null)
+				results.put(item.file, item.result);
+			int progress = done.incrementAndGet() * 10 / total;
+			if (progress > lastProgress) {
+				lastProgress = progress;
+				ij.appendInfo("IJ::batch", done.get() + "/" + total
+						+ " images processed");
+			}
+		}
+	}
+
+	private static class Item {
+		String file;
+		EIJ image;
+		ImageLog log;
+		int permits;
+		Object result;
+		boolean failed;
+
+		Item(String file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * A thread of a stage, counts down its latch when it ends. An error
+	 * escaping from process aborts the batch, and the image the thread was
+	 * holding is reported as failed.
+	 */
+	private abstract class Stage implements Runnable {
+		private CountDownLatch latch;
+		/** Image taken from the previous stage and not passed on yet */
+		Item current;
+
+		Stage(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			try {
+				process();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable ex) {
+				abort(ex);
+			} finally {
+				try {
+					if (current != null)
+						stop(current);
+				} finally {
+					latch.countDown();
+				}
+			}
+		}
+
+		abstract void process() throws InterruptedException;
+	}
+}
@@ -2,32 +2,54 @@ package org.cheminfo.scripting.image;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.ShapeRoi;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
 import ij.plugin.ContrastEnhancer;
 import ij.plugin.filter.RankFilters;
 import ij.plugin.filter.ThresholdToSelection;
 import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
 
 import java.awt.Color;
+import java.awt.Image;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Locale;
 import java.util.Vector;
 
 import org.cheminfo.function.scripting.SecureFileManager;
+import org.cheminfo.scripting.image.extraction.AutoThresholds;
+import org.cheminfo.scripting.image.extraction.ColorCounter;
+import org.cheminfo.scripting.image.extraction.ConnectedComponents;
+import org.cheminfo.scripting.image.extraction.RoiStatisticsTable;
+import org.cheminfo.scripting.image.filters.BufferPool;
+import org.cheminfo.scripting.image.filters.ColorQuantizer;
 import org.cheminfo.scripting.image.filters.InvariantFeatureHistogramFilter;
 import org.cheminfo.scripting.image.filters.LocalBinaryPartitionFilter;
+import org.cheminfo.scripting.image.filters.TamuraTextureEngine;
 import org.cheminfo.scripting.image.filters.TamutaTextureFilter;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -44,6 +66,15 @@ public class EIJ extends ImagePlus implements Cloneable {
 	private String basedir;
 	private String key;
 	private IJ ij;
+	private double scale = 1;
+	/** Point operations not applied yet, in lazy mode */
+	private PointPipeline pending;
+	/** Options of the mask created from the pixels once the pipeline has run */
+	private JSONObject pendingMask;
+	/** True if pipelines read the current pixels, they are copied before use */
+	private boolean shared;
+	/** Pixels this image took from the buffer pool, given back by dispose */
+	private Object pooled;
 
 	public EIJ() {
 		ij = new IJ();
@@ -68,17 +99,81 @@ public class EIJ extends ImagePlus implements Cloneable {
 		this.ij = ij;
 	}
 
+	/**
+	 * Creates an image from already decoded pixels, used by the cache of
+	 * IJ.load
+	 */
+	EIJ(String basedir, String key, String title, ImageProcessor processor,
+			IJ ij) {
+		super(title, processor);
+		this.basedir = basedir;
+		this.key = key;
+		this.ij = ij;
+	}
+
 	public EIJ(EIJ model, ImageProcessor newImageProcessor) {
 		super();
 		this.basedir=model.basedir;
 		this.key=model.key;
 		this.ij=model.ij;
+		this.scale=model.scale;
 		this.setProcessor(newImageProcessor);
 	}
 	
+	/**
+	 * Returns the factor by which the coordinates of this image must be
+	 * multiplied to get the ones of the original file, more than 1 if the
+	 * image was subsampled when loaded
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	void setScale(double scale) {
+		this.scale = scale;
+	}
+
 	public boolean save(String path) {
 		return save(path, null);
 	}
+
+	public SaveHandle saveAsync(String path) {
+		return saveAsync(path, null);
+	}
+
+	/**
+	 * Saves a snapshot of the image in a background thread, the image can be
+	 * modified as soon as this method returns. Waits if too many images are
+	 * already waiting to be written.
+	 * 
+	 * @param options
+	 *            the options of save
+	 * @return the handle of the save
+	 * @see IJ#flush()
+	 */
+	public SaveHandle saveAsync(String path, Object options) {
+		return ij.getWriter().submit(this, path, options);
+	}
+
+	/**
+	 * Returns a copy of the image reporting its messages to another IJ
+	 */
+	EIJ snapshot(IJ log) {
+		if (pending != null) {
+			EIJ snapshot = new EIJ(basedir, key, getTitle(), pending.getSource(),
+					log);
+			snapshot.pending = pending.copy();
+			snapshot.pendingMask = pendingMask;
+			snapshot.setCalibration(getCalibration());
+			snapshot.scale = scale;
+			return snapshot;
+		}
+		EIJ snapshot = new EIJ(basedir, key, getTitle(), shareProcessor(), log);
+		snapshot.shared = true;
+		snapshot.setCalibration(getCalibration());
+		snapshot.scale = scale;
+		return snapshot;
+	}
 	
 	/**
 	 * Saves the given image in the format specified by the extension of the
@@ -87,7 +182,11 @@ public class EIJ extends ImagePlus implements Cloneable {
 	 * @param image
 	 * @param fullName
 	 * @param options
-	 *            {quality:(0-100)} only works for jpeg
+	 *            jpeg: {quality:(0-100), subsampling:(4:2:0, 4:2:2 or 4:4:4),
+	 *            progressive, optimize}; png: {compression:(0-9), filter:(none,
+	 *            sub, up, average, paeth or adaptive), bitDepth:(1, 8, 16 or
+	 *            24)}; tif: {compression:(none, lzw or packbits), predictor,
+	 *            threads}
 	 * @return boolean: If it succeed saving or not
 	 */
 	public boolean save(String name, Object options) {
@@ -101,7 +200,6 @@ public class EIJ extends ImagePlus implements Cloneable {
 			SecureFileManager.mkdir(basedir, key, name.replaceAll("[^/]*$", ""));
 			
 			JSONObject parameters = ij.checkParameter(options);
-			int quality = parameters.optInt("quality", 100);
 			FileSaver fileSaver = new FileSaver(this);
 			int dotLoc = fullName.lastIndexOf('.');
 			String format = fullName.substring(dotLoc + 1);
@@ -110,13 +208,22 @@ public class EIJ extends ImagePlus implements Cloneable {
 				if (fullName != null && !fullName.endsWith(".tiff"))
 					fullName = updateExtension(fullName, ".tif");
 				format = "tif";
-				return fileSaver.saveAsTiff(fullName);
+				// the stacks are written by FileSaver, uncompressed
+				if (getStackSize() > 1
+						|| parameters.optString("compression", "none")
+								.equalsIgnoreCase("none"))
+					return fileSaver.saveAsTiff(fullName);
+				new TiffEncoder(parameters, parameters.optInt("threads",
+						ij.getThreads())).write(readProcessor(), fullName);
+				return true;
 			} else if (format.indexOf("jpeg") != -1
 					|| format.indexOf("jpg") != -1) {
 				fullName = updateExtension(fullName, ".jpg");
 				format = "jpeg";
-				FileSaver.setJpegQuality(quality);
-				return fileSaver.saveAsJpeg(fullName);
+				// the options are given to each call, FileSaver.setJpegQuality
+				// is shared by all the threads
+				JpegEncoder.write(readProcessor(), fullName, parameters);
+				return true;
 			} else if (format.indexOf("gif") != -1) {
 				fullName = updateExtension(fullName, ".gif");
 				format = "gif";
@@ -146,7 +253,8 @@ public class EIJ extends ImagePlus implements Cloneable {
 			} else if (format.indexOf("png") != -1) {
 				fullName = updateExtension(fullName, ".png");
 				format = "png";
-				return fileSaver.saveAsPng(fullName);
+				new PngEncoder(parameters).write(readProcessor(), fullName);
+				return true;
 			} else if (format.indexOf("pgm") != -1) {
 				fullName = updateExtension(fullName, ".pgm");
 				format = "pgm";
@@ -184,7 +292,7 @@ public class EIJ extends ImagePlus implements Cloneable {
 			if (average.toLowerCase().equals("y")) {
 				averageWhenDownsizing = true;
 			}
-			ip.setInterpolationMethod(interpolationMethod);
+			readProcessor().setInterpolationMethod(interpolationMethod);
 			int newHeight = 0;
 			int newWidth = 0;
 			if (size.contains("%")) {
@@ -233,7 +341,7 @@ public class EIJ extends ImagePlus implements Cloneable {
 			}
 			if ((newHeight != this.getHeight() || newWidth != this.getWidth())
 					&& (newHeight > 0 && newWidth > 0)) {
-				this.setProcessor(this.getProcessor().resize(newWidth,
+				this.setProcessor(this.readProcessor().resize(newWidth,
 						newHeight, averageWhenDownsizing));
 				return true;
 			} else {
@@ -263,6 +371,11 @@ public class EIJ extends ImagePlus implements Cloneable {
 			double saturated = parameters.optDouble("saturated", 0);
 			String equalize = parameters.optString("equalize", "y");
 			if (equalize.toLowerCase().equals("y") && saturated == 0) {
+				if (defer()) {
+					record().add(PointPipeline.table(getEqualizeTable(ce),
+							getType() == COLOR_RGB));
+					return;
+				}
 				ce.equalize(this.getProcessor());
 			} else if (saturated > 0 && saturated <= 100) {
 				ce.stretchHistogram(this.getProcessor(), saturated);
@@ -276,6 +389,41 @@ public class EIJ extends ImagePlus implements Cloneable {
 		}
 	}
 
+	/**
+	 * Returns the table ContrastEnhancer.equalize would apply to the result of
+	 * the pending operations, it only reads the histogram and gives the table
+	 * to applyTable
+	 */
+	private int[] getEqualizeTable(ContrastEnhancer ce) {
+		final int[] histogram = pending != null ? pending.getHistogram(ij
+				.getThreads()) : super.getProcessor().getHistogram();
+		final int[][] table = new int[1][];
+		ImageProcessor capture;
+		if (getType() == COLOR_RGB) {
+			capture = new ColorProcessor(1, 1) {
+				public int[] getHistogram() {
+					return histogram;
+				}
+
+				public void applyTable(int[] lut) {
+					table[0] = lut;
+				}
+			};
+		} else {
+			capture = new ByteProcessor(1, 1) {
+				public int[] getHistogram() {
+					return histogram;
+				}
+
+				public void applyTable(int[] lut) {
+					table[0] = lut;
+				}
+			};
+		}
+		ce.equalize(capture);
+		return table[0];
+	}
+
 	/**
 	 * Returns an histogram for this image.
 	 * 
@@ -283,7 +431,9 @@ public class EIJ extends ImagePlus implements Cloneable {
 	 */
 	public int[] histogram() {
 		try {
-			ImageProcessor ip = this.getProcessor();
+			if (pending != null && pendingMask == null)
+				return pending.getHistogram(ij.getThreads());
+			ImageProcessor ip = this.readProcessor();
 			return ip.getHistogram();
 		} catch (Exception ex) {
 			ij.appendError("EIJ::histogram", "Error: " + ex.toString());
@@ -320,29 +470,67 @@ public class EIJ extends ImagePlus implements Cloneable {
 	
 	
 	/**
+	 * Returns the binary mask of the pixels above the threshold (dark
+	 * background): an 8-bit image with 255 in the mask and 0 elsewhere,
+	 * thresholded from 255 to 255
 	 * 
-	 * @param options 
-	 * @return
+	 * @param options
+	 *            {method:(Default, Huang, IsoData, Li, ..., Default Default),
+	 *            threshold:(lowest value of the mask, highest one for an
+	 *            inverted LUT, instead of the method), threads:(0 for all the
+	 *            processors)}
+	 * @see #thresholds(Object)
 	 */
-	
 	public EIJ createMask(Object options) {
 		try {
 			JSONObject parameters = ij.checkParameter(options);
-			String method=parameters.has("method")?parameters.getString("method"):"Default";
-			EIJ mask = this.duplicate();
-			
-			// mask.getProcessor().setAutoThreshold(AutoThresholder.Method.Li,true);
-			
-			mask.getProcessor().setAutoThreshold(AutoThresholder.Method.valueOf(method), true);
-		//	result.ip.autoThreshold();
-		//	RankFilters rf = new RankFilters();
-		//	rf.rank(result.ip, 50.0, RankFilters.OUTLIERS);
-			return mask;
+			if (getType() == COLOR_RGB || getStackSize() > 1)
+				throw new IllegalArgumentException("The mask needs a grey image, use grey first");
+			AutoThresholder.Method method = AutoThresholder.Method.valueOf(parameters.optString("method", "Default"));
+			if (defer()) {
+				EIJ mask = derive(null);
+				mask.pendingMask = parameters;
+				return mask;
+			}
+			AutoThresholds thresholds = new AutoThresholds(readProcessor(),
+					parameters.optInt("threads", ij.getThreads()));
+			return new EIJ(this, parameters.has("threshold") ? thresholds
+					.createMask(parameters.getDouble("threshold")) : thresholds
+					.createMask(method));
 		} catch (Exception ex) {
 			ij.appendError("EIJ::createMask", "Error: " + ex.toString());
 		}
 		return null;
 	}
+
+	public String thresholds() {
+		return thresholds(null);
+	}
+
+	/**
+	 * Returns the threshold of every method of AutoThresholder, computed from
+	 * a single histogram, as used by createMask: the lowest value of the mask,
+	 * or the highest one for an inverted LUT
+	 * 
+	 * @param options
+	 *            {threads:(0 for all the processors)}
+	 * @return JSON object {Default:threshold, Huang:threshold, ...}
+	 */
+	public String thresholds(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			int threads = parameters.optInt("threads", ij.getThreads());
+			AutoThresholds thresholds;
+			if (pending != null && pendingMask == null && !pending.isRGB())
+				thresholds = new AutoThresholds(pending.getHistogram(threads));
+			else
+				thresholds = new AutoThresholds(readProcessor(), threads);
+			return thresholds.getThresholds().toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::thresholds", "Error: " + ex.toString());
+		}
+		return null;
+	}
 	
 	
 	public EIJ paintMask(EIJ mask) {
@@ -354,54 +542,97 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	
 	
-	public String analyzeImage(Roi[] rois, Object object) {
-		return analyzeImage(rois);
+	public String analyzeImage(Roi[] rois, Object options) {
+		JSONObject parameters = ij.checkParameter(options);
+		return analyzeImage(rois, parameters.optInt("threads", ij.getThreads()));
 	}
 	
 	public String analyzeImage(Roi[] rois) {
-		EIJ[] hsb=this.splitHSB();
-		EIJ[] rgb=this.splitRGB();
-		JSONArray results=new JSONArray();
-		ImageStatistics is;
-	    for (Roi currentRoi : rois) {
-	    	JSONObject stat=new JSONObject();
-	    	results.put(stat);
-    		ip.setRoi(currentRoi);
-    		is=ip.getStatistics();
-    		stat.put("x", is.roiX);
-    		stat.put("y", is.roiY);
-    		stat.put("height", is.roiHeight);
-    		stat.put("width", is.roiWidth);
-    		stat.put("surface", is.pixelCount);
-    		stat.put("xCenterOfMass", is.xCenterOfMass);
-    		stat.put("yCenterOfMass", is.yCenterOfMass);
-    		stat.put("xCentroid", is.xCentroid);
-    		stat.put("yCentroid", is.yCentroid);
-    		stat.put("histogram", is.histogram);
-    		stat.put("contour", currentRoi.getLength());
-    		stat.put("roundRectArcSize",currentRoi.getRoundRectArcSize());
-    		
-    		rgb[0].setRoi(currentRoi);
-    		stat.put("red", rgb[0].getProcessor().getHistogram());
-    		rgb[1].setRoi(currentRoi);
-    		stat.put("green", rgb[1].getProcessor().getHistogram());
-    		rgb[2].setRoi(currentRoi);
-    		stat.put("blue", rgb[2].getProcessor().getHistogram());
-    		
-    		hsb[0].setRoi(currentRoi);
-    		stat.put("hue", hsb[0].getProcessor().getHistogram());
-    		hsb[1].setRoi(currentRoi);
-    		stat.put("saturation", hsb[1].getProcessor().getHistogram());
-    		hsb[2].setRoi(currentRoi);
-    		stat.put("brightness", hsb[2].getProcessor().getHistogram());
-	    }
-		return results.toString();
+		return analyzeImage(rois, ij.getThreads());
+	}
+	
+	/**
+	 * Returns the statistics of each region of interest. The masks are
+	 * rasterized once and all the histograms of a region are filled in a
+	 * single walk over the pixels, the regions being processed in parallel.
+	 * 
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	private String analyzeImage(Roi[] rois, int threads) {
+		StringWriter writer=new StringWriter();
+		try {
+			RoiStatisticsTable.writeJSON(getColorProcessor(), rois, threads, writer);
+		} catch (IOException ex) {
+			ij.appendError("EIJ::analyzeImage", "Error: " + ex.toString());
+			return null;
+		}
+		return writer.toString();
+	}
+	
+	public boolean saveAnalysis(String name, Roi[] rois) {
+		return saveAnalysis(name, rois, null);
+	}
+	
+	/**
+	 * Saves the statistics of each region of interest (see analyzeImage)
+	 * directly to a file, without building them as a String
+	 * 
+	 * @param options
+	 *            {format:(json or binary, by default json if the name ends
+	 *            with .json and binary otherwise), threads:(0 for all the
+	 *            processors)}
+	 * @return boolean: If it succeed saving or not
+	 */
+	public boolean saveAnalysis(String name, Roi[] rois, Object options) {
+		OutputStream stream=null;
+		try {
+			String fullName = SecureFileManager.getValidatedFilename(basedir, key, name);
+			if (fullName == null) {
+				ij.appendError("EIJ::saveAnalysis", "The file path is null");
+				return false;
+			}
+			SecureFileManager.mkdir(basedir, key, name.replaceAll("[^/]*$", ""));
+			
+			JSONObject parameters = ij.checkParameter(options);
+			int threads=parameters.optInt("threads", ij.getThreads());
+			String format=parameters.optString("format",
+					name.toLowerCase(Locale.US).endsWith(".json") ? "json" : "binary");
+			stream=new FileOutputStream(fullName);
+			if (format.equalsIgnoreCase("json")) {
+				Writer writer=new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+				RoiStatisticsTable.writeJSON(getColorProcessor(), rois, threads, writer);
+			} else {
+				RoiStatisticsTable.measure(getColorProcessor(), rois, threads).write(stream);
+			}
+			return true;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::saveAnalysis", "Error : " + ex.toString());
+		} finally {
+			if (stream!=null) {
+				try {
+					stream.close();
+				} catch (IOException ex) {
+					ij.appendError("EIJ::saveAnalysis", "Error : " + ex.toString());
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the processor of the image, converted to RGB if needed
+	 */
+	private ColorProcessor getColorProcessor() {
+		ImageProcessor processor = this.readProcessor();
+		return processor instanceof ColorProcessor ? (ColorProcessor) processor
+				: (ColorProcessor) processor.convertToRGB();
 	}
 	
 	public String analyzeImage(EIJ mask, Object options) {
 		JSONObject parameters = ij.checkParameter(options);
 		Roi[] rois=this.getRois(mask, parameters);
-		return analyzeImage(rois);
+		return analyzeImage(rois, parameters.optInt("threads", ij.getThreads()));
 	}
 	
 	public EIJ paintRois(Roi[] rois) {
@@ -430,7 +661,7 @@ public class EIJ extends ImagePlus implements Cloneable {
 		Color strokeColor=parameters.has("strokeColor")?Color.getColor(parameters.getString("strokeColor")):Color.RED;
 		int strokeSize=parameters.has("strokeSize")?parameters.getInt("strokeSize"):3;
 		ThresholdToSelection tts = new ThresholdToSelection();
-	    Roi roi = tts.convert(mask.getProcessor());
+	    Roi roi = tts.convert(readProcessor(mask));
 	    EIJ markedImage=this.duplicate();
 	    ImageProcessor markedIP=markedImage.getProcessor();
 	//    markedIP.setRoi(roi);
@@ -446,29 +677,85 @@ public class EIJ extends ImagePlus implements Cloneable {
 	public void edge() {
 		try {
 			this.grey();
-			ip.findEdges();
+			getProcessor().findEdges();
 		} catch (Exception ex) {
 			ij.appendError("EIJ::edge", "Error: " + ex.toString());
 		}
 	}
 
 	/**
-	 * Applies a color filter to the image
+	 * Applies a color filter to the image: the colors are reduced to a palette
+	 * and the image becomes an 8-bit image of the palette indexes
 	 * 
 	 * @param options
-	 *            {nbColor:(2-256)}
+	 *            see quantize
 	 */
 	public void color(Object options) {
 		try {
-			JSONObject parameters = ij.checkParameter(options);
-			int nColors = parameters.optInt("nbColor", 256);
-			ImageConverter ic = new ImageConverter(this);
-			ic.convertRGBtoIndexedColor(nColors);
+			setProcessor(getIndexedProcessor(ij.checkParameter(options)));
 		} catch (Exception ex) {
 			ij.appendError("EIJ::color", "Error: " + ex.toString());
 		}
 	}
 
+	/**
+	 * Returns the 8-bit image of the palette indexes of the colors of this RGB
+	 * image, with the palette as LUT. This image is not modified.
+	 * 
+	 * @param options
+	 *            {nbColor:(2-256, Default 256), dither:(Default false),
+	 *            iterations:(k-means iterations refining the palette, Default
+	 *            0), sampleSize:(pixels used by k-means, Default 65536),
+	 *            threads:(0 for all the processors)}
+	 * @see ColorQuantizer
+	 */
+	public EIJ quantize(Object options) {
+		try {
+			return new EIJ(this, getIndexedProcessor(ij.checkParameter(options)));
+		} catch (Exception ex) {
+			ij.appendError("EIJ::quantize", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	public EIJ quantize() {
+		return quantize(null);
+	}
+
+	private ImageProcessor getIndexedProcessor(JSONObject parameters) {
+		ColorQuantizer quantizer = new ColorQuantizer(parameters.optInt(
+				"nbColor", 256));
+		quantizer.setThreads(parameters.optInt("threads", ij.getThreads()));
+		quantizer.setDither(parameters.optBoolean("dither", false));
+		quantizer.setIterations(parameters.optInt("iterations", 0));
+		quantizer.setSampleSize(parameters.optInt("sampleSize", 65536));
+		return quantizer.quantize(getRGBProcessor());
+	}
+
+	/**
+	 * Returns the colors of the LUT of an 8-bit image, for example the palette
+	 * of an image returned by quantize
+	 * 
+	 * @return JSON array of #rrggbb
+	 */
+	public String getPalette() {
+		try {
+			ImageProcessor processor = readProcessor();
+			if (!(processor instanceof ByteProcessor))
+				throw new IllegalArgumentException("Image must be 8-bit");
+			IndexColorModel model = (IndexColorModel) processor
+					.getColorModel();
+			JSONArray palette = new JSONArray();
+			for (int i = 0; i < model.getMapSize(); i++) {
+				palette.put(String.format("#%06x", model.getRGB(i) & 0xffffff));
+			}
+			return palette.toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::getPalette", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
 	public void color() {
 		color(null);
 	}
@@ -484,6 +771,20 @@ public class EIJ extends ImagePlus implements Cloneable {
 			JSONObject parameters = ij.checkParameter(options);
 			// Included to manage nbGrey
 			int nGrey = parameters.optInt("nbGrey", 256);
+			if (nGrey == 256 && getType() == COLOR_RGB) {
+				if (defer()) {
+					record().add(PointPipeline.grey());
+					return;
+				}
+				if (pending == null && getStackSize() == 1
+						&& PointPipeline.accepts(super.getProcessor())) {
+					// same conversion, into a plane of the buffer pool
+					PointPipeline pipeline = new PointPipeline(super.getProcessor());
+					pipeline.add(PointPipeline.grey());
+					setResult(pipeline);
+					return;
+				}
+			}
 			if (nGrey < 256) {
 				ImageConverter ic = new ImageConverter(this);
 				ic.convertRGBtoIndexedColor(nGrey);
@@ -505,25 +806,57 @@ public class EIJ extends ImagePlus implements Cloneable {
 		grey(null);
 	}
 
+	public void texture() {
+		texture(null);
+	}
+
 	/**
 	 * Applies a texture filter to the image
 	 * 
+	 * @param options
+	 *            {algorithm:(lbp, ifh or tamura, default lbp), threads:(0 for
+	 *            all the processors), radius:(default 1), neighbors:(default
+	 *            8), mode:(basic, uniform, rotationInvariant,
+	 *            uniformRotationInvariant), rounds:(default 16),
+	 *            firstRadius:(default 4), secondRadius:(default 8),
+	 *            output:(grey or rgb for tamura, default grey)}, by default
+	 *            the number of threads of the IJ instance
 	 */
-	public void texture() {
+	public void texture(Object options) {
 		try {
-			int texture = 2;
+			JSONObject parameters = ij.checkParameter(options);
+			int threads = parameters.optInt("threads", ij.getThreads());
+			String algorithm = parameters.optString("algorithm", "lbp");
+			int texture;
+			if (algorithm.equalsIgnoreCase("tamura"))
+				texture = 0;
+			else if (algorithm.equalsIgnoreCase("ifh"))
+				texture = 1;
+			else if (algorithm.equalsIgnoreCase("lbp"))
+				texture = 2;
+			else
+				throw new IllegalArgumentException("Unknown texture algorithm: "
+						+ algorithm);
 			switch (texture) {
 			case 0:
-				TamutaTextureFilter.tamura(this);
+				TamutaTextureFilter.tamura(this, threads, !parameters.optString(
+						"output", "grey").equalsIgnoreCase("rgb"));
 				break;
 			case 1:
 				this.grey();
-				InvariantFeatureHistogramFilter.invariantFeatureHistogram(this
-						.getProcessor());
+				InvariantFeatureHistogramFilter.invariantFeatureHistogram(
+						this.getProcessor(), threads,
+						parameters.optInt("rounds", 16),
+						parameters.optDouble("firstRadius", 4),
+						parameters.optDouble("secondRadius", 8));
 				break;
 			case 2:
 				this.grey();
-				LocalBinaryPartitionFilter.localBinaryPartition(getProcessor());
+				LocalBinaryPartitionFilter.localBinaryPartition(getProcessor(),
+						threads, parameters.optDouble("radius", 1),
+						parameters.optInt("neighbors", 8),
+						LocalBinaryPartitionFilter.getMode(parameters.optString(
+								"mode", "basic")));
 				break;
 			}
 		} catch (Exception ex) {
@@ -531,48 +864,195 @@ public class EIJ extends ImagePlus implements Cloneable {
 		}
 	}
 
+	public String textureFeatures() {
+		return textureFeatures(null, null);
+	}
+
+	public String textureFeatures(Roi[] rois) {
+		return textureFeatures(rois, null);
+	}
+
 	/**
-	 * Returns the number of colors
+	 * Returns the Tamura features (coarseness, contrast and directionality) of
+	 * the image, or of each region of interest, computed in a single pass
+	 * 
+	 * @param options
+	 *            {threads:(0 for all the processors)}
+	 * @return JSON object, or array with one object per region
+	 */
+	public String textureFeatures(Roi[] rois, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			TamuraTextureEngine engine = new TamuraTextureEngine(
+					this.getProcessor());
+			engine.setThreads(parameters.optInt("threads", ij.getThreads()));
+			engine.performExtraction();
+			if (rois == null)
+				return textureFeatures(engine.getFeatures()).toString();
+			JSONArray results = new JSONArray();
+			for (Roi roi : rois) {
+				results.put(textureFeatures(engine.getFeatures(roi)));
+			}
+			return results.toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::textureFeatures", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	private JSONObject textureFeatures(double[] features) throws Exception {
+		JSONObject result = new JSONObject();
+		result.put("coarseness", features[0]);
+		result.put("contrast", features[1]);
+		result.put("directionality", features[2]);
+		return result;
+	}
+
+	/**
+	 * Returns the number of colors, with 5 bits per channel
 	 * 
 	 * @return Number of colors
 	 */
 	public int getColor() {
+		return (int) getColor(null);
+	}
+
+	/**
+	 * Returns the number of colors of the image
+	 * 
+	 * @param options
+	 *            {bits:(multiple of 3 from 3 to 24, Default 15),
+	 *            method:(exact or approximate, Default exact),
+	 *            precision:(4-16, Default 14), threads:(0 for all the
+	 *            processors)}
+	 * @see ColorCounter
+	 */
+	public long getColor(Object options) {
 		try {
-			final int HSIZE = this.getWidth() * this.getHeight();
-			if (this.getType() != ImagePlus.COLOR_RGB)
-				throw new IllegalArgumentException("Image must be RGB");
-			int color16;
-			int[] pixels = (int[]) ip.getPixels();
-
-			int[] hist = new int[HSIZE];
-			for (int i = 0; i < width * height; i++) {
-				color16 = rgb(pixels[i]);
-				hist[color16]++;
-			}
-			int count = 0;
-			for (int i = 0; i < HSIZE; i++)
-				if (hist[i] > 0)
-					count++;
-			return count;
+			JSONObject parameters = ij.checkParameter(options);
+			return ColorCounter.count(getRGBProcessor(), null, parameters,
+					parameters.optInt("threads", ij.getThreads()));
 		} catch (Exception ex) {
 			ij.appendError("EIJ::getColor", "Error: " + ex.toString());
 		}
 		return 0;
 	}
 
+	/**
+	 * Returns the number of colors of each region of interest
+	 * 
+	 * @param options
+	 *            see getColor
+	 * @return JSON array
+	 */
+	public String getColors(Roi[] rois, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			int threads = parameters.optInt("threads", ij.getThreads());
+			ColorProcessor processor = getRGBProcessor();
+			JSONArray results = new JSONArray();
+			for (Roi roi : rois) {
+				results.put(ColorCounter.count(processor, roi, parameters,
+						threads));
+			}
+			return results.toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::getColors", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the most frequent colors of the image, or of each region of
+	 * interest
+	 * 
+	 * @param options
+	 *            {top:(number of colors, Default 10), bits:(multiple of 3
+	 *            from 3 to 24, Default 15), threads:(0 for all the
+	 *            processors)}
+	 * @return JSON array of {color:#rrggbb, count}, or array with one array
+	 *         per region
+	 */
+	public String getDominantColors(Roi[] rois, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			int threads = parameters.optInt("threads", ij.getThreads());
+			int bits = parameters.optInt("bits", ColorCounter.DEFAULT_BITS);
+			int top = parameters.optInt("top", 10);
+			ColorProcessor processor = getRGBProcessor();
+			if (rois == null)
+				return dominantColors(ColorCounter.getDominantColors(
+						processor, null, bits, top, threads)).toString();
+			JSONArray results = new JSONArray();
+			for (Roi roi : rois) {
+				results.put(dominantColors(ColorCounter.getDominantColors(
+						processor, roi, bits, top, threads)));
+			}
+			return results.toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::getDominantColors", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	public String getDominantColors(Object options) {
+		return getDominantColors(null, options);
+	}
+
+	private JSONArray dominantColors(int[][] colors) {
+		JSONArray result = new JSONArray();
+		for (int i = 0; i < colors[0].length; i++) {
+			JSONObject color = new JSONObject();
+			color.put("color", String.format("#%06x", colors[0][i]));
+			color.put("count", colors[1][i]);
+			result.put(color);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the pixels of a RGB image
+	 */
+	private ColorProcessor getRGBProcessor() {
+		if (this.getType() != ImagePlus.COLOR_RGB)
+			throw new IllegalArgumentException("Image must be RGB");
+		return (ColorProcessor) readProcessor();
+	}
+
 	public EIJ[] splitHSB() {
-		EIJ imageCopy=this.duplicate();
-		ColorProcessor cp=(ColorProcessor)(imageCopy.getProcessor());
-		ImageStack imageStack=cp.getHSBStack();
-		Vector<EIJ> images=new Vector<EIJ>();
+		if (defer() && getType() == COLOR_RGB)
+			return deriveChannels(3);
+		// same planes as getHSBStack, taken from the buffer pool
+		ColorProcessor cp=(ColorProcessor)(this.readProcessor());
+		int size=getWidth()*getHeight();
+		BufferPool pool=BufferPool.getShared();
+		byte[][] channels={pool.getBytes(size), pool.getBytes(size), pool.getBytes(size)};
+		cp.getHSB(channels[0], channels[1], channels[2]);
+		EIJ[] images=new EIJ[3];
 		for (int i=0; i<3; i++) {
-			EIJ component=new EIJ(this,imageStack.getProcessor(i+1));
-			images.add(component);
+			images[i]=new EIJ(this, new ByteProcessor(getWidth(), getHeight(), channels[i], null));
+			images[i].pooled=channels[i];
 		}
-		return images.toArray(new EIJ[images.size()]);
+		return images;
 	}
 
 	public EIJ[] splitRGB() {
+		if (defer() && getType() == COLOR_RGB)
+			return deriveChannels(0);
+		if (readProcessor() instanceof ColorProcessor) {
+			// same planes as ImageConverter.convertToRGBStack, without copying
+			// the image
+			int size=getWidth()*getHeight();
+			BufferPool pool=BufferPool.getShared();
+			byte[][] channels={pool.getBytes(size), pool.getBytes(size), pool.getBytes(size)};
+			((ColorProcessor)readProcessor()).getRGB(channels[0], channels[1], channels[2]);
+			EIJ[] images=new EIJ[3];
+			for (int i=0; i<3; i++) {
+				images[i]=new EIJ(this, new ByteProcessor(getWidth(), getHeight(), channels[i], null));
+				images[i].pooled=channels[i];
+			}
+			return images;
+		}
 		EIJ imageCopy=this.duplicate();
 		ImageConverter converter=new ImageConverter(imageCopy);
 		converter.convertToRGBStack();
@@ -584,6 +1064,14 @@ public class EIJ extends ImagePlus implements Cloneable {
 		return images.toArray(new EIJ[images.size()]);
 	}
 
+	private EIJ[] deriveChannels(int first) {
+		EIJ[] images = new EIJ[3];
+		for (int i = 0; i < 3; i++) {
+			images[i] = derive(PointPipeline.channel(first + i));
+		}
+		return images;
+	}
+
 	
 	/**
 	 * Crops a image
@@ -618,7 +1106,7 @@ public class EIJ extends ImagePlus implements Cloneable {
 			}
 
 			setRoi(x, y, width, height);
-			this.setProcessor(this.getProcessor().crop());
+			this.setProcessor(this.readProcessor().crop());
 			return true;
 		} catch (Exception ex) {
 			ij.appendError("EIJ::crop", "Error: " + ex.toString());
@@ -668,8 +1156,67 @@ public class EIJ extends ImagePlus implements Cloneable {
 		int minSurface=parameters.has("minSurface")?parameters.getInt("minSurface"):0;
 		int maxSurface=parameters.has("maxSurface")?parameters.getInt("maxSurface"):Integer.MAX_VALUE;
 		double scale=parameters.has("scale")?parameters.getDouble("scale"):1;
+		boolean origin=parameters.optBoolean("origin", false);
 
+		Vector<Roi> selectedRois=new Vector<Roi>();
+		Roi[] rois;
+		if (parameters.optString("mode", "selection").equalsIgnoreCase("labels")) {
+			// the filters are applied on the values known from the labelling,
+			// only the selected components are traced
+			ConnectedComponents components=getComponents(mask, parameters);
+			for (int label=1; label<=components.getCount(); label++) {
+				Rectangle bounds=components.getBounds(label);
+				double width=bounds.width*scale;
+				double height=bounds.height*scale;
+				double surface=components.getArea(label)*scale*scale;
+				if (!((width>=minWidth && width<=maxWidth) &&
+						(height>=minHeight) && (height<=maxHeight) &&
+						(surface>=minSurface) && (surface<=maxSurface))) {
+					continue;
+				}
+				Roi roi=toSelectionRoi(components.getContour(label));
+				double length=roi.getLength()*scale;
+				if (length>=minLength && length<=maxLength) {
+					selectedRois.add(scale!=1 ? scaleROI(roi, scale, origin) : roi);
+				}
+			}
+		} else {
+			// the areas mapped about the origin may leave the image, they are
+			// measured here and only mapped once selected
+			double factor=origin ? scale : 1;
+			rois=getSelectionRois(mask, origin ? 1 : scale);
+			ImageProcessor ip=this.readProcessor();
+			ImageStatistics is;
+			for (Roi currentRoi : rois) {
+				double length=currentRoi.getLength()*factor;
+				double width=currentRoi.getBounds().getWidth()*factor;
+				double height=currentRoi.getBounds().getHeight()*factor;
+				
+				double surface=0;
+				if (minSurface>0 || maxSurface<Integer.MAX_VALUE) {
+					ip.setRoi(currentRoi);
+					is=ip.getStatistics();
+					surface=is.pixelCount*factor*factor;
+				}
+				
+				if ((length>=minLength && length<=maxLength) &&
+						(width>=minWidth && width<=maxWidth) &&
+						(height>=minHeight) && (height<=maxHeight) &&
+						(surface>=minSurface) && (surface<=maxSurface)) {
+					selectedRois.add(factor!=1 ? scaleROI(currentRoi, scale, true) : currentRoi);
+				}
+			}
+		}
 		
+		rois=selectedRois.toArray(new Roi[selectedRois.size()]);
+		sortRois(rois, parameters);
+	    return rois;
+	}
+	
+	/**
+	 * Sorts the rois by x (default), y, xy or length, given by sortBy
+	 */
+	static void sortRois(Roi[] rois, JSONObject parameters) {
 		int sorting=0;
 		if (parameters.has("sortBy")) {
 			String sortingKey=parameters.getString("sortBy");
@@ -681,10 +1228,77 @@ public class EIJ extends ImagePlus implements Cloneable {
 				sorting=3;
 			}
 		}
+	    if (sorting==0) {
+	    	RoiSorterByX.sort(rois);
+	    } else if (sorting==1) {
+	    	RoiSorterByY.sort(rois);
+	    } else if (sorting==2) {
+	    	RoiSorterByXY.sort(rois);
+	    } else if (sorting==3) {
+	    	RoiSorterByLength.sort(rois);
+	    }
+	}
+	
+	/**
+	 * Labels the connected areas of the threshold of the mask, or of its non
+	 * zero pixels if it has no threshold
+	 * 
+	 * @param parameters
+	 *            {connectivity:(4 or 8, default 8)}
+	 */
+	private ConnectedComponents getComponents(ImagePlus mask, JSONObject parameters) {
+		ImageProcessor processor=readProcessor(mask);
+		boolean threshold=processor.getMinThreshold()!=ImageProcessor.NO_THRESHOLD;
+		float min=(float)processor.getMinThreshold();
+		float max=(float)processor.getMaxThreshold();
+		int size=processor.getWidth()*processor.getHeight();
+		byte[] pixels=new byte[size];
+		for (int i=0; i<size; i++) {
+			float value=processor.getf(i);
+			if (threshold ? value>=min && value<=max : value!=0) {
+				pixels[i]=(byte)255;
+			}
+		}
+		return new ConnectedComponents(pixels, processor.getWidth(),
+				processor.getHeight(), parameters.optInt("connectivity", 8)!=4);
+	}
+	
+	public EIJ labels() {
+		return labels(null);
+	}
+	
+	/**
+	 * Returns the 32-bit label image of the mask: 0 for the background and
+	 * 1 to n for the connected areas, numbered row by row
+	 * 
+	 * @param options
+	 *            {connectivity:(4 or 8, default 8)}
+	 */
+	public EIJ labels(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			ConnectedComponents components=getComponents(this, parameters);
+			int[] labels=components.getLabels();
+			float[] pixels=new float[labels.length];
+			for (int i=0; i<labels.length; i++) {
+				pixels[i]=labels[i];
+			}
+			FloatProcessor processor=new FloatProcessor(this.getWidth(), this.getHeight(), pixels, null);
+			processor.setMinAndMax(0, components.getCount());
+			return new EIJ(this, processor);
+		} catch (Exception ex) {
+			ij.appendError("EIJ::labels", "Error: " + ex.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the areas of the threshold of the mask as a ShapeRoi exploded in
+	 * polygons
+	 */
+	private Roi[] getSelectionRois(ImagePlus mask, double scale) {
 		ThresholdToSelection tts = new ThresholdToSelection();
-		ImageProcessor ip=this.getProcessor();
-		Vector<Roi> selectedRois=new Vector<Roi>();
-	    Roi roi = tts.convert(mask.getProcessor());
+	    Roi roi = tts.convert(readProcessor(mask));
 	    Roi[] rois=((ShapeRoi)roi).getRois();
 	    
 	    
@@ -696,40 +1310,6 @@ public class EIJ extends ImagePlus implements Cloneable {
 	    }
 
 	    
-	    ImageStatistics is;
-	    for (Roi currentRoi : rois) {
-	    	boolean isArea=currentRoi.isArea();
-	    	double length=currentRoi.getLength();
-	    	double width=currentRoi.getBounds().getWidth();
-	    	double height=currentRoi.getBounds().getHeight();
-	    	
-	    	double surface=0;
-	    	if (minSurface>0 || maxSurface<Integer.MAX_VALUE) {
-	    		ip.setRoi(currentRoi);
-	    		is=ip.getStatistics();
-	    		surface=is.pixelCount;
-	    	}
-    		
-	    	if ((length>=minLength && length<=maxLength) &&
-	    			(width>=minWidth && width<=maxWidth) &&
-	    			(height>=minHeight) && (height<=maxHeight) &&
-	    			(surface>=minSurface) && (surface<=maxSurface)) {
-	    		selectedRois.add(currentRoi);
-	    	}
-	    }
-		
-		rois=selectedRois.toArray(new Roi[selectedRois.size()]);
-
-	    if (sorting==0) {
-	    	RoiSorterByX.sort(rois);
-	    } else if (sorting==1) {
-	    	RoiSorterByY.sort(rois);
-	    } else if (sorting==2) {
-	    	RoiSorterByXY.sort(rois);
-	    } else if (sorting==3) {
-	    	RoiSorterByLength.sort(rois);
-	    }
-	    
 	    return rois;
 	}
 	
@@ -744,6 +1324,7 @@ public class EIJ extends ImagePlus implements Cloneable {
 	public EIJ[] split(Roi[] rois) {
 	    Vector<EIJ> images=new Vector<EIJ>();
 	    
+	    ImageProcessor ip=readProcessor();
 	    for (Roi currentRoi : rois) {
     		ip.setRoi(currentRoi);
     		ImageProcessor crop=ip.crop();
@@ -770,42 +1351,335 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	*/
 
-	/**
-	 * Converts from 24-bit to 15-bit color
-	 * 
-	 * @param c
-	 *            value of the pixel
-	 * @return the rgb value
-	 */
-	private final int rgb(int c) {
-		int r = (c & 0xf80000) >> 19;
-		int g = (c & 0xf800) >> 6;
-		int b = (c & 0xf8) << 7;
-		return b | g | r;
-	}
-
 	/**
 	 * Replaces the image
 	 * 
 	 * @param imp
 	 */
 	public void setImage(ImagePlus imp) {
+		// the pixels are replaced, the previous ones are not copied
+		pending = null;
+		shared = false;
 		if (imp.getWindow() != null)
 			imp = imp.duplicate();
 		ImageStack stack2 = imp.getStack();
 		if (imp.isHyperStack())
 			setOpenAsHyperStack(true);
 		setStack(stack2, imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		// the pixels of imp are now read by both images, neither gives them
+		// to the buffer pool and a single image copies them before writing
+		pooled = null;
+		if (getStackSize() == 1) {
+			shared = true;
+			if (imp instanceof EIJ)
+				((EIJ) imp).setShared();
+		}
 	}
 
 	/**
-	 * Clones EIJ
+	 * Clones EIJ. The pixels of a single image are shared until the copy or
+	 * this image writes to them.
 	 */
 	public EIJ duplicate() {
+		if (pending != null)
+			return derive(null);
+		if (getStackSize() == 1 && super.getProcessor() != null) {
+			EIJ copy = new EIJ(this, shareProcessor());
+			copy.shared = true;
+			copy.setCalibration(getCalibration());
+			return copy;
+		}
 		ImagePlus imageCopy = super.duplicate();
 		return new EIJ(this, imageCopy.getProcessor());
 	}
 
+	/**
+	 * Gives the pixels of the image to the buffer pool, so that the next
+	 * images of the same size reuse them, and empties the image. Only the
+	 * pixels this image took from the pool and did not share are given back,
+	 * the others are left to the garbage collector.
+	 */
+	public void dispose() {
+		ImageProcessor processor = super.getProcessor();
+		if (pending == null && !shared && getStackSize() == 1
+				&& processor != null && processor.getPixels() == pooled)
+			BufferPool.getShared().release(pooled);
+		pooled = null;
+		pending = null;
+		flush();
+	}
+
+	/**
+	 * Returns true if the point operations have to be recorded instead of
+	 * applied
+	 */
+	private boolean defer() {
+		if (pending != null)
+			return pendingMask == null;
+		return ij.isLazy() && getStackSize() == 1
+				&& PointPipeline.accepts(super.getProcessor());
+	}
+
+	/**
+	 * Returns the pipeline of this image, reading its current pixels if there
+	 * is none
+	 */
+	private PointPipeline record() {
+		if (pending == null)
+			pending = new PointPipeline(shareProcessor());
+		return pending;
+	}
+
+	/**
+	 * Returns a new image that will apply an operation to the result of the
+	 * pending operations of this image
+	 */
+	private EIJ derive(PointPipeline.Operation operation) {
+		PointPipeline pipeline = pending != null ? pending.copy()
+				: new PointPipeline(shareProcessor());
+		if (operation != null)
+			pipeline.add(operation);
+		EIJ image = new EIJ(this, pipeline.getSource());
+		image.pending = pipeline;
+		image.pendingMask = pendingMask;
+		return image;
+	}
+
+	/**
+	 * Returns a new processor reading the pixels of this image, they will be
+	 * copied before this image writes to them
+	 */
+	ImageProcessor shareProcessor() {
+		shared = true;
+		return sharePixels(super.getProcessor());
+	}
+
+	/**
+	 * Marks the pixels of this image as read by others, they will be copied
+	 * before this image writes to them
+	 */
+	void setShared() {
+		shared = true;
+	}
+
+	/**
+	 * Returns a processor with the same pixels array, color model and display
+	 * range
+	 */
+	static ImageProcessor sharePixels(ImageProcessor processor) {
+		int width = processor.getWidth();
+		int height = processor.getHeight();
+		Object pixels = processor.getPixels();
+		ImageProcessor copy;
+		if (processor instanceof ColorProcessor) {
+			return new ColorProcessor(width, height, (int[]) pixels);
+		} else if (processor instanceof ByteProcessor) {
+			return new ByteProcessor(width, height, (byte[]) pixels, processor
+					.getColorModel());
+		} else if (processor instanceof ShortProcessor) {
+			copy = new ShortProcessor(width, height, (short[]) pixels,
+					processor.getColorModel());
+		} else {
+			copy = new FloatProcessor(width, height, (float[]) pixels,
+					processor.getColorModel());
+		}
+		copy.setMinAndMax(processor.getMin(), processor.getMax());
+		return copy;
+	}
+
+	/**
+	 * Replaces the pixels of the processor by a copy, keeping its state
+	 * (threshold, color model, display range)
+	 */
+	private static void copyPixels(ImageProcessor processor) {
+		Object pixels = processor.getPixels();
+		double min = processor.getMin();
+		double max = processor.getMax();
+		if (pixels instanceof byte[])
+			processor.setPixels(((byte[]) pixels).clone());
+		else if (pixels instanceof short[])
+			processor.setPixels(((short[]) pixels).clone());
+		else if (pixels instanceof float[])
+			processor.setPixels(((float[]) pixels).clone());
+		else
+			processor.setPixels(((int[]) pixels).clone());
+		if (!(processor instanceof ColorProcessor)
+				&& !(processor instanceof ByteProcessor))
+			processor.setMinAndMax(min, max);
+	}
+
+	/**
+	 * Returns the processor to read the pixels, without copying them if they
+	 * are shared
+	 */
+	private ImageProcessor readProcessor() {
+		return pending != null ? getProcessor() : super.getProcessor();
+	}
+
+	private static ImageProcessor readProcessor(ImagePlus image) {
+		return image instanceof EIJ ? ((EIJ) image).readProcessor() : image
+				.getProcessor();
+	}
+
+	/**
+	 * Returns the processor of the image after running the pending operations.
+	 * If the pixels are shared with other images or pipelines they are copied
+	 * first, so the processor can be modified.
+	 */
+	public ImageProcessor getProcessor() {
+		if (pending != null) {
+			PointPipeline pipeline = pending;
+			pending = null;
+			shared = false;
+			JSONObject mask = pendingMask;
+			pendingMask = null;
+			if (mask != null) {
+				// the mask is written by the pass of the pipeline
+				double threshold = mask.has("threshold") ? mask
+						.getDouble("threshold") : new AutoThresholds(pipeline
+						.getHistogram(mask.optInt("threads", ij.getThreads())))
+						.getThreshold(AutoThresholder.Method.valueOf(mask
+								.optString("method", "Default")));
+				pipeline.add(PointPipeline.table(AutoThresholds
+						.getMaskTable(threshold), false));
+			}
+			setResult(pipeline);
+			if (mask != null)
+				super.getProcessor().setThreshold(255, 255,
+						ImageProcessor.NO_LUT_UPDATE);
+		} else if (shared) {
+			shared = false;
+			if (super.getProcessor() != null)
+				copyPixels(super.getProcessor());
+		}
+		return super.getProcessor();
+	}
+
+	/**
+	 * Sets the result of a pipeline, its pixels are taken from the buffer
+	 * pool unless it returned its source
+	 */
+	private void setResult(PointPipeline pipeline) {
+		ImageProcessor result = pipeline.run(ij.getThreads());
+		setProcessor(result);
+		if (result != pipeline.getSource())
+			pooled = result.getPixels();
+	}
+
+	/**
+	 * New pixels are not shared nor taken from the pool, the pending
+	 * operations are replaced
+	 */
+	public void setProcessor(String title, ImageProcessor processor) {
+		ImageProcessor current = super.getProcessor();
+		if (current == null || processor == null
+				|| processor.getPixels() != current.getPixels()) {
+			pending = null;
+			shared = false;
+			pooled = null;
+		}
+		super.setProcessor(title, processor);
+	}
+
+	public int getType() {
+		if (pending != null)
+			return pending.isRGB() ? COLOR_RGB : GRAY8;
+		return super.getType();
+	}
+
+	public int getBitDepth() {
+		if (pending != null)
+			return pending.isRGB() ? 24 : 8;
+		return super.getBitDepth();
+	}
+
+	/*
+	 * The methods of ImagePlus below read the processor directly, the pending
+	 * operations are run first. The ones returning the stack may modify it,
+	 * the others only read the pixels and do not copy them if they are shared.
+	 */
+
+	private void runPending() {
+		if (pending != null)
+			getProcessor();
+	}
+
+	public int[] getPixel(int x, int y) {
+		runPending();
+		return super.getPixel(x, y);
+	}
+
+	public ImageStack getStack() {
+		getProcessor();
+		return super.getStack();
+	}
+
+	public ImageStack getImageStack() {
+		getProcessor();
+		return super.getImageStack();
+	}
+
+	public ImageStack createEmptyStack() {
+		runPending();
+		return super.createEmptyStack();
+	}
+
+	public ImageStatistics getStatistics(int mOptions, int nBins,
+			double histMin, double histMax) {
+		runPending();
+		return super.getStatistics(mOptions, nBins, histMin, histMax);
+	}
+
+	public Image getImage() {
+		getProcessor();
+		return super.getImage();
+	}
+
+	public BufferedImage getBufferedImage() {
+		runPending();
+		return super.getBufferedImage();
+	}
+
+	public FileInfo getFileInfo() {
+		runPending();
+		return super.getFileInfo();
+	}
+
+	public boolean isInvertedLut() {
+		runPending();
+		return super.isInvertedLut();
+	}
+
+	public double getDisplayRangeMin() {
+		runPending();
+		return super.getDisplayRangeMin();
+	}
+
+	public double getDisplayRangeMax() {
+		runPending();
+		return super.getDisplayRangeMax();
+	}
+
+	public void setDisplayRange(double min, double max) {
+		runPending();
+		super.setDisplayRange(min, max);
+	}
+
+	public void setDisplayRange(double min, double max, int channels) {
+		runPending();
+		super.setDisplayRange(min, max, channels);
+	}
+
+	public void resetDisplayRange() {
+		runPending();
+		super.resetDisplayRange();
+	}
+
+	public void setColor(Color color) {
+		runPending();
+		super.setColor(color);
+	}
+
 	/**
 	 * Checks if the path contains the format extension and adds the extension
 	 * to the path if this had not extension
@@ -831,13 +1705,54 @@ public class EIJ extends ImagePlus implements Cloneable {
 		return path;
 	}
 	
-	private ShapeRoi scaleROI(Roi currentRoi, double scale) {
+	/**
+	 * Returns a traced contour as the roi ThresholdToSelection gives for the
+	 * same area: a rectangle, or a FREEROI counter-clockwise from the bottom
+	 * right corner. The length of a FREEROI depends on the first vertex, so
+	 * this way the lengths are the same in both modes of getRois.
+	 */
+	static Roi toSelectionRoi(Polygon contour) {
+		int n=contour.npoints;
+		if (n==4) {
+			return new Roi(contour.getBounds());
+		}
+		int start=0;
+		for (int i=1; i<n; i++) {
+			if (contour.ypoints[i]>contour.ypoints[start] ||
+					(contour.ypoints[i]==contour.ypoints[start] && contour.xpoints[i]>contour.xpoints[start])) {
+				start=i;
+			}
+		}
+		int[] xpoints=new int[n];
+		int[] ypoints=new int[n];
+		for (int i=0; i<n; i++) {
+			int j=(start-i+n)%n;
+			xpoints[i]=contour.xpoints[j];
+			ypoints[i]=contour.ypoints[j];
+		}
+		return new PolygonRoi(xpoints, ypoints, n, Roi.FREEROI);
+	}
+	
+	static ShapeRoi scaleROI(Roi currentRoi, double scale) {
+		return scaleROI(currentRoi, scale, false);
+	}
+	
+	/**
+	 * Scales the roi about its own center, or about the origin of the image
+	 * (x*scale, y*scale) if origin is true
+	 */
+	static ShapeRoi scaleROI(Roi currentRoi, double scale, boolean origin) {
 		Polygon polygon=currentRoi.getPolygon();
-		double xTranslate=currentRoi.getBounds().getCenterX();
-		double yTranslate=currentRoi.getBounds().getCenterY();
-		AffineTransform myTransform=AffineTransform.getTranslateInstance(xTranslate, yTranslate);
-		myTransform.scale(scale,scale);
-		myTransform.translate(-xTranslate, -yTranslate);
+		AffineTransform myTransform;
+		if (origin) {
+			myTransform=AffineTransform.getScaleInstance(scale, scale);
+		} else {
+			double xTranslate=currentRoi.getBounds().getCenterX();
+			double yTranslate=currentRoi.getBounds().getCenterY();
+			myTransform=AffineTransform.getTranslateInstance(xTranslate, yTranslate);
+			myTransform.scale(scale,scale);
+			myTransform.translate(-xTranslate, -yTranslate);
+		}
 		Shape newShape=myTransform.createTransformedShape(polygon);
 		return new ShapeRoi(newShape);
 	}
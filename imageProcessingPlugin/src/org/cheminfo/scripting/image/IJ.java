@@ -1,10 +1,41 @@
 package org.cheminfo.scripting.image;
 
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.cheminfo.function.Function;
 import org.cheminfo.function.scripting.SecureFileManager;
+import org.cheminfo.scripting.image.extraction.RoiStatisticsTable;
+import org.cheminfo.scripting.image.filters.BufferPool;
 import org.json.JSONObject;
 
 public class IJ extends Function {
+	/** Decoded images shared by all the instances */
+	private static final ImageCache cache = new ImageCache(Runtime
+			.getRuntime().maxMemory() / 8);
+	/**
+	 * Downloaded images shared by all the instances, the folder and the
+	 * maximal size (MB) are set by the deployment with the system properties
+	 * eij.urlCache.directory and eij.urlCache.maxSize
+	 */
+	private static final UrlCache urlCache = new UrlCache(new File(System
+			.getProperty("eij.urlCache.directory", new File(System
+					.getProperty("java.io.tmpdir"), "eij-url-cache").getPath())),
+			Long.getLong("eij.urlCache.maxSize", 512) * 1024 * 1024);
+
+	/** Limits of the downloads of this instance */
+	private long maxDownloadSize = 64L * 1024 * 1024;
+	private int connectTimeout = 10000;
+	private int readTimeout = 30000;
+
+	private int threads = 0;
+	private boolean lazy = false;
+	private AsyncWriter writer;
+
 	/**
 	 * This function load an imageJ. Supported formats: JPEG, JPG,BMP, TIFF, PNG
 	 * 
@@ -14,18 +45,307 @@ public class IJ extends Function {
 	 * @return and extended ImageJ object
 	 */
 	public EIJ load(String basedir, String basedirkey, String filename) {
+		return load(basedir, basedirkey, filename, null);
+	}
+
+	/**
+	 * Loads an image. The decoded local files are kept in a cache, a file
+	 * loaded again returns a copy of the cached image as long as it did not
+	 * change on disk. The images of http(s) URLs are downloaded in a disk
+	 * cache and revalidated with the server at each load.
+	 * 
+	 * A reduced image is decoded directly, without decoding the full image,
+	 * if subsample, maxWidth or maxHeight is given. Its scale is the
+	 * subsampling factor.
+	 * 
+	 * @param basedir
+	 * @param key
+	 * @param filename
+	 * @param options
+	 *            {cache:true, subsample, maxWidth, maxHeight}
+	 * @return and extended ImageJ object
+	 */
+	public EIJ load(String basedir, String basedirkey, String filename,
+			Object options) {
+		JSONObject parameters = checkParameter(options);
+		boolean useCache = parameters.optBoolean("cache", true);
 		// If it is a URL we wont check security
 		if (filename.trim().matches("^https?://.*$")) {
-			return new EIJ(basedir, basedirkey, filename, this);
+			String url = filename.trim();
+			try {
+				EIJ image = decode(basedir, basedirkey, urlCache.fetch(url,
+						maxDownloadSize, connectTimeout, readTimeout), useCache,
+						parameters);
+				image.setTitle(url.replaceFirst("[?#].*$", "").replaceFirst(
+						"^.*/", ""));
+				return image;
+			} catch (IOException ex) {
+				appendError("IJ::load", "Error: " + ex.toString());
+				return null;
+			}
 		} else {
 			String fullFilename = SecureFileManager.getValidatedFilename(
 					basedir, basedirkey, filename);
 			if (fullFilename == null)
 				return null;
-			return new EIJ(basedir, basedirkey, fullFilename, this);
+			try {
+				return decode(basedir, basedirkey, new File(fullFilename),
+						useCache, parameters);
+			} catch (IOException ex) {
+				appendError("IJ::load", "Error: " + ex.toString());
+				return null;
+			}
+		}
+	}
+
+	private EIJ decode(String basedir, String basedirkey, File file,
+			boolean useCache, JSONObject parameters) throws IOException {
+		if (parameters.has("subsample") || parameters.has("maxWidth")
+				|| parameters.has("maxHeight")) {
+			// the reduced images are not cached
+			SubsamplingDecoder decoder = new SubsamplingDecoder(file);
+			ImageProcessor processor = decoder.decode(parameters.optInt(
+					"subsample", 0), parameters.optInt("maxWidth", 0),
+					parameters.optInt("maxHeight", 0));
+			EIJ image = new EIJ(basedir, basedirkey, file.getName(), processor,
+					this);
+			image.setScale(decoder.getFactor());
+			return image;
+		}
+		if (!useCache)
+			return new EIJ(basedir, basedirkey, file.getPath(), this);
+		EIJ image = cache.get(file, basedir, basedirkey, this);
+		if (image == null) {
+			image = new EIJ(basedir, basedirkey, file.getPath(), this);
+			cache.put(file, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Maps a large uncompressed TIFF or raw image without loading it in memory
+	 * 
+	 * @param basedir
+	 * @param key
+	 * @param filename
+	 * @param options
+	 *            for raw files {width, height, type:(8, 16, 32 or rgb),
+	 *            offset:0, littleEndian:false}
+	 * @return the mapped image
+	 */
+	public MappedEIJ loadMapped(String basedir, String basedirkey,
+			String filename, Object options) {
+		String fullFilename = SecureFileManager.getValidatedFilename(basedir,
+				basedirkey, filename);
+		if (fullFilename == null)
+			return null;
+		try {
+			return MappedEIJ.open(basedir, basedirkey, new File(fullFilename),
+					checkParameter(options), this);
+		} catch (Exception ex) {
+			appendError("IJ::loadMapped", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the limits of the images this instance loads from URLs. The folder
+	 * and the size of the disk cache are shared by all the scripts and can
+	 * only be set by the deployment.
+	 * 
+	 * @param basedir
+	 * @param key
+	 * @param options
+	 *            {maxDownloadSize (MB, at most the size of the cache),
+	 *            connectTimeout (ms), readTimeout (ms)}
+	 */
+	public void setUrlCache(String basedir, String basedirkey, Object options) {
+		JSONObject parameters = checkParameter(options);
+		if (parameters.has("directory") || parameters.has("maxSize")) {
+			appendError("IJ::setUrlCache", "The directory and the size of the "
+					+ "cache are set by the deployment "
+					+ "(eij.urlCache.directory, eij.urlCache.maxSize)");
+			return;
 		}
+		if (parameters.has("maxDownloadSize"))
+			maxDownloadSize = Math.min(urlCache.getMaxSize(), parameters
+					.getLong("maxDownloadSize") * 1024 * 1024);
+		if (parameters.has("connectTimeout"))
+			connectTimeout = parameters.getInt("connectTimeout");
+		if (parameters.has("readTimeout"))
+			readTimeout = parameters.getInt("readTimeout");
+	}
+
+	/**
+	 * Returns the counters of the disk cache of the images loaded from URLs
+	 * 
+	 * @return {downloads, revalidations, evictions, urls, directory}
+	 */
+	public String getUrlCacheStatistics() {
+		try {
+			return urlCache.getStatistics().toString();
+		} catch (IOException ex) {
+			appendError("IJ::getUrlCacheStatistics", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the maximal size of the cache of the loaded images
+	 * 
+	 * @param megabytes
+	 *            0 to disable the cache
+	 */
+	public void setCacheSize(int megabytes) {
+		cache.setMaxBytes(megabytes * 1024L * 1024L);
+	}
+
+	public void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns the counters of the cache of the loaded images
+	 * 
+	 * @return {hits, misses, evictions, images, bytes, maxBytes}
+	 */
+	public String getCacheStatistics() {
+		return cache.getStatistics().toString();
+	}
+
+	/**
+	 * Sets the maximal size of the free pixel arrays kept for reuse by the
+	 * filters and the conversions
+	 * 
+	 * @param megabytes
+	 *            0 to disable the pool
+	 */
+	public void setBufferPoolSize(int megabytes) {
+		BufferPool.getShared().setMaxBytes(megabytes * 1024L * 1024L);
+	}
+
+	public void clearBufferPool() {
+		BufferPool.getShared().clear();
+	}
+
+	/**
+	 * Returns the counters of the pool of pixel arrays
+	 * 
+	 * @return {hits, misses, hitRate, releases, evictions, buffers, bytes,
+	 *         maxBytes}
+	 */
+	public String getBufferPoolStatistics() {
+		return BufferPool.getShared().getStatistics().toString();
 	}
  
+	/**
+	 * Applies a pipeline of EIJ methods to the images of a folder, the images
+	 * being decoded, processed and saved in parallel
+	 * 
+	 * @param basedir
+	 * @param key
+	 * @param input
+	 *            folder, or folder followed by a pattern of file names
+	 *            (folder/*.jpg)
+	 * @param pipeline
+	 *            array of steps {method, arguments:[], options:{}}
+	 * @param options
+	 *            {output, format, saveOptions, concurrency, decoders,
+	 *            encoders, queueSize, threads, memory}
+	 * @return the JSON report {total, processed, failed, errors, results,
+	 *         error}
+	 * @see BatchProcessor
+	 */
+	public String batch(String basedir, String basedirkey, String input,
+			Object pipeline, Object options) {
+		try {
+			BatchProcessor processor = new BatchProcessor(this, basedir,
+					basedirkey, input, checkJSONArray(pipeline),
+					checkParameter(options));
+			return processor.run().toString();
+		} catch (Exception ex) {
+			appendError("IJ::batch", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Loads statistics saved by EIJ.saveAnalysis in the binary format
+	 * 
+	 * @param basedir
+	 * @param key
+	 * @param filename
+	 * @return the table of the statistics, one column per field
+	 */
+	public RoiStatisticsTable loadAnalysis(String basedir, String basedirkey,
+			String filename) {
+		String fullFilename = SecureFileManager.getValidatedFilename(basedir,
+				basedirkey, filename);
+		if (fullFilename == null)
+			return null;
+		InputStream stream = null;
+		try {
+			stream = new FileInputStream(fullFilename);
+			return RoiStatisticsTable.read(stream);
+		} catch (IOException ex) {
+			appendError("IJ::loadAnalysis", "Error: " + ex.toString());
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException ex) {
+					appendError("IJ::loadAnalysis", "Error: " + ex.toString());
+				}
+			}
+		}
+		return null;
+	}
+
+	synchronized AsyncWriter getWriter() {
+		if (writer == null)
+			writer = new AsyncWriter(this);
+		return writer;
+	}
+
+	/**
+	 * Waits until all the images saved by EIJ.saveAsync are written
+	 * 
+	 * @return the JSON report {saved, failed, errors:[{file, error}]} of the
+	 *         saves submitted since the last flush
+	 */
+	public String flush() {
+		return getWriter().flush().toString();
+	}
+
+	/**
+	 * Sets the number of threads used by the image filters of this instance
+	 * 
+	 * @param threads
+	 *            0 to use all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * In lazy mode the point operations of the images (grey, contrast,
+	 * createMask, splitRGB, splitHSB) are recorded and run in a single pass
+	 * when the pixels are needed (save, statistics, regions of interest...)
+	 * 
+	 * @see PointPipeline
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
 	/**
 	 * This function accepts a String parameter
 	 * 
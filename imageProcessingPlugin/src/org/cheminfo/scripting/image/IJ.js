@@ -14,11 +14,151 @@ var IJ = {
 	},
 	
 	/**
-	 * @function load(filename)
-	 * This function loads and returns an extended ImageJ.
+	 * @function load(filename, options)
+	 * This function loads and returns an extended ImageJ. The decoded files are kept in a cache, loading a file again returns a copy of the cached image unless the file changed. The images of http(s) URLs are downloaded in a disk cache shared by all the scripts (see setUrlCache) and revalidated with the server at each load
+	 * @option	cache		false to decode the file again (Default true)
+	 * @option	subsample	keeps one pixel out of subsample in each direction, the full image is never decoded
+	 * @option	maxWidth	subsamples the image by the smallest factor giving a width of at most maxWidth
+	 * @option	maxHeight	subsamples the image by the smallest factor giving a height of at most maxHeight
 	 */
-	load: function(filename) {
-		return new EIJ(IJAPI.load(Global.basedir, Global.basedirkey, filename));
+	load: function(filename, options) {
+		return new EIJ(IJAPI.load(Global.basedir, Global.basedirkey, filename, options));
+	},
+	
+	/**
+	 * @function batch(input, pipeline, options)
+	 * Applies a pipeline of image methods to all the images of a folder. The images are decoded, processed and saved by separate threads, a failure only stops the processing of its image
+	 * @param	input		folder, or folder followed by a pattern of file names (e.g. "/plates/*.jpg")
+	 * @param	pipeline	array of steps {method:name of the method, arguments:[arguments], options:{options}}, e.g. [{method:"resize", arguments:["50%"]}, {method:"texture", options:{algorithm:"lbp"}}]. A step returning an image replaces the image, the value returned by the last step returning something else is kept in the results
+	 * @option	output		folder in which the images are saved, nothing is saved if missing
+	 * @option	format		extension of the saved images (Default: the one of the image)
+	 * @option	saveOptions	options given to save
+	 * @option	concurrency	number of images processed at the same time (Default: the number of processors)
+	 * @option	decoders	number of threads loading the images (Default 2)
+	 * @option	encoders	number of threads saving the images (Default 2)
+	 * @option	queueSize	number of images waiting between two stages (Default: twice the concurrency)
+	 * @option	threads		number of threads of the filters for each image (Default 1)
+	 * @option	memory		memory budget in MB of the images being processed (Default: a quarter of the maximal memory)
+	 * @return	{total, processed, failed, errors:[{file, error}], results:{file:result}, error:(error that stopped the whole batch, if any)}
+	 */
+	batch: function(input, pipeline, options) {
+		return JSON.parse(IJAPI.batch(Global.basedir, Global.basedirkey, input, pipeline, options));
+	},
+	
+	/**
+	 * @function loadAnalysis(filename)
+	 * Loads the statistics saved by saveAnalysis in the binary format. The table has the methods getCount(), getIntColumn(name), getDoubleColumn(name), getHistogram(name, index) and getJSONObject(index)
+	 */
+	loadAnalysis: function(filename) {
+		return IJAPI.loadAnalysis(Global.basedir, Global.basedirkey, filename);
+	},
+	
+	/**
+	 * @function setCacheSize(megabytes)
+	 * Sets the maximal size of the cache of the loaded images, 0 to disable it (Default: an eighth of the maximal memory)
+	 */
+	setCacheSize: function(megabytes) {
+		return IJAPI.setCacheSize(megabytes);
+	},
+	
+	/**
+	 * @function clearCache()
+	 * Removes all the images from the cache of the loaded images
+	 */
+	clearCache: function() {
+		return IJAPI.clearCache();
+	},
+	
+	/**
+	 * @function getCacheStatistics()
+	 * Returns the counters of the cache of the loaded images
+	 * @return	{hits, misses, evictions, images, bytes, maxBytes}
+	 */
+	getCacheStatistics: function() {
+		return JSON.parse(IJAPI.getCacheStatistics());
+	},
+	
+	/**
+	 * @function setBufferPoolSize(megabytes)
+	 * Sets the maximal size of the free pixel arrays kept for reuse by the filters and the conversions, 0 to disable the pool (Default: a sixteenth of the maximal memory)
+	 */
+	setBufferPoolSize: function(megabytes) {
+		return IJAPI.setBufferPoolSize(megabytes);
+	},
+	
+	/**
+	 * @function clearBufferPool()
+	 * Empties the pool of pixel arrays
+	 */
+	clearBufferPool: function() {
+		return IJAPI.clearBufferPool();
+	},
+	
+	/**
+	 * @function getBufferPoolStatistics()
+	 * Returns the counters of the pool of pixel arrays
+	 * @return	{hits, misses, hitRate, releases, evictions, buffers, bytes, maxBytes}
+	 */
+	getBufferPoolStatistics: function() {
+		return JSON.parse(IJAPI.getBufferPoolStatistics());
+	},
+	
+	/**
+	 * @function loadMapped(filename, options)
+	 * Maps a large uncompressed TIFF or raw image without loading it in memory (see MappedEIJ), the pixels are read by tiles when needed
+	 * @option	width			width of a raw image
+	 * @option	height			height of a raw image
+	 * @option	type			pixel type of a raw image: 8, 16, 32 (float) or rgb (Default 8)
+	 * @option	offset			offset of the pixels in a raw file (Default 0)
+	 * @option	littleEndian	byte order of a raw image (Default false)
+	 */
+	loadMapped: function(filename, options) {
+		return new MappedEIJ(IJAPI.loadMapped(Global.basedir, Global.basedirkey, filename, options));
+	},
+	
+	/**
+	 * @function setUrlCache(options)
+	 * Sets the limits of the images loaded from URLs by this script. The disk cache is shared by all the scripts, its folder (Default: eij-url-cache in the temporary folder) and maximal size (Default 512 MB, the least recently used images are removed) are set by the deployment with the system properties eij.urlCache.directory and eij.urlCache.maxSize
+	 * @option	maxDownloadSize	maximal size of a downloaded image in MB, at most the size of the cache (Default 64)
+	 * @option	connectTimeout	maximal time to connect to the server in ms (Default 10000)
+	 * @option	readTimeout		maximal time waiting for data in ms (Default 30000)
+	 */
+	setUrlCache: function(options) {
+		return IJAPI.setUrlCache(Global.basedir, Global.basedirkey, options);
+	},
+	
+	/**
+	 * @function getUrlCacheStatistics()
+	 * Returns the counters of the disk cache of the images loaded from URLs
+	 * @return	{downloads, revalidations, evictions, urls, directory}
+	 */
+	getUrlCacheStatistics: function() {
+		return JSON.parse(IJAPI.getUrlCacheStatistics());
+	},
+	
+	/**
+	 * @function flush()
+	 * Waits until all the images saved with saveAsync are written
+	 * @return	{saved, failed, errors:[{file, error}]} for the images saved since the last flush
+	 */
+	flush: function() {
+		return JSON.parse(IJAPI.flush());
+	},
+	
+	/**
+	 * @function setThreads(threads)
+	 * Sets the number of threads used by the image filters, 0 to use all the processors (Default 0)
+	 */
+	setThreads: function(threads) {
+		return IJAPI.setThreads(threads);
+	},
+	
+	/**
+	 * @function setLazy(lazy)
+	 * In lazy mode grey, contrast, createMask, splitRGB and splitHSB are recorded and run together in a single pass over the pixels when they are needed (save, histogram, getRois...). The results are the same (Default false)
+	 */
+	setLazy: function(lazy) {
+		return IJAPI.setLazy(lazy);
 	}
 		
 };
@@ -40,11 +180,38 @@ var EIJ = function (newEIJ) {
 		 * path. In the options you can specify the quality of the resulting image.
 		 * @param 		path		physical path in which to save the image
 		 * @option		quality 	Quality for jpeg image, possible values between 0 and 100 (Default 100)
+		 * @option		subsampling	Chroma subsampling for jpeg image: 4:2:0, 4:2:2 or 4:4:4 (Default 4:4:4 at quality 100, 4:2:0 otherwise)
+		 * @option		progressive	Progressive jpeg image (Default false)
+		 * @option		optimize	Optimized Huffman tables for jpeg image, smaller files but slower (Default false)
+		 * @option		compression	For png image the deflate level between 0 and 9 (Default 6). For tif image none, lzw or packbits (Default none), deflate is refused since ImageJ could not load the file
+		 * @option		filter		Row filter for png image: none, sub, up, average, paeth or adaptive (Default adaptive)
+		 * @option		bitDepth	Bit depth for png image: 1, 8, 16 or 24 (Default 24 for RGB images, 16 for 16-bit images, 8 otherwise). 1 only keeps the masks small, the image is loaded back with the values 0 and 1
+		 * @option		predictor	Horizontal differencing for lzw tif image (Default true)
+		 * @option		threads		Number of threads compressing the strips of a tif image (Default IJ.getThreads())
 		 * @return 		boolean		If it succeed saving or not
 		 */
 		this.save=function(path, options) {
 			return this.EIJ.save(path, options);
 		}	
+		
+		/**
+		 * @function		saveAsync(path, options)
+		 * Saves a copy of the image in a background thread and returns immediately, the image can be modified at once. Use IJ.flush() to wait for all the images
+		 * @param 		path		physical path in which to save the image
+		 * @option		quality 	see save
+		 * @return 		handle with the methods isDone(), waitFor() (returns true if saved) and getError()
+		 */
+		this.saveAsync=function(path, options) {
+			return this.EIJ.saveAsync(path, options);
+		}
+	
+		/**
+		 * @function		dispose()
+		 * Gives the pixels of the image to the pool of pixel arrays, so that the next images of the same size reuse them. The image can not be used any more
+		 */
+		this.dispose=function() {
+			return this.EIJ.dispose();
+		}
 	
 		/**
 		 * @function		resize(size, options)
@@ -74,13 +241,25 @@ var EIJ = function (newEIJ) {
 		
 		/**
 		 * @function 		createMask(options)
-		 * Generates a mask based on the options
+		 * Generates a mask based on the options: an 8-bit image with 255 for the pixels above the threshold (dark background) and 0 for the others. The image must be grey
 		 * @option		method	Name of the method to use to determine the threshold: Default, Huang, IJ_IsoData, Intermodes, IsoData, Li, MaxEntropy, Mean, MinError, Minimum, Moments, Otsu, Percentile, RenyiEntropy, Shanbhag, Triangle, Yen (Default: Default)
+		 * @option		threshold	Lowest value of the mask (highest one for an inverted LUT) instead of a method, for example a value returned by thresholds
+		 * @option		threads	Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
 		 * @return		EIJ	A new image containing the mast
 		 */
 		this.createMask=function(options) {
 			return this.EIJ.createMask(options);
 		}
+		
+		/**
+		 * @function 		thresholds(options)
+		 * Returns the threshold of every method of createMask, all computed from a single histogram of the image
+		 * @option		threads	Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 * @return		{Default:threshold, Huang:threshold, ...}
+		 */
+		this.thresholds=function(options) {
+			return JSON.parse(this.EIJ.thresholds(options));
+		}
 	
 		/**
 		 * @function		analyzeImage(mask, options)
@@ -96,13 +275,27 @@ var EIJ = function (newEIJ) {
 		 * @option	minSurface	minimum surface of the selected area
 		 * @option	maxSurface	maximal surface of the selected area
 		 * @option	scale		scale the ROI with a defined factor
+		 * @option	origin		scale the coordinates about the origin of the image (x*scale, y*scale) instead of the center of each ROI, to map them to another resolution (Default false)
 		 * @option	sortBy	how the results should be sorted. Possible values: "x", "y", "xy", "length"
+		 * @option	threads	Number of threads used to analyse the areas, 0 for all the processors (Default: the value given to IJ.setThreads)
 		 * 
 		 * @return 		JSON String
 		 */
 		this.analyzeImage=function(mask, options) {
 			return JSON.parse(this.EIJ.analyzeImage(mask, options));
 		}
+		
+		/**
+		 * @function		saveAnalysis(filename, rois, options)
+		 * Saves the statistics of analyzeImage(rois) directly to a file, without building them as a String
+		 * @rois	array of Roi (see getRois)
+		 * @option	format	json or binary (compact columnar format, see IJ.loadAnalysis) (Default json if the name ends with .json, binary otherwise)
+		 * @option	threads	Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 * @return 		boolean
+		 */
+		this.saveAnalysis=function(filename, rois, options) {
+			return this.EIJ.saveAnalysis(filename, rois, options);
+		}
 	
 		/**
 		 * @function		split(mask, options)
@@ -118,6 +311,7 @@ var EIJ = function (newEIJ) {
 		 * @option	minSurface	minimum surface of the selected area
 		 * @option	maxSurface	maximal surface of the selected area
 		 * @option	scale		scale the ROI with a defined factor
+		 * @option	origin		scale the coordinates about the origin of the image (x*scale, y*scale) instead of the center of each ROI, to map them to another resolution (Default false)
 		 * 
 		 * @return 		EIJ[]
 		 */
@@ -180,6 +374,15 @@ var EIJ = function (newEIJ) {
 			return this.EIJ.histogram();
 		}
 		
+		/**
+		 * @function		getScale()
+		 * Returns the factor by which the coordinates must be multiplied to get the ones of the original file (more than 1 if the image was subsampled by load), e.g. getRois({scale:image.getScale(), origin:true})
+		 * @return 		number
+		 */
+		this.getScale=function() {
+			return this.EIJ.getScale();
+		}
+		
 		/**
 		 * @function		getWidth()
 		 * Returns the width of the image
@@ -211,6 +414,9 @@ var EIJ = function (newEIJ) {
 		 * @option	minSurface	minimum surface of the selected area
 		 * @option	maxSurface	maximal surface of the selected area
 		 * @option	scale		scale the ROI with a defined factor
+		 * @option	origin		scale the coordinates about the origin of the image (x*scale, y*scale) instead of the center of each ROI, to map them to another resolution (Default false)
+		 * @option	mode		selection (areas of the threshold) or labels (one polygon per connected area, holes included, the surface being the number of pixels of the area). An area without holes gives the same ROI and length in both modes, unless it touches itself by a corner (Default selection)
+		 * @option	connectivity	4 or 8, connectivity of the areas in labels mode (Default 8)
 		 * @example	mask.getRois();
 		 * @return 		Roi[]
 		 */
@@ -218,6 +424,17 @@ var EIJ = function (newEIJ) {
 			return this.EIJ.getRois(options);
 		}
 		
+		/**
+		 * @function		labels(options)
+		 * Returns the 32-bit label image of a mask: 0 for the background, 1 to n for the connected areas of the threshold (or of the non zero pixels if there is no threshold)
+		 * @option	connectivity	4 or 8 (Default 8)
+		 * @example	mask.labels();
+		 * @return 		EIJ
+		 */
+		this.labels=function(options) {
+			return new EIJ(this.EIJ.labels(options));
+		}
+		
 		/**
 		 * @function		copy()
 		 * Returns a copy of the EIJ Image
@@ -237,12 +454,35 @@ var EIJ = function (newEIJ) {
 		
 		/**
 		 * @function		color(options)
-		 * Applies a color filter to the image
+		 * Applies a color filter to the image: the colors are reduced to a palette and the image becomes an 8-bit image of the palette indexes (see quantize)
 		 * @option		nbColor		Number of colors, possible values between 2 and 256 (Default 256)
 		 */
 		this.color=function(options) {
 			return this.EIJ.color(options);
 		}
+		
+		/**
+		 * @function		quantize(options)
+		 * Returns the 8-bit image of the palette indexes of the colors of a RGB image, with the palette as LUT (Wu quantizer on all the cores). The image is not modified
+		 * @option		nbColor		Number of colors, possible values between 2 and 256 (Default 256)
+		 * @option		dither		Diffuse the quantization errors (Floyd-Steinberg) (Default false)
+		 * @option		iterations	Number of k-means iterations refining the palette on a sample of the pixels (Default 0)
+		 * @option		sampleSize	Number of pixels of the sample used by k-means (Default 65536)
+		 * @option		threads		Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 * @return 		EIJ
+		 */
+		this.quantize=function(options) {
+			return new EIJ(this.EIJ.quantize(options));
+		}
+		
+		/**
+		 * @function		getPalette()
+		 * Returns the colors of the LUT of an 8-bit image, for example the palette of an image returned by quantize
+		 * @return 		array of '#rrggbb'
+		 */
+		this.getPalette=function() {
+			return JSON.parse(this.EIJ.getPalette());
+		}
 
 		/**
 		 * @function		grey(options)
@@ -254,20 +494,66 @@ var EIJ = function (newEIJ) {
 		}
 		
 		/**
-		 * @function		texture()
+		 * @function		texture(options)
 		 * Applies a texture filter to the image
+		 * @option		algorithm	Texture filter: lbp (local binary pattern), ifh (invariant feature histogram) or tamura (Default lbp)
+		 * @option		threads		Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 * @option		radius		Distance of the neighbours for the local binary pattern (Default 1)
+		 * @option		neighbors	Number of neighbours for the local binary pattern, up to 8 for basic and rotationInvariant, 16 otherwise (Default 8)
+		 * @option		mode		Local binary pattern codes: basic, uniform, rotationInvariant, uniformRotationInvariant (Default basic)
+		 * @option		rounds		Number of pairs of points of the invariant feature histogram (Default 16)
+		 * @option		firstRadius	Radius of the first circle of the invariant feature histogram (Default 4)
+		 * @option		secondRadius	Radius of the second circle of the invariant feature histogram (Default 8)
+		 * @option		output		Result of tamura: grey or rgb (directionality, coarseness and contrast) (Default grey)
 		 */
-		this.texture=function() {
-			return this.EIJ.texture();
+		this.texture=function(options) {
+			return this.EIJ.texture(options);
 		}
 		
 		/**
-		 * @function 		getColor()
-		 * Returns the number of colors
+		 * @function		textureFeatures(rois, options)
+		 * Returns the Tamura features {coarseness, contrast, directionality} of the image, or an array with the features of each region
+		 * @rois		optional array of Roi (see getRois)
+		 * @option		threads		Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 */
+		this.textureFeatures=function(rois, options) {
+			return JSON.parse(this.EIJ.textureFeatures(rois ? rois : null, options));
+		}
+		
+		/**
+		 * @function 		getColor(options)
+		 * Returns the number of colors of a RGB image
+		 * @option		bits		Bits kept per color, a multiple of 3 from 3 to 24 (Default 15: 5 bits per channel)
+		 * @option		method		exact (bitset of all the colors) or approximate (HyperLogLog estimate, for huge images) (Default exact)
+		 * @option		precision	Log2 of the number of registers of the approximate method, the error is about 1.04/sqrt(2^precision) (Default 14)
+		 * @option		threads		Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
 		 * @return 		number
 		 */
-		this.getColor=function() {
-			return this.EIJ.getColor();
+		this.getColor=function(options) {
+			return options ? this.EIJ.getColor(options) : this.EIJ.getColor();
+		}
+		
+		/**
+		 * @function 		getColors(rois, options)
+		 * Returns the number of colors of each region
+		 * @rois		array of Roi (see getRois)
+		 * @option		see getColor
+		 * @return 		array of numbers
+		 */
+		this.getColors=function(rois, options) {
+			return JSON.parse(this.EIJ.getColors(rois, options));
+		}
+		
+		/**
+		 * @function 		getDominantColors(rois, options)
+		 * Returns the most frequent colors of the image [{color:'#rrggbb', count}], or an array with the colors of each region
+		 * @rois		optional array of Roi (see getRois)
+		 * @option		top			Number of colors (Default 10)
+		 * @option		bits		Bits kept per color, a multiple of 3 from 3 to 24 (Default 15)
+		 * @option		threads		Number of threads, 0 for all the processors (Default: the value given to IJ.setThreads)
+		 */
+		this.getDominantColors=function(rois, options) {
+			return JSON.parse(this.EIJ.getDominantColors(rois ? rois : null, options));
 		}
 		
 		/**
@@ -284,3 +570,103 @@ var EIJ = function (newEIJ) {
 		}
 
 };
+
+
+var MappedEIJ = function (newMappedEIJ) {
+	this.MappedEIJ=newMappedEIJ;
+	
+/**
+ * @object	MappedEIJ
+ * Large image mapped from an uncompressed TIFF or raw file (see IJ.loadMapped). The methods process the file tile by tile, the image is never loaded as a whole
+ */
+		
+		/**
+		 * @function		getWidth()
+		 * Returns the width of the image
+		 * @return 		number
+		 */
+		this.getWidth=function() {
+			return this.MappedEIJ.getWidth();
+		}
+		
+		/**
+		 * @function		getHeight()
+		 * Returns the height of the image
+		 * @return 		number
+		 */
+		this.getHeight=function() {
+			return this.MappedEIJ.getHeight();
+		}
+		
+		/**
+		 * @function		histogram()
+		 * Returns the histogram of the image: 256 grey values for 8-bit and RGB images, 65536 values for 16-bit images
+		 * @return 		array
+		 */
+		this.histogram=function() {
+			return this.MappedEIJ.histogram();
+		}
+		
+		/**
+		 * @function		getColor(options)
+		 * Returns the number of colors of a RGB image, counted tile by tile (see EIJ.getColor, the approximate method is recommended for large images)
+		 */
+		this.getColor=function(options) {
+			return this.MappedEIJ.getColor(options);
+		}
+		
+		/**
+		 * @function		crop(x, y, width, height)
+		 * Returns a part of the image loaded in memory
+		 * @return 		EIJ
+		 */
+		this.crop=function(x, y, width, height) {
+			return new EIJ(this.MappedEIJ.crop(x, y, width, height));
+		}
+		
+		/**
+		 * @function		grey(filename)
+		 * Converts the image to 8-bit in a new file (.tif or .raw)
+		 * @return 		MappedEIJ
+		 */
+		this.grey=function(filename) {
+			return new MappedEIJ(this.MappedEIJ.grey(filename));
+		}
+		
+		/**
+		 * @function		createMask(filename, options)
+		 * Writes in a new file (.tif or .raw) the binary mask of an 8-bit image: 255 above the automatic threshold, 0 below
+		 * @option	method	thresholding method (Default, Huang, IsoData, Li, MaxEntropy, Mean, MinError(I), Minimum, Moments, Otsu, Percentile, RenyiEntropy, Shanbhag, Triangle or Yen)
+		 * @return 		MappedEIJ
+		 */
+		this.createMask=function(filename, options) {
+			return new MappedEIJ(this.MappedEIJ.createMask(filename, options));
+		}
+		
+		/**
+		 * @function		getRois(options)
+		 * Returns the contours of the connected areas of the non zero pixels, with the options of EIJ.getRois in the labels mode
+		 * @return 		Roi[]
+		 */
+		this.getRois=function(options) {
+			return this.MappedEIJ.getRois(options);
+		}
+		
+		/**
+		 * @function		save(filename)
+		 * Copies the image in a new uncompressed file, TIFF if the name ends with .tif, raw otherwise
+		 * @return 		boolean
+		 */
+		this.save=function(filename) {
+			return this.MappedEIJ.save(filename);
+		}
+		
+		/**
+		 * @function		close()
+		 * Releases the file, the image can not be used anymore
+		 */
+		this.close=function() {
+			return this.MappedEIJ.close();
+		}
+
+};
@@ -0,0 +1,174 @@
+package org.cheminfo.scripting.image;
+
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.json.JSONObject;
+
+/**
+ * Least recently used cache of the decoded images loaded by IJ.load, bounded by
+ * the number of bytes of the pixels rather than by the number of images.
+ *
+ * An image is identified by its validated path, its modification time and its
+ * size, so a file that changes on disk is decoded again and replaces the
+ * previous version. The cached pixels are shared with the loaded images, that
+ * copy them before their first modification, so an image modified by a script
+ * never changes the cached one and a hit only costs a copy if it is modified.
+ * The file information and the properties (like the Info of a TIFF) are
+ * given back with the pixels. Stacks, like multi-page TIFF files, are not
+ * cached.
+ */
+class ImageCache {
+	private long maxBytes;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * @param maxBytes
+	 *            maximal number of bytes of the cached pixels
+	 */
+	ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns a copy of the cached image of a file, null if the file is not
+	 * in the cache or if it changed since it was cached
+	 */
+	synchronized EIJ get(File file, String basedir, String key, IJ ij) {
+		String path = file.getAbsolutePath();
+		Entry entry = entries.get(path);
+		if (entry != null && !entry.isVersionOf(file)) {
+			entries.remove(path);
+			bytes -= entry.bytes;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		EIJ image = new EIJ(basedir, key, entry.title, EIJ
+				.sharePixels(entry.processor), ij);
+		image.setShared();
+		image.setCalibration(entry.calibration);
+		if (entry.fileInfo != null)
+			image.setFileInfo((FileInfo) entry.fileInfo.clone());
+		if (entry.properties != null) {
+			for (Map.Entry<Object, Object> property : entry.properties
+					.entrySet()) {
+				image.setProperty((String) property.getKey(), property
+						.getValue());
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Adds a decoded image to the cache, evicting the least recently used
+	 * images if needed. An image larger than the cache and the stacks are not
+	 * added.
+	 */
+	synchronized void put(File file, EIJ image) {
+		if (image.getStackSize() > 1)
+			return;
+		ImageProcessor processor = image.getProcessor();
+		if (processor == null)
+			return;
+		long size = getSize(processor);
+		if (size > maxBytes)
+			return;
+		Entry entry = new Entry();
+		entry.title = image.getTitle();
+		entry.processor = image.shareProcessor();
+		entry.calibration = image.getCalibration().copy();
+		FileInfo fileInfo = image.getOriginalFileInfo();
+		entry.fileInfo = fileInfo != null ? (FileInfo) fileInfo.clone() : null;
+		Properties properties = image.getProperties();
+		entry.properties = properties != null ? (Properties) properties
+				.clone() : null;
+		entry.bytes = size;
+		entry.modified = file.lastModified();
+		entry.length = file.length();
+		Entry previous = entries.put(file.getAbsolutePath(), entry);
+		if (previous != null)
+			bytes -= previous.bytes;
+		bytes += size;
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used images until the cache fits in
+	 * maxBytes
+	 */
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			bytes -= iterator.next().bytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the counters {hits, misses, evictions, images, bytes, maxBytes}
+	 */
+	synchronized JSONObject getStatistics() {
+		JSONObject statistics = new JSONObject();
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("evictions", evictions);
+		statistics.put("images", entries.size());
+		statistics.put("bytes", bytes);
+		statistics.put("maxBytes", maxBytes);
+		return statistics;
+	}
+
+	static long getSize(ImageProcessor processor) {
+		Object pixels = processor.getPixels();
+		int bytesPerPixel = pixels instanceof byte[] ? 1
+				: pixels instanceof short[] ? 2 : 4;
+		return (long) processor.getWidth() * processor.getHeight()
+				* bytesPerPixel;
+	}
+
+	private static class Entry {
+		String title;
+		ImageProcessor processor;
+		Calibration calibration;
+		FileInfo fileInfo;
+		Properties properties;
+		long bytes;
+		long modified;
+		long length;
+
+		boolean isVersionOf(File file) {
+			return file.lastModified() == modified && file.length() == length;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.cheminfo.scripting.image;
+
+/**
+ * IJ given to the images processed in background threads (batch, asynchronous
+ * saves): it keeps the first error of its image, forwards the messages to the
+ * IJ of the script, one thread at a time, and sets the number of threads of
+ * the filters
+ */
+class ImageLog extends IJ {
+	private IJ parent;
+	String error;
+
+	ImageLog(IJ parent, int threads) {
+		this.parent = parent;
+		setThreads(threads);
+	}
+
+	public void appendError(String label, String message) {
+		if (error == null)
+			error = label + ": " + message;
+		synchronized (parent) {
+			parent.appendError(label, message);
+		}
+	}
+
+	public void appendWarning(String label, String message) {
+		synchronized (parent) {
+			parent.appendWarning(label, message);
+		}
+	}
+
+	public void appendInfo(String label, String message) {
+		synchronized (parent) {
+			parent.appendInfo(label, message);
+		}
+	}
+}
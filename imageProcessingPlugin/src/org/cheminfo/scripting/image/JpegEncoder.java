@@ -0,0 +1,166 @@
+package org.cheminfo.scripting.image;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.json.JSONObject;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Saves JPEG images with the options given for each call (quality, chroma
+ * subsampling, progressive and optimized Huffman tables), instead of the
+ * static quality of FileSaver that is shared by all the threads.
+ *
+ * The ImageIO writers are expensive to create, they are kept in a pool and
+ * reset after each image.
+ */
+class JpegEncoder {
+	private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+	private static final BlockingQueue<ImageWriter> writers = new ArrayBlockingQueue<ImageWriter>(
+			Runtime.getRuntime().availableProcessors());
+
+	private JpegEncoder() {
+	}
+
+	/**
+	 * Saves an image as JPEG
+	 *
+	 * @param options
+	 *            {quality:(0-100, Default 100), subsampling:(4:2:0, 4:2:2 or
+	 *            4:4:4, Default 4:4:4 at quality 100 and 4:2:0 otherwise),
+	 *            progressive:false, optimize:false}
+	 */
+	static void write(ImageProcessor processor, String filename,
+			JSONObject options) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				filename));
+		try {
+			write(processor, out, options);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void write(ImageProcessor processor, OutputStream out,
+			JSONObject options) throws IOException {
+		int quality = Math.max(0, Math.min(100, options.optInt("quality", 100)));
+		String subsampling = options.optString("subsampling",
+				quality == 100 ? "4:4:4" : "4:2:0");
+		BufferedImage bufferedImage = getBufferedImage(processor);
+
+		ImageWriter writer = writers.poll();
+		if (writer == null)
+			writer = createWriter();
+		ImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+		try {
+			JPEGImageWriteParam param = (JPEGImageWriteParam) writer
+					.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality / 100f);
+			if (options.optBoolean("progressive", false))
+				param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			param.setOptimizeHuffmanTables(options.optBoolean("optimize",
+					false));
+			IIOMetadata metadata = writer.getDefaultImageMetadata(
+					new ImageTypeSpecifier(bufferedImage), param);
+			if (bufferedImage.getType() != BufferedImage.TYPE_BYTE_GRAY)
+				setSubsampling(metadata, subsampling);
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(bufferedImage, null, metadata),
+					param);
+			stream.flush();
+		} finally {
+			stream.close();
+			writer.reset();
+			if (!writers.offer(writer))
+				writer.dispose();
+		}
+	}
+
+	private static ImageWriter createWriter() throws IOException {
+		Iterator<ImageWriter> iterator = ImageIO
+				.getImageWritersByFormatName("jpeg");
+		if (!iterator.hasNext())
+			throw new IOException("No JPEG writer available");
+		return iterator.next();
+	}
+
+	/**
+	 * Returns the image as displayed: the 8-bit images with a grey LUT and the
+	 * full display range are kept grey, the others are converted to RGB
+	 */
+	private static BufferedImage getBufferedImage(ImageProcessor processor) {
+		int width = processor.getWidth();
+		int height = processor.getHeight();
+		if (processor instanceof ByteProcessor && !processor.isColorLut()
+				&& !processor.isInvertedLut() && processor.getMin() == 0
+				&& processor.getMax() == 255) {
+			BufferedImage grey = new BufferedImage(width, height,
+					BufferedImage.TYPE_BYTE_GRAY);
+			grey.getRaster().setDataElements(0, 0, width, height,
+					processor.getPixels());
+			return grey;
+		}
+		ImageProcessor rgb = processor instanceof ColorProcessor ? processor
+				: processor.convertToRGB();
+		BufferedImage color = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		color.getRaster().setDataElements(0, 0, width, height, rgb.getPixels());
+		return color;
+	}
+
+	/**
+	 * Sets the sampling factors of the luminance in the start of frame of the
+	 * metadata, the chroma components keeping a factor of 1
+	 */
+	private static void setSubsampling(IIOMetadata metadata, String subsampling)
+			throws IOException {
+		int horizontal, vertical;
+		if (subsampling.equals("4:4:4")) {
+			horizontal = 1;
+			vertical = 1;
+		} else if (subsampling.equals("4:2:2")) {
+			horizontal = 2;
+			vertical = 1;
+		} else if (subsampling.equals("4:2:0")) {
+			horizontal = 2;
+			vertical = 2;
+		} else {
+			throw new IllegalArgumentException("Unsupported subsampling: "
+					+ subsampling);
+		}
+		Node root = metadata.getAsTree(METADATA_FORMAT);
+		NodeList components = ((Element) root).getElementsByTagName("componentSpec");
+		for (int i = 0; i < components.getLength(); i++) {
+			Element component = (Element) components.item(i);
+			boolean luminance = i == 0;
+			component.setAttribute("HsamplingFactor", String
+					.valueOf(luminance ? horizontal : 1));
+			component.setAttribute("VsamplingFactor", String
+					.valueOf(luminance ? vertical : 1));
+		}
+		metadata.setFromTree(METADATA_FORMAT, root);
+	}
+}
@@ -0,0 +1,687 @@
+package org.cheminfo.scripting.image;
+
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.AutoThresholder;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.cheminfo.function.scripting.SecureFileManager;
+import org.cheminfo.scripting.image.extraction.ColorCounter;
+import org.cheminfo.scripting.image.extraction.ConnectedComponents;
+import org.cheminfo.scripting.image.extraction.StreamingConnectedComponents;
+import org.cheminfo.scripting.image.filters.TileScheduler;
+import org.json.JSONObject;
+
+/**
+ * An image too large for the heap, memory-mapped from an uncompressed TIFF or
+ * raw file. The pixels are never loaded as a whole: the operations read (and
+ * write) the file by tiles of full rows of at most TILE_SIZE bytes, and only
+ * the tiles being processed are converted to ImageJ processors.
+ *
+ * The file is mapped by segments of whole rows smaller than SEGMENT_SIZE,
+ * a segment being a group of contiguous strips. The supported pixel types are
+ * 8-bit, 16-bit unsigned, 32-bit float and RGB.
+ */
+public class MappedEIJ {
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final int TILE_SIZE = 16 << 20;
+	private static final int TIFF_HEADER_SIZE = 256;
+	// blocks of the mask kept while tracing a contour
+	private static final int BLOCK_SIZE = 256;
+	private static final int MAX_BLOCKS = 16;
+
+	private String basedir;
+	private String key;
+	private IJ ij;
+	private File file;
+	private int width;
+	private int height;
+	private int fileType;
+	private boolean intelByteOrder;
+	private int rowSize;
+
+	private MappedByteBuffer[] segments;
+	private int[] rowSegments;
+	private int[] rowOffsets;
+
+	private MappedEIJ(String basedir, String key, File file, FileInfo info,
+			long[] offsets, boolean writable, IJ ij) throws IOException {
+		if (!RawPixels.isSupported(info.fileType))
+			throw new IOException("Unsupported pixel type: " + info.fileType);
+		this.basedir = basedir;
+		this.key = key;
+		this.file = file;
+		this.ij = ij;
+		width = info.width;
+		height = info.height;
+		fileType = info.fileType;
+		intelByteOrder = info.intelByteOrder;
+		rowSize = width * RawPixels.getBytesPerPixel(fileType);
+		map(offsets, writable);
+	}
+
+	/**
+	 * Maps the rows, given by their offsets in the file, by groups of
+	 * contiguous rows
+	 */
+	private void map(long[] offsets, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw"
+				: "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (offsets[height - 1] + rowSize > channel.size())
+				throw new IOException("The file is too short for a "
+						+ width + "x" + height + " image: " + file);
+			FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+					: FileChannel.MapMode.READ_ONLY;
+			List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+			rowSegments = new int[height];
+			rowOffsets = new int[height];
+			int first = 0;
+			while (first < height) {
+				int last = first + 1;
+				while (last < height
+						&& offsets[last] == offsets[last - 1] + rowSize
+						&& (long) (last - first + 1) * rowSize <= SEGMENT_SIZE)
+					last++;
+				for (int y = first; y < last; y++) {
+					rowSegments[y] = mapped.size();
+					rowOffsets[y] = (y - first) * rowSize;
+				}
+				mapped.add(channel.map(mode, offsets[first], (long) (last - first)
+						* rowSize));
+				first = last;
+			}
+			segments = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+		} finally {
+			// the mappings stay valid once the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps an uncompressed TIFF file, or a raw file described by the options
+	 *
+	 * @param options
+	 *            for raw files {width, height, type:(8, 16, 32 or rgb),
+	 *            offset:0, littleEndian:false}
+	 */
+	static MappedEIJ open(String basedir, String key, File file,
+			JSONObject options, IJ ij) throws IOException {
+		FileInfo info;
+		long[] offsets;
+		if (isTiff(file)) {
+			info = new TiffDecoder(file.getParent() + File.separator, file
+					.getName()).getTiffInfo()[0];
+			if (info.compression != FileInfo.COMPRESSION_NONE)
+				throw new IOException("Compressed TIFF can not be mapped: "
+						+ file);
+			int rowSize = info.width
+					* RawPixels.getBytesPerPixel(info.fileType);
+			int rowsPerStrip = info.rowsPerStrip > 0 ? info.rowsPerStrip
+					: info.height;
+			offsets = new long[info.height];
+			for (int y = 0; y < info.height; y++) {
+				offsets[y] = (info.stripOffsets[y / rowsPerStrip] & 0xffffffffL)
+						+ (long) (y % rowsPerStrip) * rowSize;
+			}
+		} else {
+			info = new FileInfo();
+			info.width = options.getInt("width");
+			info.height = options.getInt("height");
+			info.fileType = getFileType(options.optString("type", "8"));
+			info.intelByteOrder = options.optBoolean("littleEndian", false);
+			long offset = options.optLong("offset", 0);
+			int rowSize = info.width
+					* RawPixels.getBytesPerPixel(info.fileType);
+			offsets = new long[info.height];
+			for (int y = 0; y < info.height; y++) {
+				offsets[y] = offset + (long) y * rowSize;
+			}
+		}
+		return new MappedEIJ(basedir, key, file, info, offsets, false, ij);
+	}
+
+	/**
+	 * Creates a mapped file for a new image, an uncompressed TIFF if the name
+	 * ends with .tif or .tiff, a raw file otherwise
+	 */
+	static MappedEIJ create(String basedir, String key, File file, int width,
+			int height, int fileType, IJ ij) throws IOException {
+		FileInfo info = new FileInfo();
+		info.width = width;
+		info.height = height;
+		info.fileType = fileType;
+		long rowSize = (long) width * RawPixels.getBytesPerPixel(fileType);
+		long offset = 0;
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+			if (rowSize * height > 0xffffffffL)
+				throw new IOException("The image is too large for a TIFF file");
+			writeTiffHeader(file, info);
+			offset = TIFF_HEADER_SIZE;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(offset + rowSize * height);
+		} finally {
+			raf.close();
+		}
+		long[] offsets = new long[height];
+		for (int y = 0; y < height; y++) {
+			offsets[y] = offset + y * rowSize;
+		}
+		return new MappedEIJ(basedir, key, file, info, offsets, true, ij);
+	}
+
+	/**
+	 * Writes the header of a big endian TIFF with a single strip starting at
+	 * TIFF_HEADER_SIZE
+	 */
+	private static void writeTiffHeader(File file, FileInfo info)
+			throws IOException {
+		boolean rgb = info.fileType == FileInfo.RGB;
+		int bits = info.fileType == FileInfo.GRAY16_UNSIGNED ? 16
+				: info.fileType == FileInfo.GRAY32_FLOAT ? 32 : 8;
+		long size = (long) info.width * info.height
+				* RawPixels.getBytesPerPixel(info.fileType);
+		int entries = 10;
+		int bitsOffset = 8 + 2 + entries * 12 + 4;
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeShort(0x4d4d);
+			out.writeShort(42);
+			out.writeInt(8);
+			out.writeShort(entries);
+			writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, info.width);
+			writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, info.height);
+			if (rgb)
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE, 3, bitsOffset);
+			else
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE, 1, bits << 16);
+			writeEntry(out, TiffDecoder.COMPRESSION, 1, 1 << 16);
+			writeEntry(out, TiffDecoder.PHOTO_INTERP, 1, (rgb ? 2 : 1) << 16);
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS, 4, TIFF_HEADER_SIZE);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL, 1,
+					(rgb ? 3 : 1) << 16);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP, 4, info.height);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, (int) size);
+			// sample format: 3 for floating point, 1 for unsigned integers
+			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 1,
+					(bits == 32 ? 3 : 1) << 16);
+			out.writeInt(0);
+			// bits per sample of the RGB images
+			out.writeShort(8);
+			out.writeShort(8);
+			out.writeShort(8);
+			while (out.size() < TIFF_HEADER_SIZE)
+				out.writeByte(0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes an IFD entry with a single value (type 3 for a short stored in
+	 * the upper bytes, 4 for a long) or, for the bits per sample of RGB, the
+	 * offset of 3 shorts
+	 */
+	private static void writeEntry(DataOutputStream out, int tag, int count,
+			int value) throws IOException {
+		out.writeShort(tag);
+		boolean isLong = tag == TiffDecoder.IMAGE_WIDTH
+				|| tag == TiffDecoder.IMAGE_LENGTH
+				|| tag == TiffDecoder.STRIP_OFFSETS
+				|| tag == TiffDecoder.ROWS_PER_STRIP
+				|| tag == TiffDecoder.STRIP_BYTE_COUNT;
+		out.writeShort(isLong ? 4 : 3);
+		out.writeInt(tag == TiffDecoder.BITS_PER_SAMPLE ? count : 1);
+		out.writeInt(value);
+	}
+
+	private static boolean isTiff(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < 4)
+				return false;
+			int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+			return (b0 == 'I' && b1 == 'I' && b2 == 42 && b3 == 0)
+					|| (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 42);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int getFileType(String type) {
+		if (type.equals("8"))
+			return FileInfo.GRAY8;
+		if (type.equals("16"))
+			return FileInfo.GRAY16_UNSIGNED;
+		if (type.equals("32"))
+			return FileInfo.GRAY32_FLOAT;
+		if (type.equalsIgnoreCase("rgb"))
+			return FileInfo.RGB;
+		throw new IllegalArgumentException("Unsupported type: " + type);
+	}
+
+	/**
+	 * Returns the number of rows of the tiles
+	 */
+	private int getTileHeight() {
+		return Math.max(1, Math.min(height, TILE_SIZE / rowSize));
+	}
+
+	/**
+	 * Reads a part of the image
+	 */
+	public ImageProcessor getTile(int x, int y, int width, int height) {
+		ImageProcessor processor = RawPixels.createProcessor(fileType, width,
+				height);
+		int bytesPerPixel = RawPixels.getBytesPerPixel(fileType);
+		byte[] row = new byte[width * bytesPerPixel];
+		for (int i = 0; i < height; i++) {
+			ByteBuffer buffer = segments[rowSegments[y + i]].duplicate();
+			buffer.position(rowOffsets[y + i] + x * bytesPerPixel);
+			buffer.get(row);
+			RawPixels.decode(row, 0, 1, fileType, intelByteOrder, processor
+					.getPixels(), i * width, width);
+		}
+		return processor;
+	}
+
+	/**
+	 * Writes a part of the image, the processor must have the type of the
+	 * image
+	 */
+	public void setTile(int x, int y, ImageProcessor processor) {
+		if (RawPixels.getFileType(processor) != fileType)
+			throw new IllegalArgumentException("The tile must have the type of the image");
+		int width = processor.getWidth();
+		int bytesPerPixel = RawPixels.getBytesPerPixel(fileType);
+		byte[] row = new byte[width * bytesPerPixel];
+		for (int i = 0; i < processor.getHeight(); i++) {
+			RawPixels.encode(processor.getPixels(), i * width, width,
+					fileType, intelByteOrder, row);
+			ByteBuffer buffer = segments[rowSegments[y + i]].duplicate();
+			buffer.position(rowOffsets[y + i] + x * bytesPerPixel);
+			buffer.put(row);
+		}
+	}
+
+	/**
+	 * A task applied to the tiles of full rows of the image
+	 */
+	private interface TileTask {
+		public void process(int y, ImageProcessor tile);
+	}
+
+	/**
+	 * Applies a task to all the tiles, in parallel
+	 */
+	private void forEachTile(final TileTask task) {
+		final int tileHeight = getTileHeight();
+		int nbTiles = (height + tileHeight - 1) / tileHeight;
+		Runnable[] tasks = new Runnable[nbTiles];
+		for (int i = 0; i < nbTiles; i++) {
+			final int y = i * tileHeight;
+			tasks[i] = new Runnable() {
+				public void run() {
+					task.process(y, getTile(0, y, width, Math.min(tileHeight,
+							height - y)));
+				}
+			};
+		}
+		new TileScheduler(ij.getThreads()).runAll(tasks);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns 8, 16, 32 or 24 (RGB)
+	 */
+	public int getBitDepth() {
+		return fileType == FileInfo.RGB ? 24 : RawPixels
+				.getBytesPerPixel(fileType) * 8;
+	}
+
+	/**
+	 * Returns the histogram of the image, computed like EIJ.histogram: 256
+	 * bins for 8-bit and RGB images (the grey values), 65536 bins for 16-bit
+	 * images
+	 */
+	public int[] histogram() {
+		try {
+			if (fileType == FileInfo.GRAY32_FLOAT)
+				throw new IllegalArgumentException("No histogram for 32-bit images");
+			final int[] histogram = new int[fileType == FileInfo.GRAY16_UNSIGNED ? 65536
+					: 256];
+			forEachTile(new TileTask() {
+				public void process(int y, ImageProcessor tile) {
+					int[] partial = tile.getHistogram();
+					synchronized (histogram) {
+						for (int i = 0; i < histogram.length; i++)
+							histogram[i] += partial[i];
+					}
+				}
+			});
+			return histogram;
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::histogram", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of colors of a RGB image, each tile being counted
+	 * separately and the counts merged
+	 * 
+	 * @param options
+	 *            see EIJ.getColor, the approximate method keeps only a small
+	 *            sketch per tile
+	 */
+	public long getColor(Object options) {
+		try {
+			if (fileType != FileInfo.RGB)
+				throw new IllegalArgumentException("Image must be RGB");
+			final ColorCounter counter = new ColorCounter(ij
+					.checkParameter(options));
+			try {
+				forEachTile(new TileTask() {
+					public void process(int y, ImageProcessor tile) {
+						ColorCounter partial = counter.createPartial();
+						partial.add((ColorProcessor) tile, null, 1);
+						counter.merge(partial);
+						partial.release();
+					}
+				});
+				return counter.getCount();
+			} finally {
+				counter.release();
+			}
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::getColor", "Error: " + ex.toString());
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a part of the image as an image in memory. The width and the
+	 * height are reduced to the part inside of the image.
+	 */
+	public EIJ crop(int x, int y, int width, int height) {
+		try {
+			Rectangle bounds = new Rectangle(x, y, width, height)
+					.intersection(new Rectangle(0, 0, this.width, this.height));
+			if (bounds.width <= 0 || bounds.height <= 0)
+				return null;
+			return new EIJ(basedir, key, file.getName(), getTile(bounds.x,
+					bounds.y, bounds.width, bounds.height), ij);
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::crop", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Converts the image to 8-bit in a new mapped file, like EIJ.grey: the
+	 * RGB pixels are weighted and the 16 and 32-bit pixels are scaled from the
+	 * minimum and maximum of the whole image
+	 *
+	 * @param name
+	 *            the new file, .tif or .raw
+	 */
+	public MappedEIJ grey(String name) {
+		try {
+			final MappedEIJ result = create(name, FileInfo.GRAY8);
+			final double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+			if (fileType == FileInfo.GRAY16_UNSIGNED
+					|| fileType == FileInfo.GRAY32_FLOAT) {
+				forEachTile(new TileTask() {
+					public void process(int y, ImageProcessor tile) {
+						tile.resetMinAndMax();
+						synchronized (range) {
+							range[0] = Math.min(range[0], tile.getMin());
+							range[1] = Math.max(range[1], tile.getMax());
+						}
+					}
+				});
+			}
+			forEachTile(new TileTask() {
+				public void process(int y, ImageProcessor tile) {
+					if (fileType == FileInfo.GRAY16_UNSIGNED
+							|| fileType == FileInfo.GRAY32_FLOAT)
+						tile.setMinAndMax(range[0], range[1]);
+					result.setTile(0, y, tile.convertToByte(true));
+				}
+			});
+			return result;
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::grey", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the binary mask of an 8-bit image in a new mapped file: 255 for
+	 * the pixels above the automatic threshold (dark background, like
+	 * EIJ.createMask), 0 for the others
+	 *
+	 * @param name
+	 *            the new file, .tif or .raw
+	 * @param options
+	 *            {method:(Default, Huang, IsoData, Li, MaxEntropy, Mean, ...)}
+	 */
+	public MappedEIJ createMask(String name, Object options) {
+		try {
+			if (fileType != FileInfo.GRAY8)
+				throw new IllegalArgumentException("The mask needs an 8-bit image, use grey first");
+			JSONObject parameters = ij.checkParameter(options);
+			String method = parameters.optString("method", "Default");
+			final int threshold = new AutoThresholder().getThreshold(
+					AutoThresholder.Method.valueOf(method), histogram());
+			final MappedEIJ result = create(name, FileInfo.GRAY8);
+			forEachTile(new TileTask() {
+				public void process(int y, ImageProcessor tile) {
+					byte[] pixels = (byte[]) tile.getPixels();
+					for (int i = 0; i < pixels.length; i++) {
+						pixels[i] = (pixels[i] & 0xff) > threshold ? (byte) 255
+								: 0;
+					}
+					result.setTile(0, y, tile);
+				}
+			});
+			return result;
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::createMask", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	public MappedEIJ createMask(String name) {
+		return createMask(name, null);
+	}
+
+	public Roi[] getRois() {
+		return getRois(null);
+	}
+
+	/**
+	 * Returns the contours of the connected areas of the non zero pixels, like
+	 * EIJ.getRois in the labels mode. The mask is labelled row by row, then
+	 * each selected area is traced in a crop of its bounding box.
+	 *
+	 * @param options
+	 *            {minWidth, maxWidth, minHeight, maxHeight, minSurface,
+	 *            maxSurface, minLength, maxLength, scale, sortBy,
+	 *            connectivity}
+	 */
+	public Roi[] getRois(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			double minLength = parameters.optDouble("minLength", 0);
+			double maxLength = parameters.optDouble("maxLength", Integer.MAX_VALUE);
+			double minWidth = parameters.optDouble("minWidth", 0);
+			double maxWidth = parameters.optDouble("maxWidth", Integer.MAX_VALUE);
+			double minHeight = parameters.optDouble("minHeight", 0);
+			double maxHeight = parameters.optDouble("maxHeight", Integer.MAX_VALUE);
+			double minSurface = parameters.optDouble("minSurface", 0);
+			double maxSurface = parameters.optDouble("maxSurface", Integer.MAX_VALUE);
+			double scale = parameters.optDouble("scale", 1);
+			boolean origin = parameters.optBoolean("origin", false);
+			boolean eightConnected = parameters.optInt("connectivity", 8) != 4;
+
+			StreamingConnectedComponents components = new StreamingConnectedComponents(
+					width, eightConnected);
+			int tileHeight = getTileHeight();
+			byte[] row = new byte[width];
+			for (int y = 0; y < height; y += tileHeight) {
+				ImageProcessor tile = getTile(0, y, width, Math.min(tileHeight,
+						height - y));
+				for (int i = 0; i < tile.getHeight(); i++) {
+					for (int x = 0; x < width; x++) {
+						row[x] = tile.getf(x, i) != 0 ? (byte) 255 : 0;
+					}
+					components.addRow(row);
+				}
+			}
+
+			Vector<Roi> selectedRois = new Vector<Roi>();
+			BlockMask mask = new BlockMask();
+			for (int label = 1; label <= components.getCount(); label++) {
+				Rectangle bounds = components.getBounds(label);
+				double roiWidth = bounds.width * scale;
+				double roiHeight = bounds.height * scale;
+				double surface = components.getArea(label) * scale * scale;
+				if (!(roiWidth >= minWidth && roiWidth <= maxWidth
+						&& roiHeight >= minHeight && roiHeight <= maxHeight
+						&& surface >= minSurface && surface <= maxSurface))
+					continue;
+				Roi roi = EIJ.toSelectionRoi(ConnectedComponents.traceContour(
+						mask, components.getFirstX(label), components
+								.getFirstY(label), eightConnected));
+				double length = roi.getLength() * scale;
+				if (length >= minLength && length <= maxLength) {
+					selectedRois.add(scale != 1 ? EIJ.scaleROI(roi, scale,
+							origin) : roi);
+				}
+			}
+			Roi[] rois = selectedRois.toArray(new Roi[selectedRois.size()]);
+			EIJ.sortRois(rois, parameters);
+			return rois;
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::getRois", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * The non zero pixels of the image, read by blocks of BLOCK_SIZE pixels
+	 * when the contour reaches them. Only the last MAX_BLOCKS blocks are
+	 * kept, so tracing a contour does not depend on the size of the
+	 * component.
+	 */
+	private class BlockMask implements ConnectedComponents.Mask {
+		private Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(
+				MAX_BLOCKS * 2, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > MAX_BLOCKS;
+			}
+		};
+
+		public boolean isInside(int x, int y) {
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				return false;
+			int blockX = x / BLOCK_SIZE;
+			int blockY = y / BLOCK_SIZE;
+			Long key = Long.valueOf((long) blockY * width + blockX);
+			byte[] block = blocks.get(key);
+			if (block == null) {
+				ImageProcessor tile = getTile(blockX * BLOCK_SIZE, blockY
+						* BLOCK_SIZE, Math.min(BLOCK_SIZE, width - blockX
+						* BLOCK_SIZE), Math.min(BLOCK_SIZE, height - blockY
+						* BLOCK_SIZE));
+				block = new byte[BLOCK_SIZE * BLOCK_SIZE];
+				for (int i = 0; i < tile.getHeight(); i++) {
+					for (int j = 0; j < tile.getWidth(); j++) {
+						if (tile.getf(j, i) != 0)
+							block[i * BLOCK_SIZE + j] = 1;
+					}
+				}
+				blocks.put(key, block);
+			}
+			return block[(y % BLOCK_SIZE) * BLOCK_SIZE + x % BLOCK_SIZE] != 0;
+		}
+	}
+
+	/**
+	 * Copies the image in a new file, an uncompressed TIFF if the name ends
+	 * with .tif or .tiff, a raw file otherwise, written through a mapping
+	 */
+	public boolean save(String name) {
+		try {
+			final MappedEIJ result = create(name, fileType);
+			forEachTile(new TileTask() {
+				public void process(int y, ImageProcessor tile) {
+					result.setTile(0, y, tile);
+				}
+			});
+			result.force();
+			return true;
+		} catch (Exception ex) {
+			ij.appendError("MappedEIJ::save", "Error: " + ex.toString());
+		}
+		return false;
+	}
+
+	private MappedEIJ create(String name, int type) throws IOException {
+		String fullName = SecureFileManager.getValidatedFilename(basedir, key,
+				name);
+		if (fullName == null)
+			throw new IOException("Invalid file name: " + name);
+		return create(basedir, key, new File(fullName), width, height, type,
+				ij);
+	}
+
+	/**
+	 * Writes the modified pixels to the file
+	 */
+	public void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Releases the mappings, they are unmapped by the garbage collector
+	 */
+	public void close() {
+		segments = null;
+	}
+
+	public String getFilename() {
+		return file.getPath();
+	}
+}
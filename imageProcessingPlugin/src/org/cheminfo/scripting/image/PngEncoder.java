@@ -0,0 +1,294 @@
+package org.cheminfo.scripting.image;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Writes PNG images with a choice of the compression level, of the row filter
+ * and of the bit depth.
+ *
+ * By default the images are written like FileSaver does, so that ImageJ reads
+ * them back with the same values: the RGB images as 24-bit RGB, the 16-bit
+ * images with a grey LUT as 16-bit grey, and the other images (8-bit, 32-bit
+ * scaled to their display range, 16-bit with a color LUT) as 8-bit grey or
+ * with their palette for a color LUT.
+ *
+ * The 1-bit grey of the masks is only written on request: ImageJ 1.44 reads it
+ * back with the values 0 and 1 instead of 0 and 255.
+ */
+class PngEncoder {
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+			26, 10 };
+	private static final int GREY = 0;
+	private static final int RGB = 2;
+	private static final int PALETTE = 3;
+
+	static final int NONE = 0;
+	static final int SUB = 1;
+	static final int UP = 2;
+	static final int AVERAGE = 3;
+	static final int PAETH = 4;
+	static final int ADAPTIVE = 5;
+
+	private int level = 6;
+	private int filter = ADAPTIVE;
+	private int bitDepth = 0;
+
+	/**
+	 * @param options
+	 *            {compression:(0-9, Default 6), filter:(none, sub, up,
+	 *            average, paeth or adaptive, Default adaptive), bitDepth:(1, 8,
+	 *            16 or 24, Default: depends on the image)}
+	 */
+	PngEncoder(JSONObject options) {
+		level = Math.max(0, Math.min(9, options.optInt("compression", 6)));
+		String name = options.optString("filter", "adaptive");
+		String[] names = { "none", "sub", "up", "average", "paeth", "adaptive" };
+		filter = -1;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name))
+				filter = i;
+		}
+		if (filter < 0)
+			throw new IllegalArgumentException("Unknown PNG filter: " + name);
+		bitDepth = options.optInt("bitDepth", 0);
+	}
+
+	void write(ImageProcessor processor, String filename) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				filename), 65536);
+		try {
+			write(processor, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void write(ImageProcessor processor, OutputStream stream)
+			throws IOException {
+		int width = processor.getWidth();
+		int height = processor.getHeight();
+		int depth = bitDepth > 0 ? bitDepth : getDefaultBitDepth(processor);
+		int colorType;
+		int bits;
+		if (depth == 24) {
+			colorType = RGB;
+			bits = 8;
+			if (!(processor instanceof ColorProcessor))
+				processor = processor.convertToRGB();
+		} else if (depth == 16) {
+			colorType = GREY;
+			bits = 16;
+			if (!(processor instanceof ShortProcessor))
+				processor = processor.convertToShort(false);
+		} else if (depth == 1 || depth == 8) {
+			bits = depth;
+			if (!(processor instanceof ByteProcessor))
+				processor = processor.convertToByte(true);
+			colorType = depth == 8 && isColorLut(processor) ? PALETTE : GREY;
+		} else {
+			throw new IllegalArgumentException("Unsupported PNG bit depth: "
+					+ depth);
+		}
+		int channels = colorType == RGB ? 3 : 1;
+		int bytesPerPixel = Math.max(1, channels * bits / 8);
+		int rowSize = (width * channels * bits + 7) / 8;
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(SIGNATURE);
+		ChunkWriter header = new ChunkWriter("IHDR");
+		header.writeInt(width);
+		header.writeInt(height);
+		header.writeByte(bits);
+		header.writeByte(colorType);
+		header.writeByte(0);
+		header.writeByte(0);
+		header.writeByte(0);
+		header.writeTo(out);
+		if (colorType == PALETTE) {
+			IndexColorModel model = (IndexColorModel) processor
+					.getCurrentColorModel();
+			ChunkWriter palette = new ChunkWriter("PLTE");
+			for (int i = 0; i < model.getMapSize(); i++) {
+				palette.writeByte(model.getRed(i));
+				palette.writeByte(model.getGreen(i));
+				palette.writeByte(model.getBlue(i));
+			}
+			palette.writeTo(out);
+		}
+
+		ChunkWriter data = new ChunkWriter("IDAT");
+		Deflater deflater = new Deflater(level);
+		if (filter != NONE)
+			deflater.setStrategy(Deflater.FILTERED);
+		DeflaterOutputStream compressed = new DeflaterOutputStream(data,
+				deflater, 65536);
+		byte[] previous = new byte[rowSize];
+		byte[] row = new byte[rowSize];
+		byte[][] filtered = new byte[5][rowSize + 1];
+		for (int y = 0; y < height; y++) {
+			getRow(processor, y, bits, row);
+			compressed.write(filterRow(row, previous, bytesPerPixel, filtered));
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		compressed.finish();
+		deflater.end();
+		data.writeTo(out);
+		new ChunkWriter("IEND").writeTo(out);
+		out.flush();
+	}
+
+	private static int getDefaultBitDepth(ImageProcessor processor) {
+		if (processor instanceof ColorProcessor)
+			return 24;
+		if (processor instanceof ShortProcessor && processor.isDefaultLut())
+			return 16;
+		return 8;
+	}
+
+	/**
+	 * Returns true if the 8-bit image has to be written with its palette: a
+	 * color or inverted LUT, or a display range changing the grey levels
+	 */
+	private static boolean isColorLut(ImageProcessor processor) {
+		return processor.isColorLut() || processor.isInvertedLut()
+				|| processor.getMin() != 0 || processor.getMax() != 255;
+	}
+
+	/**
+	 * Packs a row of the image in the PNG sample layout (big endian)
+	 */
+	private static void getRow(ImageProcessor processor, int y, int bits,
+			byte[] row) {
+		int width = processor.getWidth();
+		int offset = y * width;
+		if (processor instanceof ColorProcessor) {
+			int[] pixels = (int[]) processor.getPixels();
+			for (int x = 0, j = 0; x < width; x++, j += 3) {
+				int c = pixels[offset + x];
+				row[j] = (byte) (c >> 16);
+				row[j + 1] = (byte) (c >> 8);
+				row[j + 2] = (byte) c;
+			}
+		} else if (processor instanceof ShortProcessor) {
+			short[] pixels = (short[]) processor.getPixels();
+			for (int x = 0, j = 0; x < width; x++, j += 2) {
+				row[j] = (byte) (pixels[offset + x] >> 8);
+				row[j + 1] = (byte) pixels[offset + x];
+			}
+		} else if (bits == 1) {
+			byte[] pixels = (byte[]) processor.getPixels();
+			Arrays.fill(row, (byte) 0);
+			for (int x = 0; x < width; x++) {
+				if (pixels[offset + x] != 0)
+					row[x >> 3] |= 0x80 >> (x & 7);
+			}
+		} else {
+			System.arraycopy(processor.getPixels(), offset, row, 0, width);
+		}
+	}
+
+	/**
+	 * Returns the filtered row, preceded by its filter type. The adaptive
+	 * filter keeps the filter with the smallest sum of absolute values.
+	 */
+	private byte[] filterRow(byte[] row, byte[] previous, int bpp,
+			byte[][] filtered) {
+		if (filter != ADAPTIVE) {
+			applyFilter(filter, row, previous, bpp, filtered[filter]);
+			return filtered[filter];
+		}
+		int best = 0;
+		long bestSum = Long.MAX_VALUE;
+		for (int type = NONE; type <= PAETH; type++) {
+			byte[] result = filtered[type];
+			applyFilter(type, row, previous, bpp, result);
+			long sum = 0;
+			for (int i = 1; i < result.length; i++) {
+				sum += Math.abs((int) result[i]);
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = type;
+			}
+		}
+		return filtered[best];
+	}
+
+	private static void applyFilter(int type, byte[] row, byte[] previous,
+			int bpp, byte[] result) {
+		result[0] = (byte) type;
+		for (int i = 0; i < row.length; i++) {
+			int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+			int b = previous[i] & 0xff;
+			int x = row[i] & 0xff;
+			int predicted;
+			switch (type) {
+			case SUB:
+				predicted = a;
+				break;
+			case UP:
+				predicted = b;
+				break;
+			case AVERAGE:
+				predicted = (a + b) >> 1;
+				break;
+			case PAETH:
+				int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				predicted = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+				break;
+			default:
+				predicted = 0;
+			}
+			result[i + 1] = (byte) (x - predicted);
+		}
+	}
+
+	/**
+	 * Buffers the content of a chunk to write it with its length and CRC
+	 */
+	private static class ChunkWriter extends DataOutputStream {
+		private String type;
+
+		ChunkWriter(String type) {
+			super(new ByteArrayOutputStream());
+			this.type = type;
+		}
+
+		void writeTo(DataOutputStream stream) throws IOException {
+			flush();
+			byte[] content = ((ByteArrayOutputStream) out)
+					.toByteArray();
+			byte[] name = type.getBytes("US-ASCII");
+			CRC32 crc = new CRC32();
+			crc.update(name);
+			crc.update(content);
+			stream.writeInt(content.length);
+			stream.write(name);
+			stream.write(content);
+			stream.writeInt((int) crc.getValue());
+		}
+	}
+}
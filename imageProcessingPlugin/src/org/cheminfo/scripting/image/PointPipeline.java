@@ -0,0 +1,324 @@
+package org.cheminfo.scripting.image;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cheminfo.scripting.image.filters.BufferPool;
+import org.cheminfo.scripting.image.filters.TileScheduler;
+
+/**
+ * Operations on the pixels of an image that are recorded instead of being
+ * applied, and run together in a single pass when the pixels are needed.
+ *
+ * Every operation only depends on the value of each pixel (colour conversion,
+ * lookup table, channel extraction), so the image is processed by blocks of a
+ * few rows: each block goes through all the operations while it is in the
+ * cache, and only the final result is written to a full image. The operations
+ * use the same formulas as the ImageJ methods used in eager mode, so the
+ * results are identical.
+ *
+ * The blocks and the resulting planes are taken from the shared BufferPool.
+ *
+ * The source is never modified, the pipelines sharing it rely on the image it
+ * comes from to copy it before writing to it. When the histogram of an 8-bit
+ * result of an RGB image is needed, the result is kept and becomes the source
+ * of the following operations, so they do not convert the RGB pixels again.
+ */
+class PointPipeline {
+	/** Number of pixels of a block */
+	private static final int BLOCK_SIZE = 16 * 1024;
+
+	/**
+	 * An operation applied to the values of a block of pixels: packed RGB for
+	 * the RGB images and 0 to 255 for the 8-bit images
+	 */
+	interface Operation {
+		void apply(int[] values, int count);
+
+		/**
+		 * Returns true if the result is an RGB image
+		 */
+		boolean isRGB(boolean rgbInput);
+	}
+
+	private ImageProcessor source;
+	private List<Operation> operations = new ArrayList<Operation>();
+	/** Histogram of the result of the first histogramSize operations */
+	private int[] histogram;
+	private int histogramSize = -1;
+	/** True if the source was created by this pipeline and is not shared */
+	private boolean owned;
+
+	PointPipeline(ImageProcessor source) {
+		this.source = source;
+	}
+
+	/**
+	 * Returns true if the operations on this processor can be recorded: RGB or
+	 * 8-bit grey images without region of interest
+	 */
+	static boolean accepts(ImageProcessor processor) {
+		if (processor.getMask() != null
+				|| processor.getRoi().width != processor.getWidth()
+				|| processor.getRoi().height != processor.getHeight())
+			return false;
+		if (processor instanceof ColorProcessor)
+			return true;
+		return processor instanceof ByteProcessor && !processor.isColorLut()
+				&& !processor.isInvertedLut();
+	}
+
+	PointPipeline copy() {
+		owned = false;
+		PointPipeline copy = new PointPipeline(source);
+		copy.operations.addAll(operations);
+		copy.histogram = histogram;
+		copy.histogramSize = histogramSize;
+		return copy;
+	}
+
+	ImageProcessor getSource() {
+		return source;
+	}
+
+	/**
+	 * Adds an operation. The histogram of an 8-bit result going through a
+	 * lookup table is updated without reading the pixels.
+	 */
+	void add(Operation operation) {
+		if (operation instanceof Table && histogramSize == operations.size()
+				&& !isRGB()) {
+			int[] table = ((Table) operation).table;
+			int[] updated = new int[256];
+			for (int i = 0; i < 256; i++) {
+				updated[table[i] & 0xff] += histogram[i];
+			}
+			histogram = updated;
+			histogramSize++;
+		}
+		operations.add(operation);
+	}
+
+	/**
+	 * Returns true if the result of the operations is an RGB image, otherwise
+	 * it is an 8-bit image
+	 */
+	boolean isRGB() {
+		boolean rgb = source instanceof ColorProcessor;
+		for (Operation operation : operations) {
+			rgb = operation.isRGB(rgb);
+		}
+		return rgb;
+	}
+
+	/**
+	 * Applies the operations and returns the resulting image
+	 */
+	ImageProcessor run(int threads) {
+		if (owned && operations.isEmpty())
+			return source;
+		int width = source.getWidth();
+		int height = source.getHeight();
+		if (isRGB()) {
+			final int[] pixels = BufferPool.getShared().getInts(width * height);
+			process(threads, new BlockTask() {
+				public void process(int band, int offset, int[] values,
+						int count) {
+					System.arraycopy(values, 0, pixels, offset, count);
+				}
+			});
+			return new ColorProcessor(width, height, pixels);
+		}
+		final byte[] pixels = BufferPool.getShared().getBytes(width * height);
+		process(threads, new BlockTask() {
+			public void process(int band, int offset, int[] values, int count) {
+				for (int i = 0; i < count; i++) {
+					pixels[offset + i] = (byte) values[i];
+				}
+			}
+		});
+		return new ByteProcessor(width, height, pixels,
+				operations.isEmpty() ? source.getColorModel() : null);
+	}
+
+	/**
+	 * Returns the histogram of the result, as given by getHistogram() on the
+	 * resulting image (the brightness for the RGB images), without creating it
+	 */
+	int[] getHistogram(int threads) {
+		if (histogramSize == operations.size())
+			return histogram.clone();
+		if (!isRGB() && source instanceof ColorProcessor) {
+			ImageProcessor result = run(threads);
+			source = result;
+			operations.clear();
+			owned = true;
+			histogramSize = -1;
+		}
+		TileScheduler scheduler = new TileScheduler(threads);
+		final int[][] partials = new int[scheduler.getNbBands(source
+				.getHeight())][256];
+		final boolean rgb = isRGB();
+		double[] weights = ColorProcessor.getWeightingFactors();
+		final double rw = weights[0], gw = weights[1], bw = weights[2];
+		process(threads, new BlockTask() {
+			public void process(int band, int offset, int[] values, int count) {
+				int[] partial = partials[band];
+				if (!rgb) {
+					for (int i = 0; i < count; i++)
+						partial[values[i]]++;
+					return;
+				}
+				// same rounding as ColorProcessor.getHistogram
+				for (int i = 0; i < count; i++) {
+					int c = values[i];
+					int r = (c & 0xff0000) >> 16;
+					int g = (c & 0xff00) >> 8;
+					int b = c & 0xff;
+					partial[(int) (r * rw + g * gw + b * bw + 0.5)]++;
+				}
+			}
+		});
+		int[] result = new int[256];
+		for (int[] partial : partials) {
+			for (int i = 0; i < result.length; i++)
+				result[i] += partial[i];
+		}
+		histogram = result;
+		histogramSize = operations.size();
+		return result.clone();
+	}
+
+	private interface BlockTask {
+		/**
+		 * Receives the values of count pixels starting at offset
+		 */
+		void process(int band, int offset, int[] values, int count);
+	}
+
+	private void process(int threads, final BlockTask task) {
+		final int width = source.getWidth();
+		final int rowsPerBlock = Math.max(1, BLOCK_SIZE / width);
+		final Object sourcePixels = source.getPixels();
+		final Operation[] steps = operations
+				.toArray(new Operation[operations.size()]);
+		new TileScheduler(threads).run(source.getHeight(),
+				new TileScheduler.BandTask() {
+					public void process(int band, int yStart, int yEnd) {
+						BufferPool pool = BufferPool.getShared();
+						int[] values = pool.getInts(rowsPerBlock * width);
+						for (int y = yStart; y < yEnd; y += rowsPerBlock) {
+							int offset = y * width;
+							int count = Math.min(rowsPerBlock, yEnd - y) * width;
+							if (sourcePixels instanceof int[]) {
+								System.arraycopy(sourcePixels, offset, values,
+										0, count);
+							} else {
+								byte[] bytes = (byte[]) sourcePixels;
+								for (int i = 0; i < count; i++)
+									values[i] = bytes[offset + i] & 0xff;
+							}
+							for (Operation step : steps) {
+								step.apply(values, count);
+							}
+							task.process(band, offset, values, count);
+						}
+						pool.release(values);
+					}
+				});
+	}
+
+	/**
+	 * Conversion of an RGB image to grey, with the rounding of
+	 * ImageConverter.convertToGray8
+	 */
+	static Operation grey() {
+		return new Operation() {
+			public void apply(int[] values, int count) {
+				double[] weights = ColorProcessor.getWeightingFactors();
+				double rw = weights[0], gw = weights[1], bw = weights[2];
+				for (int i = 0; i < count; i++) {
+					int c = values[i];
+					int r = (c & 0xff0000) >> 16;
+					int g = (c & 0xff00) >> 8;
+					int b = c & 0xff;
+					values[i] = (int) (r * rw + g * gw + b * bw + 0.5) & 0xff;
+				}
+			}
+
+			public boolean isRGB(boolean rgbInput) {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Lookup table applied to the grey levels or to each channel of an RGB
+	 * image, like ImageProcessor.applyTable
+	 */
+	static Operation table(int[] table, boolean rgb) {
+		return new Table(table, rgb);
+	}
+
+	private static class Table implements Operation {
+		private int[] table;
+		private boolean rgb;
+
+		Table(int[] table, boolean rgb) {
+			this.table = table;
+			this.rgb = rgb;
+		}
+
+		public void apply(int[] values, int count) {
+			if (!rgb) {
+				for (int i = 0; i < count; i++)
+					values[i] = table[values[i]] & 0xff;
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				int c = values[i];
+				int r = table[(c & 0xff0000) >> 16];
+				int g = table[(c & 0xff00) >> 8];
+				int b = table[c & 0xff];
+				values[i] = 0xff000000 + (r << 16) + (g << 8) + b;
+			}
+		}
+
+		public boolean isRGB(boolean rgbInput) {
+			return rgb;
+		}
+	}
+
+	/**
+	 * Extraction of a channel of an RGB image: 0 to 2 for red, green and blue,
+	 * 3 to 5 for hue, saturation and brightness like ColorProcessor.getHSB
+	 */
+	static Operation channel(final int channel) {
+		return new Operation() {
+			public void apply(int[] values, int count) {
+				if (channel < 3) {
+					int shift = 16 - 8 * channel;
+					for (int i = 0; i < count; i++)
+						values[i] = (values[i] >> shift) & 0xff;
+					return;
+				}
+				float[] hsb = new float[3];
+				for (int i = 0; i < count; i++) {
+					int c = values[i];
+					Color.RGBtoHSB((c & 0xff0000) >> 16, (c & 0xff00) >> 8,
+							c & 0xff, hsb);
+					values[i] = (int) (hsb[channel - 3] * 255.0) & 0xff;
+				}
+			}
+
+			public boolean isRGB(boolean rgbInput) {
+				return false;
+			}
+		};
+	}
+}
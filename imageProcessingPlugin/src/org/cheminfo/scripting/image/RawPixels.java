@@ -0,0 +1,151 @@
+package org.cheminfo.scripting.image;
+
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Conversions between the rows of uncompressed image files and the pixels of
+ * the ImageJ processors, for the file types GRAY8, COLOR8, GRAY16_UNSIGNED,
+ * GRAY32_FLOAT and RGB (3 interleaved bytes).
+ */
+class RawPixels {
+	private RawPixels() {
+	}
+
+	static boolean isSupported(int fileType) {
+		switch (fileType) {
+		case FileInfo.GRAY8:
+		case FileInfo.COLOR8:
+		case FileInfo.GRAY16_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+		case FileInfo.RGB:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static int getBytesPerPixel(int fileType) {
+		switch (fileType) {
+		case FileInfo.GRAY16_UNSIGNED:
+			return 2;
+		case FileInfo.RGB:
+			return 3;
+		case FileInfo.GRAY32_FLOAT:
+			return 4;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Returns the file type of the pixels of a processor
+	 */
+	static int getFileType(ImageProcessor processor) {
+		if (processor instanceof ColorProcessor)
+			return FileInfo.RGB;
+		if (processor instanceof ShortProcessor)
+			return FileInfo.GRAY16_UNSIGNED;
+		if (processor instanceof FloatProcessor)
+			return FileInfo.GRAY32_FLOAT;
+		return FileInfo.GRAY8;
+	}
+
+	static ImageProcessor createProcessor(int fileType, int width, int height) {
+		switch (fileType) {
+		case FileInfo.RGB:
+			return new ColorProcessor(width, height);
+		case FileInfo.GRAY16_UNSIGNED:
+			return new ShortProcessor(width, height);
+		case FileInfo.GRAY32_FLOAT:
+			return new FloatProcessor(width, height);
+		default:
+			return new ByteProcessor(width, height);
+		}
+	}
+
+	/**
+	 * Converts count pixels of a row, starting at the byte start and taking one
+	 * pixel every step pixels, to the pixels array from the index i
+	 */
+	static void decode(byte[] row, int start, int step, int fileType,
+			boolean intel, Object pixels, int i, int count) {
+		int bytesPerPixel = getBytesPerPixel(fileType);
+		int increment = step * bytesPerPixel;
+		int end = i + count;
+		switch (fileType) {
+		case FileInfo.RGB:
+			int[] rgb = (int[]) pixels;
+			for (int j = start; i < end; i++, j += increment) {
+				rgb[i] = 0xff000000 | ((row[j] & 0xff) << 16)
+						| ((row[j + 1] & 0xff) << 8) | (row[j + 2] & 0xff);
+			}
+			break;
+		case FileInfo.GRAY16_UNSIGNED:
+			short[] shorts = (short[]) pixels;
+			for (int j = start; i < end; i++, j += increment) {
+				shorts[i] = (short) (intel ? (row[j] & 0xff)
+						| ((row[j + 1] & 0xff) << 8) : ((row[j] & 0xff) << 8)
+						| (row[j + 1] & 0xff));
+			}
+			break;
+		case FileInfo.GRAY32_FLOAT:
+			float[] floats = (float[]) pixels;
+			for (int j = start; i < end; i++, j += increment) {
+				int bits = intel ? (row[j] & 0xff) | ((row[j + 1] & 0xff) << 8)
+						| ((row[j + 2] & 0xff) << 16)
+						| ((row[j + 3] & 0xff) << 24) : ((row[j] & 0xff) << 24)
+						| ((row[j + 1] & 0xff) << 16)
+						| ((row[j + 2] & 0xff) << 8) | (row[j + 3] & 0xff);
+				floats[i] = Float.intBitsToFloat(bits);
+			}
+			break;
+		default:
+			byte[] bytes = (byte[]) pixels;
+			for (int j = start; i < end; i++, j += increment) {
+				bytes[i] = row[j];
+			}
+		}
+	}
+
+	/**
+	 * Converts count pixels from the index i of the pixels array to a row of
+	 * the file, from its first byte
+	 */
+	static void encode(Object pixels, int i, int count, int fileType,
+			boolean intel, byte[] row) {
+		int end = i + count;
+		switch (fileType) {
+		case FileInfo.RGB:
+			int[] rgb = (int[]) pixels;
+			for (int j = 0; i < end; i++, j += 3) {
+				row[j] = (byte) (rgb[i] >> 16);
+				row[j + 1] = (byte) (rgb[i] >> 8);
+				row[j + 2] = (byte) rgb[i];
+			}
+			break;
+		case FileInfo.GRAY16_UNSIGNED:
+			short[] shorts = (short[]) pixels;
+			for (int j = 0; i < end; i++, j += 2) {
+				row[j + (intel ? 1 : 0)] = (byte) (shorts[i] >> 8);
+				row[j + (intel ? 0 : 1)] = (byte) shorts[i];
+			}
+			break;
+		case FileInfo.GRAY32_FLOAT:
+			float[] floats = (float[]) pixels;
+			for (int j = 0; i < end; i++, j += 4) {
+				int bits = Float.floatToIntBits(floats[i]);
+				for (int b = 0; b < 4; b++) {
+					row[j + (intel ? b : 3 - b)] = (byte) (bits >> (8 * b));
+				}
+			}
+			break;
+		default:
+			System.arraycopy(pixels, i, row, 0, count);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.cheminfo.scripting.image;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Result of EIJ.saveAsync, completed by the background writer
+ */
+public class SaveHandle {
+	private String filename;
+	private CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean saved;
+	private volatile String error;
+
+	SaveHandle(String filename) {
+		this.filename = filename;
+	}
+
+	void complete(boolean saved, String error) {
+		this.saved = saved;
+		this.error = error;
+		done.countDown();
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the image is written
+	 * 
+	 * @return true if it was saved
+	 */
+	public boolean waitFor() {
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return saved;
+	}
+
+	/**
+	 * Returns the error of the save, null if it succeeded or is not done
+	 */
+	public String getError() {
+		return error;
+	}
+}
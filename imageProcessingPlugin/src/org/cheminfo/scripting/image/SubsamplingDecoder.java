@@ -0,0 +1,187 @@
+package org.cheminfo.scripting.image;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes a reduced resolution version of an image file, keeping one pixel out
+ * of factor in each direction, without decoding the full image.
+ *
+ * JPEG, PNG, BMP and GIF are read by ImageIO with a source subsampling. The
+ * uncompressed TIFF are read row by row, only the kept rows being read from
+ * the strips. The other images are decoded by ImageJ and then reduced.
+ */
+class SubsamplingDecoder {
+	private File file;
+	private int factor = 1;
+	private int sourceWidth;
+	private int sourceHeight;
+
+	SubsamplingDecoder(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Decodes the image reduced by the subsampling factor, or by the smallest
+	 * factor that fits the image in maxWidth x maxHeight
+	 *
+	 * @param subsample
+	 *            factor, 0 to compute it from the maximal size
+	 * @param maxWidth
+	 *            0 for no limit
+	 * @param maxHeight
+	 *            0 for no limit
+	 */
+	ImageProcessor decode(int subsample, int maxWidth, int maxHeight)
+			throws IOException {
+		if (isTiff()) {
+			FileInfo info = new TiffDecoder(file.getParent() + File.separator,
+					file.getName()).getTiffInfo()[0];
+			setSize(info.width, info.height, subsample, maxWidth, maxHeight);
+			if (isSupported(info))
+				return readTiff(info);
+			return reduce(new ImagePlus(file.getPath()).getProcessor());
+		}
+
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null)
+			throw new IOException("Could not read " + file);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) {
+				// not an ImageIO format
+				ImageProcessor processor = new ImagePlus(file.getPath())
+						.getProcessor();
+				if (processor == null)
+					throw new IOException("Unsupported image: " + file);
+				setSize(processor.getWidth(), processor.getHeight(),
+						subsample, maxWidth, maxHeight);
+				return reduce(processor);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				setSize(reader.getWidth(0), reader.getHeight(0), subsample,
+						maxWidth, maxHeight);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(factor, factor, 0, 0);
+				BufferedImage image = reader.read(0, param);
+				// converted like ImageJ does for the images read by ImageIO
+				return new ImagePlus(file.getName(), image).getProcessor();
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void setSize(int width, int height, int subsample, int maxWidth,
+			int maxHeight) {
+		sourceWidth = width;
+		sourceHeight = height;
+		factor = Math.max(1, subsample);
+		if (subsample <= 0) {
+			if (maxWidth > 0)
+				factor = Math.max(factor, (width + maxWidth - 1) / maxWidth);
+			if (maxHeight > 0)
+				factor = Math.max(factor, (height + maxHeight - 1) / maxHeight);
+		}
+	}
+
+	private boolean isTiff() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < 4)
+				return false;
+			int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+			return (b0 == 'I' && b1 == 'I' && b2 == 42 && b3 == 0)
+					|| (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 42);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isSupported(FileInfo info) {
+		return info.compression == FileInfo.COMPRESSION_NONE
+				&& info.stripOffsets != null
+				&& RawPixels.isSupported(info.fileType);
+	}
+
+	/**
+	 * Reads the kept rows of an uncompressed TIFF, one row at a time
+	 */
+	private ImageProcessor readTiff(FileInfo info) throws IOException {
+		int width = (sourceWidth + factor - 1) / factor;
+		int height = (sourceHeight + factor - 1) / factor;
+		int rowSize = sourceWidth * RawPixels.getBytesPerPixel(info.fileType);
+		int rowsPerStrip = info.rowsPerStrip > 0 ? info.rowsPerStrip
+				: sourceHeight;
+		byte[] row = new byte[rowSize];
+		ImageProcessor processor = RawPixels.createProcessor(info.fileType,
+				width, height);
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			for (int y = 0; y < height; y++) {
+				int sourceY = y * factor;
+				int strip = sourceY / rowsPerStrip;
+				in.seek((info.stripOffsets[strip] & 0xffffffffL)
+						+ (long) (sourceY % rowsPerStrip) * rowSize);
+				in.readFully(row);
+				RawPixels.decode(row, 0, factor, info.fileType,
+						info.intelByteOrder, processor.getPixels(), y * width,
+						width);
+			}
+		} finally {
+			in.close();
+		}
+		if (info.fileType == FileInfo.GRAY8 && info.whiteIsZero)
+			processor.invert();
+		if (info.fileType == FileInfo.COLOR8 && info.lutSize > 0)
+			processor.setColorModel(new IndexColorModel(8, info.lutSize,
+					info.reds, info.greens, info.blues));
+		processor.resetMinAndMax();
+		return processor;
+	}
+
+	/**
+	 * Keeps one pixel out of factor of an image decoded at full resolution
+	 */
+	private ImageProcessor reduce(ImageProcessor processor) {
+		if (factor == 1)
+			return processor;
+		processor.setInterpolationMethod(ImageProcessor.NONE);
+		return processor.resize((sourceWidth + factor - 1) / factor,
+				(sourceHeight + factor - 1) / factor);
+	}
+
+	/**
+	 * Returns the subsampling factor used by the last decode
+	 */
+	int getFactor() {
+		return factor;
+	}
+
+	int getSourceWidth() {
+		return sourceWidth;
+	}
+
+	int getSourceHeight() {
+		return sourceHeight;
+	}
+}
@@ -0,0 +1,367 @@
+package org.cheminfo.scripting.image;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ImageProcessor;
+
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cheminfo.scripting.image.filters.TileScheduler;
+import org.json.JSONObject;
+
+/**
+ * Writes compressed TIFF images (big endian, one image, chunky RGB). The image
+ * is cut in strips that are compressed in parallel with LZW or PackBits,
+ * optionally after a horizontal differencing predictor.
+ *
+ * Only the compressions that ImageJ 1.44 reads back are written, deflate is
+ * refused since IJ.load could not open the file.
+ */
+class TiffEncoder {
+	static final int NONE = 1;
+	static final int LZW = 5;
+	static final int PACK_BITS = 32773;
+
+	/** Size of the uncompressed strips */
+	private static final int STRIP_SIZE = 64 * 1024;
+
+	private int compression;
+	private boolean predictor;
+	private int threads;
+
+	/**
+	 * @param options
+	 *            {compression:(none, lzw or packbits), predictor:(horizontal
+	 *            differencing for lzw, Default true)}
+	 * @param threads
+	 *            number of threads compressing the strips, 0 for all the
+	 *            processors
+	 */
+	TiffEncoder(JSONObject options, int threads) {
+		String name = options.optString("compression", "none");
+		if (name.equalsIgnoreCase("none"))
+			compression = NONE;
+		else if (name.equalsIgnoreCase("deflate")
+				|| name.equalsIgnoreCase("zip"))
+			throw new IllegalArgumentException(
+					"Deflate TIFF can not be read back by ImageJ 1.44, use lzw or packbits");
+		else if (name.equalsIgnoreCase("lzw"))
+			compression = LZW;
+		else if (name.equalsIgnoreCase("packbits"))
+			compression = PACK_BITS;
+		else
+			throw new IllegalArgumentException("Unknown TIFF compression: "
+					+ name);
+		predictor = options.optBoolean("predictor", true)
+				&& compression == LZW;
+		this.threads = threads;
+	}
+
+	void write(ImageProcessor processor, String filename) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				filename), 65536);
+		try {
+			write(processor, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void write(final ImageProcessor processor, OutputStream stream)
+			throws IOException {
+		final int width = processor.getWidth();
+		int height = processor.getHeight();
+		final int fileType = RawPixels.getFileType(processor);
+		final int bytesPerPixel = RawPixels.getBytesPerPixel(fileType);
+		final int rowSize = width * bytesPerPixel;
+		final int rowsPerStrip = Math.max(1, Math.min(height, STRIP_SIZE
+				/ rowSize));
+		final int nbStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+		// no predictor on floating point values
+		final boolean differencing = predictor
+				&& fileType != FileInfo.GRAY32_FLOAT;
+
+		final byte[][] strips = new byte[nbStrips][];
+		Runnable[] tasks = new Runnable[nbStrips];
+		for (int i = 0; i < nbStrips; i++) {
+			final int strip = i;
+			final int y = i * rowsPerStrip;
+			final int rows = Math.min(rowsPerStrip, height - y);
+			tasks[i] = new Runnable() {
+				public void run() {
+					byte[] raw = new byte[rows * rowSize];
+					byte[] row = new byte[rowSize];
+					for (int r = 0; r < rows; r++) {
+						RawPixels.encode(processor.getPixels(), (y + r) * width,
+								width, fileType, false, row);
+						if (differencing)
+							difference(row, fileType);
+						System.arraycopy(row, 0, raw, r * rowSize, rowSize);
+					}
+					strips[strip] = compress(raw, rowSize);
+				}
+			};
+		}
+		new TileScheduler(threads).runAll(tasks);
+
+		IndexColorModel palette = null;
+		if (fileType == FileInfo.GRAY8
+				&& (processor.isColorLut() || processor.isInvertedLut()))
+			palette = (IndexColorModel) processor.getColorModel();
+		writeFile(stream, width, height, fileType, rowsPerStrip, strips,
+				differencing, palette);
+	}
+
+	/**
+	 * Replaces the samples of a row by their difference with the previous
+	 * sample of the same channel
+	 */
+	private static void difference(byte[] row, int fileType) {
+		if (fileType == FileInfo.GRAY16_UNSIGNED) {
+			for (int j = row.length - 2; j >= 2; j -= 2) {
+				int value = ((row[j] & 0xff) << 8) | (row[j + 1] & 0xff);
+				int previous = ((row[j - 2] & 0xff) << 8) | (row[j - 1] & 0xff);
+				int difference = value - previous;
+				row[j] = (byte) (difference >> 8);
+				row[j + 1] = (byte) difference;
+			}
+		} else {
+			int step = fileType == FileInfo.RGB ? 3 : 1;
+			for (int j = row.length - 1; j >= step; j--) {
+				row[j] -= row[j - step];
+			}
+		}
+	}
+
+	private byte[] compress(byte[] raw, int rowSize) {
+		switch (compression) {
+		case LZW:
+			return lzw(raw);
+		case PACK_BITS:
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+			// PackBits runs do not cross the rows
+			for (int start = 0; start < raw.length; start += rowSize) {
+				packBits(raw, start, rowSize, out);
+			}
+			return out.toByteArray();
+		default:
+			return raw;
+		}
+	}
+
+	/**
+	 * TIFF LZW: codes written most significant bit first, starting with 9
+	 * bits, the readers growing the width one code early, and the table being
+	 * cleared at 4094 codes
+	 */
+	static byte[] lzw(byte[] raw) {
+		final int clear = 256;
+		final int end = 257;
+		BitWriter out = new BitWriter(raw.length / 2);
+		// table of the codes of (prefix code, byte), open addressing
+		int tableSize = 8192;
+		int[] keys = new int[tableSize];
+		int[] codes = new int[tableSize];
+		int next = 258;
+		int width = 9;
+		out.write(clear, width);
+		if (raw.length == 0) {
+			out.write(end, width);
+			return out.toByteArray();
+		}
+		Arrays.fill(keys, -1);
+		int prefix = raw[0] & 0xff;
+		for (int i = 1; i < raw.length; i++) {
+			int value = raw[i] & 0xff;
+			int key = (prefix << 8) | value;
+			int slot = (key * 0x9E3779B1 >>> 19) & (tableSize - 1);
+			while (keys[slot] != -1 && keys[slot] != key)
+				slot = (slot + 1) & (tableSize - 1);
+			if (keys[slot] == key) {
+				prefix = codes[slot];
+				continue;
+			}
+			out.write(prefix, width);
+			keys[slot] = key;
+			codes[slot] = next++;
+			if (next == 4094) {
+				out.write(clear, width);
+				Arrays.fill(keys, -1);
+				next = 258;
+				width = 9;
+			} else if (next == 1 << width) {
+				width++;
+			}
+			prefix = value;
+		}
+		out.write(prefix, width);
+		if (++next == 1 << width)
+			width++;
+		out.write(end, width);
+		return out.toByteArray();
+	}
+
+	private static class BitWriter extends ByteArrayOutputStream {
+		private int buffer;
+		private int count;
+
+		BitWriter(int size) {
+			super(Math.max(32, size));
+		}
+
+		void write(int code, int width) {
+			buffer = (buffer << width) | code;
+			count += width;
+			while (count >= 8) {
+				write(buffer >>> (count - 8));
+				count -= 8;
+			}
+			buffer &= (1 << count) - 1;
+		}
+
+		public synchronized byte[] toByteArray() {
+			if (count > 0) {
+				write(buffer << (8 - count));
+				count = 0;
+			}
+			return super.toByteArray();
+		}
+	}
+
+	/**
+	 * PackBits: runs of 2 to 128 equal bytes as (1 - n, byte), the other
+	 * bytes as literals (n - 1, n bytes)
+	 */
+	static void packBits(byte[] raw, int start, int length,
+			ByteArrayOutputStream out) {
+		int i = start;
+		int end = start + length;
+		while (i < end) {
+			int run = 1;
+			while (i + run < end && run < 128 && raw[i + run] == raw[i])
+				run++;
+			if (run > 1) {
+				out.write(1 - run);
+				out.write(raw[i]);
+				i += run;
+				continue;
+			}
+			int literal = 1;
+			while (i + literal < end && literal < 128
+					&& (i + literal + 1 >= end || raw[i + literal] != raw[i + literal + 1]))
+				literal++;
+			out.write(literal - 1);
+			out.write(raw, i, literal);
+			i += literal;
+		}
+	}
+
+	private void writeFile(OutputStream stream, int width, int height,
+			int fileType, int rowsPerStrip, byte[][] strips,
+			boolean differencing, IndexColorModel palette) throws IOException {
+		boolean rgb = fileType == FileInfo.RGB;
+		int bits = fileType == FileInfo.GRAY16_UNSIGNED ? 16
+				: fileType == FileInfo.GRAY32_FLOAT ? 32 : 8;
+		List<int[]> entries = new ArrayList<int[]>();
+		// {tag, type, count, value or offset of the data}
+		int nbEntries = 11 + (differencing ? 1 : 0) + (palette != null ? 1 : 0);
+		int ifdSize = 2 + nbEntries * 12 + 4;
+		int dataOffset = 8 + ifdSize;
+
+		ByteArrayOutputStream extra = new ByteArrayOutputStream();
+		DataOutputStream extraData = new DataOutputStream(extra);
+		entries.add(new int[] { TiffDecoder.IMAGE_WIDTH, 4, 1, width });
+		entries.add(new int[] { TiffDecoder.IMAGE_LENGTH, 4, 1, height });
+		if (rgb) {
+			entries.add(new int[] { TiffDecoder.BITS_PER_SAMPLE, 3, 3,
+					dataOffset + extra.size() });
+			for (int i = 0; i < 3; i++)
+				extraData.writeShort(8);
+		} else {
+			entries.add(new int[] { TiffDecoder.BITS_PER_SAMPLE, 3, 1,
+					bits << 16 });
+		}
+		entries.add(new int[] { TiffDecoder.COMPRESSION, 3, 1,
+				compression << 16 });
+		int photometric = rgb ? 2 : palette != null ? 3 : 1;
+		entries.add(new int[] { TiffDecoder.PHOTO_INTERP, 3, 1,
+				photometric << 16 });
+
+		int[] stripOffsetsEntry = { TiffDecoder.STRIP_OFFSETS, 4,
+				strips.length, 0 };
+		entries.add(stripOffsetsEntry);
+		entries.add(new int[] { TiffDecoder.SAMPLES_PER_PIXEL, 3, 1,
+				(rgb ? 3 : 1) << 16 });
+		entries.add(new int[] { TiffDecoder.ROWS_PER_STRIP, 4, 1,
+				rowsPerStrip });
+		int[] stripCountsEntry = { TiffDecoder.STRIP_BYTE_COUNT, 4,
+				strips.length, 0 };
+		entries.add(stripCountsEntry);
+		entries.add(new int[] { TiffDecoder.PLANAR_CONFIGURATION, 3, 1,
+				1 << 16 });
+		if (differencing)
+			entries.add(new int[] { TiffDecoder.PREDICTOR, 3, 1, 2 << 16 });
+		if (palette != null) {
+			entries.add(new int[] { TiffDecoder.COLOR_MAP, 3, 3 * 256,
+					dataOffset + extra.size() });
+			int size = palette.getMapSize();
+			for (int channel = 0; channel < 3; channel++) {
+				for (int i = 0; i < 256; i++) {
+					int value = i >= size ? 0 : channel == 0 ? palette
+							.getRed(i) : channel == 1 ? palette.getGreen(i)
+							: palette.getBlue(i);
+					extraData.writeShort(value * 257);
+				}
+			}
+		}
+		// sample format: 3 for floating point, 1 for unsigned integers
+		entries.add(new int[] { TiffDecoder.SAMPLE_FORMAT, 3, 1,
+				(bits == 32 ? 3 : 1) << 16 });
+
+		// the offsets and the counts of the strips, then the strips
+		int offsetsOffset = dataOffset + extra.size();
+		int countsOffset = offsetsOffset + 4 * strips.length;
+		int stripOffset = countsOffset + 4 * strips.length;
+		if (strips.length == 1) {
+			stripOffset = offsetsOffset;
+			stripOffsetsEntry[3] = stripOffset;
+			stripCountsEntry[3] = strips[0].length;
+		} else {
+			stripOffsetsEntry[3] = offsetsOffset;
+			stripCountsEntry[3] = countsOffset;
+			long offset = stripOffset;
+			for (byte[] strip : strips) {
+				extraData.writeInt((int) offset);
+				offset += strip.length;
+			}
+			for (byte[] strip : strips)
+				extraData.writeInt(strip.length);
+		}
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeShort(0x4d4d);
+		out.writeShort(42);
+		out.writeInt(8);
+		out.writeShort(entries.size());
+		for (int[] entry : entries) {
+			out.writeShort(entry[0]);
+			out.writeShort(entry[1]);
+			out.writeInt(entry[2]);
+			out.writeInt(entry[3]);
+		}
+		out.writeInt(0);
+		extra.writeTo(out);
+		for (byte[] strip : strips)
+			out.write(strip);
+		out.flush();
+	}
+}
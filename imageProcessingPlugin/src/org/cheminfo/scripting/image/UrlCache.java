@@ -0,0 +1,313 @@
+package org.cheminfo.scripting.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Disk cache of the images loaded from http(s) URLs.
+ *
+ * The body of a response is streamed to a file named after its SHA-1 digest,
+ * so two URLs returning the same image share the same file. An index (the
+ * file index.json of the cache folder) associates each URL to its file and to
+ * the ETag and Last-Modified headers of the response. A URL already in the
+ * cache is revalidated with a conditional request (If-None-Match,
+ * If-Modified-Since) and the cached file is used if the server answers 304
+ * Not Modified.
+ *
+ * The folder and the maximal size of the cache are the same for all the
+ * scripts and are set by the deployment, the scripts only choose the limits
+ * of their own downloads (size and time). The least recently used files are
+ * removed when the cache grows larger than its maximal size.
+ *
+ * The downloads run concurrently, a URL being fetched by one thread at a
+ * time. The lock of the cache only protects the index.
+ */
+class UrlCache {
+	private static final String INDEX = "index.json";
+	private static final String CACHED_FILE = "[0-9a-f]{40}(\\.\\w+)?";
+	private static final int BUFFER_SIZE = 65536;
+	private static final int LOCKS = 64;
+
+	private final File directory;
+	private final long maxSize;
+	/** The URLs are fetched one at a time by hash of the URL */
+	private final Object[] locks = new Object[LOCKS];
+
+	private JSONObject index;
+	private long downloads = 0;
+	private long revalidations = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxSize
+	 *            maximal size of the cache folder in bytes
+	 */
+	UrlCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		for (int i = 0; i < LOCKS; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Returns the cached file of a URL, downloading it if it is not in the
+	 * cache or if it changed on the server
+	 *
+	 * @param maxDownloadSize
+	 *            maximal size of the image in bytes
+	 * @param connectTimeout
+	 *            in milliseconds
+	 * @param readTimeout
+	 *            maximal time waiting for data in milliseconds
+	 */
+	File fetch(String url, long maxDownloadSize, int connectTimeout,
+			int readTimeout) throws IOException {
+		synchronized (locks[(url.hashCode() & 0x7fffffff) % LOCKS]) {
+			File cached = null;
+			String etag = null;
+			String lastModified = null;
+			synchronized (this) {
+				JSONObject entry = getIndex().optJSONObject(url);
+				if (entry != null) {
+					cached = new File(directory, entry.getString("file"));
+					etag = entry.optString("etag", null);
+					lastModified = entry.optString("lastModified", null);
+				}
+			}
+			if (cached != null && !cached.isFile()) {
+				cached = null;
+				etag = null;
+				lastModified = null;
+			}
+
+			HttpURLConnection connection = (HttpURLConnection) new URL(url)
+					.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			if (etag != null)
+				connection.setRequestProperty("If-None-Match", etag);
+			if (lastModified != null)
+				connection.setRequestProperty("If-Modified-Since",
+						lastModified);
+			try {
+				int status = connection.getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED
+						&& cached != null) {
+					synchronized (this) {
+						revalidations++;
+					}
+					cached.setLastModified(System.currentTimeMillis());
+					return cached;
+				}
+				if (status != HttpURLConnection.HTTP_OK)
+					throw new IOException("Unexpected response " + status
+							+ " for " + url);
+				long length = connection.getContentLength();
+				if (length > maxDownloadSize)
+					throw new IOException("The image is larger than "
+							+ maxDownloadSize + " bytes: " + url);
+				File file = download(connection.getInputStream(),
+						getExtension(url), maxDownloadSize);
+
+				JSONObject entry = new JSONObject();
+				entry.put("file", file.getName());
+				if (connection.getHeaderField("ETag") != null)
+					entry.put("etag", connection.getHeaderField("ETag"));
+				if (connection.getHeaderField("Last-Modified") != null)
+					entry.put("lastModified", connection
+							.getHeaderField("Last-Modified"));
+				synchronized (this) {
+					downloads++;
+					getIndex().put(url, entry);
+					evict(file);
+					saveIndex();
+				}
+				return file;
+			} finally {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Streams a body to a temporary file while computing its digest, then
+	 * renames it after the digest
+	 */
+	private File download(InputStream stream, String extension,
+			long maxDownloadSize) throws IOException {
+		directory.mkdirs();
+		File temporary = File.createTempFile("download", ".tmp", directory);
+		MessageDigest digest = getDigest();
+		OutputStream out = new FileOutputStream(temporary);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long size = 0;
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				size += read;
+				if (size > maxDownloadSize)
+					throw new IOException("The image is larger than "
+							+ maxDownloadSize + " bytes");
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException ex) {
+			out.close();
+			temporary.delete();
+			throw ex;
+		} finally {
+			out.close();
+			stream.close();
+		}
+
+		StringBuilder name = new StringBuilder();
+		for (byte b : digest.digest()) {
+			name.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		}
+		name.append(extension);
+		File file = new File(directory, name.toString());
+		if (file.exists()) {
+			// same content as an image already in the cache
+			temporary.delete();
+			file.setLastModified(System.currentTimeMillis());
+		} else if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Could not write the cache file " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * Removes the least recently used files (except the one just fetched)
+	 * and their entries until the cache is smaller than maxSize
+	 */
+	private void evict(File keep) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		if (size <= maxSize)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				long difference = file1.lastModified() - file2.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (File file : files) {
+			if (size <= maxSize)
+				break;
+			// only the downloaded images are removed
+			if (file.equals(keep) || !file.getName().matches(CACHED_FILE))
+				continue;
+			size -= file.length();
+			file.delete();
+			evictions++;
+			for (Iterator<?> urls = index.keys(); urls.hasNext();) {
+				JSONObject entry = index.getJSONObject((String) urls.next());
+				if (entry.getString("file").equals(file.getName()))
+					urls.remove();
+			}
+		}
+	}
+
+	private JSONObject getIndex() throws IOException {
+		if (index != null)
+			return index;
+		File file = new File(directory, INDEX);
+		if (file.isFile()) {
+			Reader reader = new InputStreamReader(new FileInputStream(file),
+					"UTF-8");
+			try {
+				index = new JSONObject(new JSONTokener(reader));
+			} catch (RuntimeException ex) {
+				// a corrupted index only loses the cached entries
+				index = new JSONObject();
+			} finally {
+				reader.close();
+			}
+		} else {
+			index = new JSONObject();
+		}
+		return index;
+	}
+
+	private void saveIndex() throws IOException {
+		File temporary = new File(directory, INDEX + ".tmp");
+		Writer writer = new OutputStreamWriter(
+				new FileOutputStream(temporary), "UTF-8");
+		try {
+			writer.write(index.toString());
+		} finally {
+			writer.close();
+		}
+		File file = new File(directory, INDEX);
+		file.delete();
+		if (!temporary.renameTo(file))
+			throw new IOException("Could not write the cache index " + file);
+	}
+
+	/**
+	 * Returns the extension of the path of a URL (with the dot), that ImageJ
+	 * uses to recognize some formats
+	 */
+	private static String getExtension(String url) {
+		String path = url.replaceFirst("[?#].*$", "");
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash || path.length() - dot > 6)
+			return "";
+		return path.substring(dot).toLowerCase();
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the counters {downloads, revalidations, evictions, urls,
+	 * directory}
+	 */
+	synchronized JSONObject getStatistics() throws IOException {
+		JSONObject statistics = new JSONObject();
+		statistics.put("downloads", downloads);
+		statistics.put("revalidations", revalidations);
+		statistics.put("evictions", evictions);
+		statistics.put("urls", getIndex().length());
+		statistics.put("directory", directory.getPath());
+		return statistics;
+	}
+}
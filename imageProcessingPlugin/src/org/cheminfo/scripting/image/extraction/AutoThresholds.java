@@ -0,0 +1,193 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import org.cheminfo.scripting.image.filters.TileScheduler;
+import org.json.JSONObject;
+
+/**
+ * Automatic thresholds of a grey image for all the methods of
+ * AutoThresholder, computed from a single histogram, and the binary masks
+ * they select.
+ *
+ * The thresholds are the ones of ImageProcessor.setAutoThreshold(method,
+ * true) (dark background): the histogram of the 16 and 32-bit images is the
+ * one of their 8-bit conversion scaled from the minimum to the maximum, and
+ * the threshold returned is the lowest value of the mask, or the highest one
+ * for an inverted LUT. The histogram of an 8-bit image is filled by bands in
+ * parallel, one partial histogram per band.
+ *
+ * The mask is an 8-bit image (255 in the mask, 0 elsewhere) with the
+ * threshold 255-255, so that it can be used like an image thresholded by
+ * ImageJ.
+ */
+public class AutoThresholds {
+	private int[] histogram;
+	private ImageProcessor processor;
+	private boolean inverted;
+	/** Range of the values scaled to the histogram, for 16 and 32-bit images */
+	private boolean scaled;
+	private double min;
+	private double max;
+	private int threads;
+
+	/**
+	 * @param threads
+	 *            number of threads, 0 for all the processors
+	 */
+	public AutoThresholds(ImageProcessor processor, int threads) {
+		if (processor instanceof ColorProcessor)
+			throw new IllegalArgumentException(
+					"The threshold needs a grey image, use grey first");
+		this.processor = processor;
+		this.threads = threads;
+		inverted = processor.isInvertedLut();
+		if (processor instanceof ByteProcessor) {
+			histogram = getHistogram((byte[]) processor.getPixels(), processor
+					.getWidth(), processor.getHeight(), threads);
+		} else {
+			// the display range of the image is not changed
+			ImageProcessor copy = processor instanceof ShortProcessor ? new ShortProcessor(
+					processor.getWidth(), processor.getHeight(),
+					(short[]) processor.getPixels(), processor.getColorModel())
+					: new FloatProcessor(processor.getWidth(), processor
+							.getHeight(), (float[]) processor.getPixels(),
+							processor.getColorModel());
+			copy.resetMinAndMax();
+			scaled = true;
+			min = copy.getMin();
+			max = copy.getMax();
+			ImageProcessor bytes = copy.convertToByte(true);
+			histogram = getHistogram((byte[]) bytes.getPixels(), bytes
+					.getWidth(), bytes.getHeight(), threads);
+		}
+	}
+
+	/**
+	 * Thresholds of the histogram of an 8-bit image with a normal LUT, the
+	 * masks can not be created
+	 */
+	public AutoThresholds(int[] histogram) {
+		if (histogram.length != 256)
+			throw new IllegalArgumentException(
+					"The histogram must have 256 values. Entered: "
+							+ histogram.length);
+		this.histogram = histogram.clone();
+	}
+
+	private static int[] getHistogram(final byte[] pixels, final int width,
+			int height, int threads) {
+		TileScheduler scheduler = new TileScheduler(threads);
+		final int[][] partials = new int[scheduler.getNbBands(height)][256];
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				int[] partial = partials[band];
+				for (int i = yStart * width; i < yEnd * width; i++) {
+					partial[pixels[i] & 0xff]++;
+				}
+			}
+		});
+		int[] histogram = new int[256];
+		for (int[] partial : partials) {
+			for (int i = 0; i < 256; i++)
+				histogram[i] += partial[i];
+		}
+		return histogram;
+	}
+
+	public int[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * Returns the level (0-255) of the histogram given by the method, the
+	 * pixels above it being the mask
+	 */
+	public int getLevel(AutoThresholder.Method method) {
+		// some methods modify the histogram they are given
+		return new AutoThresholder().getThreshold(method, histogram.clone());
+	}
+
+	/**
+	 * Returns the lowest value of the mask given by the method, or the
+	 * highest one for an inverted LUT, in the unit of the pixels
+	 */
+	public double getThreshold(AutoThresholder.Method method) {
+		int level = getLevel(method);
+		double threshold = inverted ? level : Math.min(level + 1, 255);
+		if (!scaled)
+			return threshold;
+		return max > min ? min + threshold / 255 * (max - min) : min;
+	}
+
+	/**
+	 * Returns the thresholds of all the methods
+	 *
+	 * @return {Default:threshold, Huang:threshold, ...}
+	 */
+	public JSONObject getThresholds() {
+		JSONObject thresholds = new JSONObject();
+		for (AutoThresholder.Method method : AutoThresholder.Method.values()) {
+			thresholds.put(method.name(), getThreshold(method));
+		}
+		return thresholds;
+	}
+
+	/**
+	 * Returns the mask of the pixels above or equal to the threshold (below or
+	 * equal for an inverted LUT)
+	 */
+	public ByteProcessor createMask(double threshold) {
+		if (processor == null)
+			throw new IllegalStateException("No image to create the mask from");
+		final int width = processor.getWidth();
+		int height = processor.getHeight();
+		final byte[] mask = new byte[width * height];
+		// the comparison of ThresholdToSelection
+		final float limit = (float) threshold;
+		final byte[] bytes = processor instanceof ByteProcessor ? (byte[]) processor
+				.getPixels()
+				: null;
+		new TileScheduler(threads).run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				for (int i = yStart * width; i < yEnd * width; i++) {
+					float value = bytes != null ? bytes[i] & 0xff : processor
+							.getf(i);
+					if (inverted ? value <= limit : value >= limit)
+						mask[i] = (byte) 255;
+				}
+			}
+		});
+		return createMask(mask, width, height);
+	}
+
+	public ByteProcessor createMask(AutoThresholder.Method method) {
+		return createMask(getThreshold(method));
+	}
+
+	/**
+	 * Returns the lookup table that turns an 8-bit image with a normal LUT
+	 * into the mask of the pixels above or equal to the threshold
+	 */
+	public static int[] getMaskTable(double threshold) {
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			table[i] = i >= (float) threshold ? 255 : 0;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the 8-bit image of a binary plane, thresholded from 255 to 255
+	 */
+	public static ByteProcessor createMask(byte[] mask, int width, int height) {
+		ByteProcessor result = new ByteProcessor(width, height, mask, null);
+		result.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return result;
+	}
+}
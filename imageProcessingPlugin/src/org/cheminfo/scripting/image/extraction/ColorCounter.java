@@ -0,0 +1,512 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.cheminfo.scripting.image.filters.BufferPool;
+import org.cheminfo.scripting.image.filters.TileScheduler;
+import org.json.JSONObject;
+
+/**
+ * Counts the distinct colors of a RGB image, of a region of interest or of a
+ * sequence of tiles, without a histogram of the size of the image.
+ *
+ * The colors are reduced to a number of bits (15 by default: the 5 highest
+ * bits of each channel, 24 to count them exactly). In exact mode every thread
+ * sets the colors it meets in a bitset of 2^bits bits (2 MB for 24 bits),
+ * the bitsets being merged with a OR at the end. In approximate mode the
+ * colors are counted with a HyperLogLog sketch of 2^precision registers,
+ * whose relative error is about 1.04/sqrt(2^precision) (0.8% by default);
+ * the sketches of the tiles of an image too large for the memory are merged
+ * the same way.
+ *
+ * The dominant colors are counted in a compact open-addressing hash map of
+ * the colors that are present, one per thread, merged at the end.
+ */
+public class ColorCounter {
+	public static final int DEFAULT_BITS = 15;
+	public static final int DEFAULT_PRECISION = 14;
+	/** Number of colors read before they are given to the counter */
+	private static final int BLOCK_SIZE = 4096;
+	/** Number of pixels below which a region is not split between threads */
+	private static final int MIN_PIXELS_PER_THREAD = 65536;
+
+	private int bits;
+	private boolean approximate;
+	private int precision;
+	private long[] bitset;
+	private byte[] registers;
+
+	/**
+	 * @param bits
+	 *            bits kept per color, a multiple of 3 from 3 to 24
+	 * @param approximate
+	 *            true to estimate the count with a HyperLogLog sketch
+	 * @param precision
+	 *            log2 of the number of registers of the sketch (4-16)
+	 */
+	public ColorCounter(int bits, boolean approximate, int precision) {
+		checkBits(bits);
+		if (precision < 4 || precision > 16)
+			throw new IllegalArgumentException(
+					"The precision must be between 4 and 16. Entered: "
+							+ precision);
+		this.bits = bits;
+		this.approximate = approximate;
+		this.precision = precision;
+		if (approximate) {
+			registers = new byte[1 << precision];
+		} else {
+			bitset = BufferPool.getShared().getLongs(
+					Math.max(1, (1 << bits) >> 6));
+			BufferPool.clear(bitset);
+		}
+	}
+
+	/**
+	 * @param options
+	 *            {bits:(multiple of 3 from 3 to 24, Default 15),
+	 *            method:(exact or approximate, Default exact),
+	 *            precision:(4-16, Default 14)}
+	 */
+	public ColorCounter(JSONObject options) {
+		this(options.optInt("bits", DEFAULT_BITS), isApproximate(options),
+				options.optInt("precision", DEFAULT_PRECISION));
+	}
+
+	private static void checkBits(int bits) {
+		if (bits < 3 || bits > 24 || bits % 3 != 0)
+			throw new IllegalArgumentException(
+					"The number of bits must be a multiple of 3 between 3 and 24. Entered: "
+							+ bits);
+	}
+
+	private static boolean isApproximate(JSONObject options) {
+		String method = options.optString("method", "exact");
+		if (method.equalsIgnoreCase("approximate"))
+			return true;
+		if (!method.equalsIgnoreCase("exact"))
+			throw new IllegalArgumentException("Unknown counting method: "
+					+ method);
+		return false;
+	}
+
+	/**
+	 * Returns an empty counter with the same settings, to count a part of the
+	 * pixels before merging it
+	 */
+	public ColorCounter createPartial() {
+		return new ColorCounter(bits, approximate, precision);
+	}
+
+	/**
+	 * Adds the colors of a region of interest (null for the whole image),
+	 * the rows being split between threads (0 for all the processors)
+	 */
+	public void add(ColorProcessor processor, Roi roi, int threads) {
+		final Region region = new Region(processor, roi);
+		int nbParts = (int) Math.min(new TileScheduler(threads).getThreads(),
+				Math.max(1, (long) region.bounds.width * region.bounds.height
+						/ MIN_PIXELS_PER_THREAD));
+		if (nbParts <= 1) {
+			region.walk(region.bounds.y, region.bounds.y
+					+ region.bounds.height, new Counter());
+			return;
+		}
+		final ColorCounter[] partials = new ColorCounter[nbParts];
+		Runnable[] tasks = new Runnable[nbParts];
+		for (int i = 0; i < nbParts; i++) {
+			final int part = i;
+			final int yStart = region.bounds.y + region.bounds.height * i
+					/ nbParts;
+			final int yEnd = region.bounds.y + region.bounds.height * (i + 1)
+					/ nbParts;
+			tasks[i] = new Runnable() {
+				public void run() {
+					partials[part] = createPartial();
+					region.walk(yStart, yEnd, partials[part].new Counter());
+				}
+			};
+		}
+		try {
+			new TileScheduler(nbParts).runAll(tasks);
+		} finally {
+			for (ColorCounter partial : partials) {
+				if (partial == null)
+					continue;
+				merge(partial);
+				partial.release();
+			}
+		}
+	}
+
+	/**
+	 * Adds the colors counted by another counter with the same settings
+	 */
+	public synchronized void merge(ColorCounter other) {
+		if (other.bits != bits || other.approximate != approximate
+				|| other.precision != precision)
+			throw new IllegalArgumentException(
+					"The counters must have the same settings");
+		if (approximate) {
+			for (int i = 0; i < registers.length; i++) {
+				if (other.registers[i] > registers[i])
+					registers[i] = other.registers[i];
+			}
+		} else {
+			for (int i = 0; i < bitset.length; i++)
+				bitset[i] |= other.bitset[i];
+		}
+	}
+
+	/**
+	 * Returns the number of distinct colors, estimated in approximate mode
+	 */
+	public synchronized long getCount() {
+		if (!approximate) {
+			long count = 0;
+			for (long word : bitset)
+				count += Long.bitCount(word);
+			return count;
+		}
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				zeros++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709
+				: 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		// small cardinalities: linear counting of the empty registers
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Gives the bitset back to the buffer pool, the counter can not be used
+	 * any more
+	 */
+	public void release() {
+		if (bitset != null)
+			BufferPool.getShared().release(bitset);
+		bitset = null;
+	}
+
+	/**
+	 * Returns the count of the colors of a region of interest (null for the
+	 * whole image)
+	 */
+	public static long count(ColorProcessor processor, Roi roi,
+			JSONObject options, int threads) {
+		ColorCounter counter = new ColorCounter(options);
+		try {
+			counter.add(processor, roi, threads);
+			return counter.getCount();
+		} finally {
+			counter.release();
+		}
+	}
+
+	/**
+	 * Returns the most frequent colors of a region of interest (null for the
+	 * whole image), reduced to the given number of bits
+	 *
+	 * @return {colors, counts} sorted by decreasing count, the colors being
+	 *         packed RGB values whose dropped bits are 0
+	 */
+	public static int[][] getDominantColors(ColorProcessor processor,
+			Roi roi, final int bits, int top, int threads) {
+		checkBits(bits);
+		final Region region = new Region(processor, roi);
+		int nbParts = (int) Math.min(new TileScheduler(threads).getThreads(),
+				Math.max(1, (long) region.bounds.width * region.bounds.height
+						/ MIN_PIXELS_PER_THREAD));
+		final ColorMap[] maps = new ColorMap[nbParts];
+		Runnable[] tasks = new Runnable[nbParts];
+		for (int i = 0; i < nbParts; i++) {
+			final int part = i;
+			final int yStart = region.bounds.y + region.bounds.height * i
+					/ nbParts;
+			final int yEnd = region.bounds.y + region.bounds.height * (i + 1)
+					/ nbParts;
+			tasks[i] = new Runnable() {
+				public void run() {
+					final ColorMap map = new ColorMap();
+					final int mask = getMask(bits);
+					region.walk(yStart, yEnd, new KeyBlock() {
+						public void add(int[] colors, int offset, int count) {
+							for (int j = offset; j < offset + count; j++)
+								map.increment(colors[j] & mask, 1);
+						}
+					});
+					maps[part] = map;
+				}
+			};
+		}
+		new TileScheduler(nbParts).runAll(tasks);
+		ColorMap map = maps[0];
+		for (int i = 1; i < nbParts; i++)
+			map.addAll(maps[i]);
+		return map.getTop(top);
+	}
+
+	/**
+	 * Returns the mask keeping the highest bits/3 bits of each channel
+	 */
+	private static int getMask(int bits) {
+		int channel = (0xff << (8 - bits / 3)) & 0xff;
+		return (channel << 16) | (channel << 8) | channel;
+	}
+
+	/**
+	 * Receives the packed RGB colors of a block of pixels
+	 */
+	private interface KeyBlock {
+		void add(int[] colors, int offset, int count);
+	}
+
+	/**
+	 * Sets the colors in the bitset or in the registers of this counter
+	 */
+	private class Counter implements KeyBlock {
+		private int shift = 8 - bits / 3;
+		private int channelBits = bits / 3;
+		private int mask = getMask(bits);
+
+		public void add(int[] colors, int offset, int count) {
+			int end = offset + count;
+			if (approximate) {
+				for (int i = offset; i < end; i++)
+					addHash(hash(colors[i] & mask));
+				return;
+			}
+			long[] bitset = ColorCounter.this.bitset;
+			int channelMask = (1 << channelBits) - 1;
+			int redShift = 16 + shift, greenShift = 8 + shift;
+			int twoChannels = 2 * channelBits;
+			for (int i = offset; i < end; i++) {
+				int c = colors[i];
+				int index = (((c >> redShift) & channelMask) << twoChannels)
+						| (((c >> greenShift) & channelMask) << channelBits)
+						| ((c >> shift) & channelMask);
+				bitset[index >> 6] |= 1L << index;
+			}
+		}
+
+		private void addHash(long hash) {
+			int index = (int) (hash >>> (64 - precision));
+			int rank = Math.min(Long.numberOfLeadingZeros(hash << precision),
+					64 - precision) + 1;
+			if (rank > registers[index])
+				registers[index] = (byte) rank;
+		}
+
+		/**
+		 * Mixes the reduced color (finalizer of MurmurHash3)
+		 */
+		private long hash(int color) {
+			long h = color;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+	/**
+	 * The pixels of a region of interest, restricted to the image
+	 */
+	private static class Region {
+		private int[] pixels;
+		private int width;
+		private Rectangle bounds;
+		private Rectangle roiBounds;
+		private byte[] mask;
+
+		Region(ColorProcessor processor, Roi roi) {
+			pixels = (int[]) processor.getPixels();
+			width = processor.getWidth();
+			Rectangle image = new Rectangle(0, 0, width, processor
+					.getHeight());
+			roiBounds = roi == null ? image : roi.getBounds();
+			bounds = roiBounds.intersection(image);
+			if (bounds.width <= 0 || bounds.height <= 0)
+				bounds = new Rectangle(0, 0, 0, 0);
+			ImageProcessor maskProcessor = roi == null ? null : roi.getMask();
+			mask = maskProcessor == null ? null : (byte[]) maskProcessor
+					.getPixels();
+		}
+
+		/**
+		 * Gives the colors of the pixels of the rows yStart to yEnd inside of
+		 * the mask: directly the rows of the image without mask, by blocks
+		 * otherwise
+		 */
+		void walk(int yStart, int yEnd, KeyBlock block) {
+			if (mask == null) {
+				if (bounds.width == width) {
+					block.add(pixels, yStart * width, (yEnd - yStart) * width);
+					return;
+				}
+				for (int y = yStart; y < yEnd; y++)
+					block.add(pixels, y * width + bounds.x, bounds.width);
+				return;
+			}
+			int[] colors = new int[BLOCK_SIZE];
+			int count = 0;
+			for (int y = yStart; y < yEnd; y++) {
+				int i = y * width + bounds.x;
+				int m = (y - roiBounds.y) * roiBounds.width + bounds.x
+						- roiBounds.x;
+				for (int x = 0; x < bounds.width; x++, i++, m++) {
+					if (mask != null && mask[m] == 0)
+						continue;
+					colors[count++] = pixels[i];
+					if (count == BLOCK_SIZE) {
+						block.add(colors, 0, count);
+						count = 0;
+					}
+				}
+			}
+			block.add(colors, 0, count);
+		}
+	}
+
+	/**
+	 * Open-addressing hash map from a color (24 bits) to its count, the keys
+	 * and the counts being kept in two int arrays. Empty slots have the key
+	 * -1, that is not a color.
+	 */
+	private static class ColorMap {
+		private int[] keys;
+		private int[] counts;
+		private int size;
+		/** 32 - log2 of the capacity */
+		private int shift;
+
+		ColorMap() {
+			allocate(1024);
+		}
+
+		private void allocate(int capacity) {
+			keys = new int[capacity];
+			counts = new int[capacity];
+			Arrays.fill(keys, -1);
+			shift = 32 - Integer.numberOfTrailingZeros(capacity);
+			size = 0;
+		}
+
+		void increment(int key, int count) {
+			int slot = find(key);
+			if (keys[slot] == key) {
+				counts[slot] += count;
+				return;
+			}
+			keys[slot] = key;
+			counts[slot] = count;
+			// at most half full, so the probes stay short
+			if (++size * 2 > keys.length)
+				grow();
+		}
+
+		/**
+		 * Returns the slot of the key, or the empty slot where it belongs
+		 */
+		private int find(int key) {
+			int mask = keys.length - 1;
+			// Fibonacci hashing: the highest bits of the product
+			int slot = (key * 0x9e3779b9) >>> shift;
+			while (keys[slot] != -1 && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldCounts = counts;
+			allocate(oldKeys.length * 2);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != -1)
+					increment(oldKeys[i], oldCounts[i]);
+			}
+		}
+
+		void addAll(ColorMap other) {
+			for (int i = 0; i < other.keys.length; i++) {
+				if (other.keys[i] != -1)
+					increment(other.keys[i], other.counts[i]);
+			}
+		}
+
+		/**
+		 * Returns the top colors and their counts, the ones with the highest
+		 * count first (the smallest color first for equal counts)
+		 */
+		int[][] getTop(int top) {
+			top = Math.max(0, Math.min(top, size));
+			// min-heap of count<<24|color, the root being the smallest kept
+			long[] heap = new long[top];
+			int heapSize = 0;
+			for (int i = 0; i < keys.length && top > 0; i++) {
+				if (keys[i] == -1)
+					continue;
+				long entry = ((long) counts[i] << 24)
+						| (0xffffff - keys[i]);
+				if (heapSize < top) {
+					heap[heapSize] = entry;
+					siftUp(heap, heapSize++);
+				} else if (entry > heap[0]) {
+					heap[0] = entry;
+					siftDown(heap, 0, heapSize);
+				}
+			}
+			int[][] result = new int[2][heapSize];
+			for (int i = heapSize - 1; i >= 0; i--) {
+				long entry = heap[0];
+				heap[0] = heap[i];
+				siftDown(heap, 0, i);
+				result[0][i] = 0xffffff - (int) (entry & 0xffffff);
+				result[1][i] = (int) (entry >>> 24);
+			}
+			return result;
+		}
+
+		private static void siftUp(long[] heap, int i) {
+			while (i > 0 && heap[(i - 1) / 2] > heap[i]) {
+				swap(heap, i, (i - 1) / 2);
+				i = (i - 1) / 2;
+			}
+		}
+
+		private static void siftDown(long[] heap, int i, int size) {
+			while (true) {
+				int smallest = i;
+				int left = 2 * i + 1;
+				if (left < size && heap[left] < heap[smallest])
+					smallest = left;
+				if (left + 1 < size && heap[left + 1] < heap[smallest])
+					smallest = left + 1;
+				if (smallest == i)
+					return;
+				swap(heap, i, smallest);
+				i = smallest;
+			}
+		}
+
+		private static void swap(long[] heap, int i, int j) {
+			long value = heap[i];
+			heap[i] = heap[j];
+			heap[j] = value;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package org.cheminfo.scripting.image.extraction;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * Labels the connected components of a binary mask with a two-pass union-find
+ * over a flat label plane. The first pass gives each foreground pixel the
+ * provisional label of an already visited neighbour (a new one if there is
+ * none) and merges the labels of its other neighbours. The second pass
+ * replaces the provisional labels by the final ones, numbered from 1 in the
+ * order of the first pixel of each component (row by row), and gathers the
+ * bounding box, the area and the centroid of every component.
+ */
+public class ConnectedComponents {
+	// directions: right, down, left, up (y going down)
+	private static final int RIGHT = 0;
+	private static final int[] DX = { 1, 0, -1, 0 };
+	private static final int[] DY = { 0, 1, 0, -1 };
+	// offsets from a vertex to the pixels ahead of it for each direction
+	private static final int[] AHEAD_LEFT_X = { 0, 0, -1, -1 };
+	private static final int[] AHEAD_LEFT_Y = { -1, 0, 0, -1 };
+	private static final int[] AHEAD_RIGHT_X = { 0, -1, -1, 0 };
+	private static final int[] AHEAD_RIGHT_Y = { 0, 0, -1, -1 };
+
+	private int width;
+	private int height;
+	private boolean eightConnected;
+	private int[] labels;
+	private int count;
+
+	private int[] firstPixels;
+	private int[] minX, minY, maxX, maxY;
+	private int[] areas;
+	private double[] xSums, ySums;
+
+	/**
+	 * Labels the 8-connected components of the non zero pixels
+	 */
+	public ConnectedComponents(byte[] mask, int width, int height) {
+		this(mask, width, height, true);
+	}
+
+	/**
+	 * Labels the components of the non zero pixels
+	 *
+	 * @param eightConnected
+	 *            true if the diagonal neighbours are connected, false for the
+	 *            4-connectivity
+	 */
+	public ConnectedComponents(byte[] mask, int width, int height,
+			boolean eightConnected) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have "
+					+ (width * height) + " pixels. Entered: " + mask.length);
+		this.width = width;
+		this.height = height;
+		this.eightConnected = eightConnected;
+		labels = new int[width * height];
+		int[] parents = label(mask, eightConnected);
+		resolve(parents);
+	}
+
+	/**
+	 * First pass, returns the parents of the provisional labels (a root is its
+	 * own parent and is the smallest label of its set)
+	 */
+	private int[] label(byte[] mask, boolean eightConnected) {
+		int[] parents = new int[Math.max(16, width * height / 64)];
+		int next = 1;
+		for (int y = 0; y < height; y++) {
+			int i = y * width;
+			for (int x = 0; x < width; x++, i++) {
+				if (mask[i] == 0)
+					continue;
+				int label = 0;
+				if (x > 0)
+					label = union(parents, label, labels[i - 1]);
+				if (y > 0) {
+					label = union(parents, label, labels[i - width]);
+					if (eightConnected) {
+						if (x > 0)
+							label = union(parents, label, labels[i - width - 1]);
+						if (x < width - 1)
+							label = union(parents, label, labels[i - width + 1]);
+					}
+				}
+				if (label == 0) {
+					if (next == parents.length) {
+						int[] larger = new int[parents.length * 2];
+						System.arraycopy(parents, 0, larger, 0, next);
+						parents = larger;
+					}
+					parents[next] = next;
+					label = next++;
+				}
+				labels[i] = label;
+			}
+		}
+		int[] result = new int[next];
+		System.arraycopy(parents, 0, result, 0, next);
+		return result;
+	}
+
+	/**
+	 * Merges the sets of two labels (0 for no label) and returns the root
+	 */
+	private static int union(int[] parents, int label1, int label2) {
+		if (label2 == 0)
+			return label1;
+		int root2 = find(parents, label2);
+		if (label1 == 0)
+			return root2;
+		int root1 = find(parents, label1);
+		if (root1 < root2) {
+			parents[root2] = root1;
+			return root1;
+		}
+		parents[root1] = root2;
+		return root2;
+	}
+
+	private static int find(int[] parents, int label) {
+		int root = label;
+		while (parents[root] != root)
+			root = parents[root];
+		// path compression
+		while (parents[label] != root) {
+			int parent = parents[label];
+			parents[label] = root;
+			label = parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Second pass, numbers the components and computes their properties
+	 */
+	private void resolve(int[] parents) {
+		// a root is smaller than all the labels of its set, so the final
+		// labels follow the order of the first pixel of the components
+		int[] finals = new int[parents.length];
+		count = 0;
+		for (int label = 1; label < parents.length; label++) {
+			int root = find(parents, label);
+			finals[label] = root == label ? ++count : finals[root];
+		}
+
+		firstPixels = new int[count + 1];
+		minX = new int[count + 1];
+		minY = new int[count + 1];
+		maxX = new int[count + 1];
+		maxY = new int[count + 1];
+		areas = new int[count + 1];
+		xSums = new double[count + 1];
+		ySums = new double[count + 1];
+		for (int label = 1; label <= count; label++) {
+			minX[label] = Integer.MAX_VALUE;
+			minY[label] = Integer.MAX_VALUE;
+			maxX[label] = -1;
+			maxY[label] = -1;
+		}
+		for (int y = 0; y < height; y++) {
+			int i = y * width;
+			for (int x = 0; x < width; x++, i++) {
+				if (labels[i] == 0)
+					continue;
+				int label = finals[labels[i]];
+				labels[i] = label;
+				if (areas[label] == 0)
+					firstPixels[label] = i;
+				if (x < minX[label])
+					minX[label] = x;
+				if (x > maxX[label])
+					maxX[label] = x;
+				if (y < minY[label])
+					minY[label] = y;
+				maxY[label] = y;
+				areas[label]++;
+				xSums[label] += x;
+				ySums[label] += y;
+			}
+		}
+	}
+
+	/**
+	 * The pixels of a mask followed by traceContour
+	 */
+	public interface Mask {
+		/**
+		 * Returns true for a foreground pixel, false for the background and
+		 * outside of the mask
+		 */
+		public boolean isInside(int x, int y);
+	}
+
+	/**
+	 * Returns the outer contour of a component, following the edges of its
+	 * pixels clockwise from the top left corner of its first pixel. The
+	 * vertices are the corners of the pixels where the contour turns, so the
+	 * polygon encloses the component and its holes.
+	 */
+	public Polygon getContour(final int label) {
+		return traceContour(new Mask() {
+			public boolean isInside(int x, int y) {
+				return ConnectedComponents.this.isInside(label, x, y);
+			}
+		}, firstPixels[label] % width, firstPixels[label] / width,
+				eightConnected);
+	}
+
+	/**
+	 * Returns the outer contour of the component whose first pixel (row by
+	 * row) is (startX, startY), like getContour. Only the pixels along the
+	 * contour are read: the foreground pixels met there are all in the
+	 * component, so the mask does not need to be labelled.
+	 */
+	public static Polygon traceContour(Mask mask, int startX, int startY,
+			boolean eightConnected) {
+		Polygon contour = new Polygon();
+		// the pixels above and on the left of the first pixel are outside, the
+		// contour starts going right along its top edge
+		int x = startX, y = startY;
+		int direction = RIGHT;
+		contour.addPoint(x, y);
+		do {
+			x += DX[direction];
+			y += DY[direction];
+			// pixels ahead of the vertex, on the left and on the right
+			boolean left = mask.isInside(x + AHEAD_LEFT_X[direction], y
+					+ AHEAD_LEFT_Y[direction]);
+			boolean right = mask.isInside(x + AHEAD_RIGHT_X[direction], y
+					+ AHEAD_RIGHT_Y[direction]);
+			int next;
+			if (left && (right || eightConnected))
+				next = (direction + 3) & 3;
+			else if (right)
+				next = direction;
+			else
+				next = (direction + 1) & 3;
+			if (next != direction && (x != startX || y != startY))
+				contour.addPoint(x, y);
+			direction = next;
+		} while (x != startX || y != startY);
+		return contour;
+	}
+
+	private boolean isInside(int label, int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height
+				&& labels[y * width + x] == label;
+	}
+
+	/**
+	 * Returns the number of components
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the label plane: 0 for the background, 1 to getCount() for the
+	 * components
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the bounding box of a component (1 to getCount())
+	 */
+	public Rectangle getBounds(int label) {
+		return new Rectangle(minX[label], minY[label], maxX[label]
+				- minX[label] + 1, maxY[label] - minY[label] + 1);
+	}
+
+	/**
+	 * Returns the number of pixels of a component
+	 */
+	public int getArea(int label) {
+		return areas[label];
+	}
+
+	/**
+	 * Returns the x coordinate of the centroid of a component, the center of a
+	 * pixel being at +0.5 like in ImageJ
+	 */
+	public double getXCentroid(int label) {
+		return xSums[label] / areas[label] + 0.5;
+	}
+
+	public double getYCentroid(int label) {
+		return ySums[label] / areas[label] + 0.5;
+	}
+}
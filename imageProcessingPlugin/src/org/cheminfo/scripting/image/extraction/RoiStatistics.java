@@ -0,0 +1,173 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+
+import org.cheminfo.scripting.image.filters.TileScheduler;
+
+/**
+ * Statistics of a region of interest of a RGB image, computed in a single walk
+ * over the packed pixels: the grey histogram, the centroid and the center of
+ * mass of the pixels of the mask, and the red, green, blue, hue, saturation
+ * and brightness histograms of the bounding rectangle.
+ *
+ * The values are the same as the ones of ImageJ: ColorStatistics for the grey
+ * values (weighted with the ColorProcessor weighting factors), and
+ * ImagePlus.setRoi (that ignores the mask) followed by getHistogram on the
+ * channels given by ImageConverter.convertToRGBStack and getHSBStack.
+ */
+public class RoiStatistics {
+	public static final int RED = 0;
+	public static final int GREEN = 1;
+	public static final int BLUE = 2;
+	public static final int HUE = 3;
+	public static final int SATURATION = 4;
+	public static final int BRIGHTNESS = 5;
+
+	private Rectangle bounds;
+	private int pixelCount;
+	private double xCentroid;
+	private double yCentroid;
+	private double xCenterOfMass;
+	private double yCenterOfMass;
+	private int[] histogram = new int[256];
+	private int[][] channelHistograms = new int[6][256];
+
+	/**
+	 * Computes the statistics of a region of interest, null for the whole
+	 * image
+	 */
+	public RoiStatistics(ColorProcessor processor, Roi roi) {
+		int width = processor.getWidth();
+		int height = processor.getHeight();
+		Rectangle image = new Rectangle(0, 0, width, height);
+		Rectangle roiBounds = roi == null ? image : roi.getBounds();
+		bounds = roiBounds.intersection(image);
+		if (bounds.width <= 0 || bounds.height <= 0)
+			bounds = new Rectangle(0, 0, 0, 0);
+		ImageProcessor mask = roi == null ? null : roi.getMask();
+		byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+
+		int[] pixels = (int[]) processor.getPixels();
+		double[] weights = ColorProcessor.getWeightingFactors();
+		double rWeight = weights[0], gWeight = weights[1], bWeight = weights[2];
+		int[] red = channelHistograms[RED];
+		int[] green = channelHistograms[GREEN];
+		int[] blue = channelHistograms[BLUE];
+		int[] hue = channelHistograms[HUE];
+		int[] saturation = channelHistograms[SATURATION];
+		int[] brightness = channelHistograms[BRIGHTNESS];
+		float[] hsb = new float[3];
+
+		double xSum = 0, ySum = 0;
+		double sum = 0, xMassSum = 0, yMassSum = 0;
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			int i = y * width + bounds.x;
+			int m = (y - roiBounds.y) * roiBounds.width + bounds.x - roiBounds.x;
+			for (int x = bounds.x; x < bounds.x + bounds.width; x++, i++, m++) {
+				int c = pixels[i];
+				int r = (c & 0xff0000) >> 16;
+				int g = (c & 0xff00) >> 8;
+				int b = c & 0xff;
+				red[r]++;
+				green[g]++;
+				blue[b]++;
+				Color.RGBtoHSB(r, g, b, hsb);
+				hue[(int) (hsb[0] * 255.0) & 0xff]++;
+				saturation[(int) (hsb[1] * 255.0) & 0xff]++;
+				brightness[(int) (hsb[2] * 255.0) & 0xff]++;
+
+				if (maskPixels != null && maskPixels[m] == 0)
+					continue;
+				double grey = r * rWeight + g * gWeight + b * bWeight;
+				histogram[(int) (grey + 0.5)]++;
+				pixelCount++;
+				xSum += x;
+				ySum += y;
+				double value = (float) grey;
+				sum += value;
+				xMassSum += x * value;
+				yMassSum += y * value;
+			}
+		}
+		xCentroid = xSum / pixelCount + 0.5;
+		yCentroid = ySum / pixelCount + 0.5;
+		xCenterOfMass = xMassSum / sum + 0.5;
+		yCenterOfMass = yMassSum / sum + 0.5;
+	}
+
+	/**
+	 * Computes the statistics of the regions of interest in parallel
+	 *
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public static RoiStatistics[] measure(final ColorProcessor processor,
+			final Roi[] rois, int threads) {
+		final RoiStatistics[] statistics = new RoiStatistics[rois.length];
+		Runnable[] tasks = new Runnable[rois.length];
+		for (int i = 0; i < rois.length; i++) {
+			final int index = i;
+			tasks[i] = new Runnable() {
+				public void run() {
+					statistics[index] = new RoiStatistics(processor, rois[index]);
+				}
+			};
+		}
+		new TileScheduler(threads).runAll(tasks);
+		return statistics;
+	}
+
+	/**
+	 * Returns the part of the bounding rectangle inside of the image
+	 */
+	public Rectangle getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Returns the number of pixels of the mask
+	 */
+	public int getPixelCount() {
+		return pixelCount;
+	}
+
+	public double getXCentroid() {
+		return xCentroid;
+	}
+
+	public double getYCentroid() {
+		return yCentroid;
+	}
+
+	/**
+	 * Returns the x coordinate of the center of mass, the mass being the grey
+	 * value
+	 */
+	public double getXCenterOfMass() {
+		return xCenterOfMass;
+	}
+
+	public double getYCenterOfMass() {
+		return yCenterOfMass;
+	}
+
+	/**
+	 * Returns the histogram of the grey values of the pixels of the mask
+	 */
+	public int[] getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Returns the histogram of a channel (RED, GREEN, BLUE, HUE, SATURATION or
+	 * BRIGHTNESS) of the pixels of the bounding rectangle
+	 */
+	public int[] getHistogram(int channel) {
+		return channelHistograms[channel];
+	}
+}
@@ -0,0 +1,287 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * The statistics of a list of regions of interest stored by column: one array
+ * per field, indexed by the region.
+ *
+ * The table is written either as JSON, region by region, or in a compact
+ * binary format (big endian, see DataOutputStream):
+ * <ul>
+ * <li>the magic number 'RSTB', the version and the number of regions n</li>
+ * <li>the int columns x, y, width, height, surface and roundRectArcSize, n
+ * values each</li>
+ * <li>the double columns xCenterOfMass, yCenterOfMass, xCentroid, yCentroid
+ * and contour, n values each</li>
+ * <li>the histograms (grey, red, green, blue, hue, saturation and brightness),
+ * for each region the number of non empty bins as a short followed either by
+ * the pairs (bin as a byte, count as an int) of the non empty bins if there are
+ * less than SPARSE_LIMIT of them, or by the 256 counts</li>
+ * </ul>
+ */
+public class RoiStatisticsTable {
+	public static final int MAGIC = 0x52535442;
+	public static final int VERSION = 1;
+	/**
+	 * Number of non empty bins from which a histogram is written in full, the
+	 * pairs would then take more space than the 256 counts
+	 */
+	public static final int SPARSE_LIMIT = 205;
+
+	public static final String[] INT_COLUMNS = { "x", "y", "width", "height",
+			"surface", "roundRectArcSize" };
+	public static final String[] DOUBLE_COLUMNS = { "xCenterOfMass",
+			"yCenterOfMass", "xCentroid", "yCentroid", "contour" };
+	public static final String[] HISTOGRAMS = { "histogram", "red", "green",
+			"blue", "hue", "saturation", "brightness" };
+
+	/** Number of regions measured together when streaming the results */
+	private static final int CHUNK_SIZE = 64;
+
+	private int count;
+	private int[][] intColumns;
+	private double[][] doubleColumns;
+	private int[][][] histograms;
+
+	public RoiStatisticsTable(int count) {
+		this.count = count;
+		intColumns = new int[INT_COLUMNS.length][count];
+		doubleColumns = new double[DOUBLE_COLUMNS.length][count];
+		histograms = new int[HISTOGRAMS.length][count][];
+	}
+
+	/**
+	 * Measures the regions of interest of a RGB image
+	 *
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public static RoiStatisticsTable measure(ColorProcessor processor,
+			Roi[] rois, int threads) {
+		RoiStatistics[] statistics = RoiStatistics.measure(processor, rois,
+				threads);
+		RoiStatisticsTable table = new RoiStatisticsTable(rois.length);
+		for (int i = 0; i < rois.length; i++) {
+			table.set(i, statistics[i], rois[i]);
+		}
+		return table;
+	}
+
+	/**
+	 * Measures the regions of interest by chunks and writes the JSON array of
+	 * their statistics as they are computed, so the statistics of all the
+	 * regions are never in memory at the same time
+	 */
+	public static void writeJSON(ColorProcessor processor, Roi[] rois,
+			int threads, Writer writer) throws IOException {
+		writer.write('[');
+		for (int start = 0; start < rois.length; start += CHUNK_SIZE) {
+			Roi[] chunk = Arrays.copyOfRange(rois, start,
+					Math.min(start + CHUNK_SIZE, rois.length));
+			RoiStatisticsTable table = measure(processor, chunk, threads);
+			for (int i = 0; i < chunk.length; i++) {
+				if (start + i > 0)
+					writer.write(',');
+				writer.write(table.getJSONObject(i).toString());
+			}
+		}
+		writer.write(']');
+		writer.flush();
+	}
+
+	public void set(int index, RoiStatistics statistics, Roi roi) {
+		int[] values = { statistics.getBounds().x, statistics.getBounds().y,
+				statistics.getBounds().width, statistics.getBounds().height,
+				statistics.getPixelCount(), roi.getRoundRectArcSize() };
+		for (int column = 0; column < values.length; column++) {
+			intColumns[column][index] = values[column];
+		}
+		double[] doubles = { statistics.getXCenterOfMass(),
+				statistics.getYCenterOfMass(), statistics.getXCentroid(),
+				statistics.getYCentroid(), roi.getLength() };
+		for (int column = 0; column < doubles.length; column++) {
+			doubleColumns[column][index] = doubles[column];
+		}
+		histograms[0][index] = statistics.getHistogram();
+		histograms[1][index] = statistics.getHistogram(RoiStatistics.RED);
+		histograms[2][index] = statistics.getHistogram(RoiStatistics.GREEN);
+		histograms[3][index] = statistics.getHistogram(RoiStatistics.BLUE);
+		histograms[4][index] = statistics.getHistogram(RoiStatistics.HUE);
+		histograms[5][index] = statistics
+				.getHistogram(RoiStatistics.SATURATION);
+		histograms[6][index] = statistics
+				.getHistogram(RoiStatistics.BRIGHTNESS);
+	}
+
+	/**
+	 * Returns the statistics of a region, with the fields of
+	 * EIJ.analyzeImage
+	 */
+	public JSONObject getJSONObject(int index) {
+		JSONObject stat = new JSONObject();
+		stat.put("x", intColumns[0][index]);
+		stat.put("y", intColumns[1][index]);
+		stat.put("height", intColumns[3][index]);
+		stat.put("width", intColumns[2][index]);
+		stat.put("surface", intColumns[4][index]);
+		stat.put("xCenterOfMass", doubleColumns[0][index]);
+		stat.put("yCenterOfMass", doubleColumns[1][index]);
+		stat.put("xCentroid", doubleColumns[2][index]);
+		stat.put("yCentroid", doubleColumns[3][index]);
+		stat.put("histogram", histograms[0][index]);
+		stat.put("contour", doubleColumns[4][index]);
+		stat.put("roundRectArcSize", intColumns[5][index]);
+		for (int histogram = 1; histogram < HISTOGRAMS.length; histogram++) {
+			stat.put(HISTOGRAMS[histogram], histograms[histogram][index]);
+		}
+		return stat;
+	}
+
+	/**
+	 * Writes the JSON array of the statistics, region by region
+	 */
+	public void writeJSON(Writer writer) throws IOException {
+		writer.write('[');
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				writer.write(',');
+			writer.write(getJSONObject(i).toString());
+		}
+		writer.write(']');
+		writer.flush();
+	}
+
+	/**
+	 * Writes the table in the binary format, the stream is not closed
+	 */
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(count);
+		for (int[] column : intColumns) {
+			for (int value : column)
+				out.writeInt(value);
+		}
+		for (double[] column : doubleColumns) {
+			for (double value : column)
+				out.writeDouble(value);
+		}
+		for (int[][] column : histograms) {
+			for (int[] histogram : column) {
+				int nonEmpty = 0;
+				for (int value : histogram) {
+					if (value != 0)
+						nonEmpty++;
+				}
+				out.writeShort(nonEmpty);
+				if (nonEmpty < SPARSE_LIMIT) {
+					for (int bin = 0; bin < histogram.length; bin++) {
+						if (histogram[bin] != 0) {
+							out.writeByte(bin);
+							out.writeInt(histogram[bin]);
+						}
+					}
+				} else {
+					for (int value : histogram)
+						out.writeInt(value);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a table written in the binary format
+	 */
+	public static RoiStatisticsTable read(InputStream stream)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				stream));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a table of statistics");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of the statistics: "
+					+ version);
+		RoiStatisticsTable table = new RoiStatisticsTable(in.readInt());
+		for (int[] column : table.intColumns) {
+			for (int i = 0; i < column.length; i++)
+				column[i] = in.readInt();
+		}
+		for (double[] column : table.doubleColumns) {
+			for (int i = 0; i < column.length; i++)
+				column[i] = in.readDouble();
+		}
+		for (int[][] column : table.histograms) {
+			for (int i = 0; i < column.length; i++) {
+				int[] histogram = new int[256];
+				int nonEmpty = in.readUnsignedShort();
+				if (nonEmpty < SPARSE_LIMIT) {
+					for (int j = 0; j < nonEmpty; j++) {
+						int bin = in.readUnsignedByte();
+						histogram[bin] = in.readInt();
+					}
+				} else {
+					for (int bin = 0; bin < histogram.length; bin++)
+						histogram[bin] = in.readInt();
+				}
+				column[i] = histogram;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the number of regions
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns an int column: x, y, width, height, surface or roundRectArcSize
+	 */
+	public int[] getIntColumn(String name) {
+		return intColumns[indexOf(INT_COLUMNS, name)];
+	}
+
+	/**
+	 * Returns a double column: xCenterOfMass, yCenterOfMass, xCentroid,
+	 * yCentroid or contour
+	 */
+	public double[] getDoubleColumn(String name) {
+		return doubleColumns[indexOf(DOUBLE_COLUMNS, name)];
+	}
+
+	/**
+	 * Returns a histogram of a region: histogram (grey), red, green, blue, hue,
+	 * saturation or brightness
+	 */
+	public int[] getHistogram(String name, int index) {
+		return histograms[indexOf(HISTOGRAMS, name)][index];
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown column: " + name);
+	}
+}
@@ -0,0 +1,230 @@
+package org.cheminfo.scripting.image.extraction;
+
+import java.awt.Rectangle;
+
+/**
+ * Labels the connected components of a binary mask given row by row, keeping
+ * only the labels of the previous row instead of a full label plane, so the
+ * memory does not depend on the height of the mask. Like ConnectedComponents,
+ * the provisional labels are merged with a union-find and the components are
+ * numbered from 1 in the order of their first pixel (row by row), but only
+ * their bounding box, area, centroid and first pixel are kept.
+ */
+public class StreamingConnectedComponents {
+	private int width;
+	private boolean eightConnected;
+	private int y = 0;
+	private int[] previous;
+	private int[] current;
+
+	private int next = 1;
+	private int[] parents = new int[256];
+	private int[] firstX = new int[256], firstY = new int[256];
+	private int[] minX = new int[256], minY = new int[256];
+	private int[] maxX = new int[256], maxY = new int[256];
+	private long[] areas = new long[256];
+	private double[] xSums = new double[256], ySums = new double[256];
+
+	private int count = -1;
+
+	public StreamingConnectedComponents(int width, boolean eightConnected) {
+		this.width = width;
+		this.eightConnected = eightConnected;
+		previous = new int[width];
+		current = new int[width];
+	}
+
+	/**
+	 * Labels the next row of the mask, its non zero pixels being the
+	 * foreground
+	 */
+	public void addRow(byte[] mask) {
+		if (count >= 0)
+			throw new IllegalStateException("The labelling is finished");
+		for (int x = 0; x < width; x++) {
+			if (mask[x] == 0) {
+				current[x] = 0;
+				continue;
+			}
+			int label = 0;
+			if (x > 0)
+				label = union(label, current[x - 1]);
+			label = union(label, previous[x]);
+			if (eightConnected) {
+				if (x > 0)
+					label = union(label, previous[x - 1]);
+				if (x < width - 1)
+					label = union(label, previous[x + 1]);
+			}
+			if (label == 0)
+				label = newLabel(x);
+			current[x] = label;
+			if (x < minX[label])
+				minX[label] = x;
+			if (x > maxX[label])
+				maxX[label] = x;
+			maxY[label] = y;
+			areas[label]++;
+			xSums[label] += x;
+			ySums[label] += y;
+		}
+		int[] swap = previous;
+		previous = current;
+		current = swap;
+		y++;
+	}
+
+	private int newLabel(int x) {
+		if (next == parents.length) {
+			int size = parents.length * 2;
+			parents = grow(parents, size);
+			firstX = grow(firstX, size);
+			firstY = grow(firstY, size);
+			minX = grow(minX, size);
+			minY = grow(minY, size);
+			maxX = grow(maxX, size);
+			maxY = grow(maxY, size);
+			long[] largerAreas = new long[size];
+			System.arraycopy(areas, 0, largerAreas, 0, next);
+			areas = largerAreas;
+			double[] largerSums = new double[size];
+			System.arraycopy(xSums, 0, largerSums, 0, next);
+			xSums = largerSums;
+			largerSums = new double[size];
+			System.arraycopy(ySums, 0, largerSums, 0, next);
+			ySums = largerSums;
+		}
+		int label = next++;
+		parents[label] = label;
+		firstX[label] = x;
+		firstY[label] = y;
+		minX[label] = x;
+		minY[label] = y;
+		maxX[label] = x;
+		maxY[label] = y;
+		return label;
+	}
+
+	private static int[] grow(int[] array, int size) {
+		int[] larger = new int[size];
+		System.arraycopy(array, 0, larger, 0, array.length);
+		return larger;
+	}
+
+	private int union(int label1, int label2) {
+		if (label2 == 0)
+			return label1;
+		int root2 = find(label2);
+		if (label1 == 0)
+			return root2;
+		int root1 = find(label1);
+		if (root1 < root2) {
+			parents[root2] = root1;
+			return root1;
+		}
+		parents[root1] = root2;
+		return root2;
+	}
+
+	private int find(int label) {
+		int root = label;
+		while (parents[root] != root)
+			root = parents[root];
+		while (parents[label] != root) {
+			int parent = parents[label];
+			parents[label] = root;
+			label = parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Merges the properties of the provisional labels and numbers the
+	 * components, no row can be added afterwards
+	 */
+	public void finish() {
+		if (count >= 0)
+			return;
+		// the root of a set is its smallest label, created at the first pixel
+		// of the component, and it is visited before the other labels
+		int[] finals = new int[next];
+		count = 0;
+		for (int label = 1; label < next; label++) {
+			int root = find(label);
+			if (root == label) {
+				finals[label] = ++count;
+				move(label, count);
+			} else {
+				int target = finals[root];
+				minX[target] = Math.min(minX[target], minX[label]);
+				maxX[target] = Math.max(maxX[target], maxX[label]);
+				minY[target] = Math.min(minY[target], minY[label]);
+				maxY[target] = Math.max(maxY[target], maxY[label]);
+				areas[target] += areas[label];
+				xSums[target] += xSums[label];
+				ySums[target] += ySums[label];
+			}
+		}
+		previous = null;
+		current = null;
+	}
+
+	/**
+	 * Moves the properties of a root to its final label, that is never larger
+	 * than the root, so the slot is free or already moved
+	 */
+	private void move(int from, int to) {
+		firstX[to] = firstX[from];
+		firstY[to] = firstY[from];
+		minX[to] = minX[from];
+		minY[to] = minY[from];
+		maxX[to] = maxX[from];
+		maxY[to] = maxY[from];
+		areas[to] = areas[from];
+		xSums[to] = xSums[from];
+		ySums[to] = ySums[from];
+	}
+
+	/**
+	 * Returns the number of components, finishing the labelling if needed
+	 */
+	public int getCount() {
+		finish();
+		return count;
+	}
+
+	/**
+	 * Returns the bounding box of a component (1 to getCount())
+	 */
+	public Rectangle getBounds(int label) {
+		return new Rectangle(minX[label], minY[label], maxX[label]
+				- minX[label] + 1, maxY[label] - minY[label] + 1);
+	}
+
+	public long getArea(int label) {
+		return areas[label];
+	}
+
+	/**
+	 * Returns the x coordinate of the first pixel (row by row) of a component
+	 */
+	public int getFirstX(int label) {
+		return firstX[label];
+	}
+
+	public int getFirstY(int label) {
+		return firstY[label];
+	}
+
+	/**
+	 * Returns the x coordinate of the centroid of a component, the center of a
+	 * pixel being at +0.5 like in ImageJ
+	 */
+	public double getXCentroid(int label) {
+		return xSums[label] / areas[label] + 0.5;
+	}
+
+	public double getYCentroid(int label) {
+		return ySums[label] / areas[label] + 0.5;
+	}
+}
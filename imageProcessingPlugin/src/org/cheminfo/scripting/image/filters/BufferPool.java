@@ -0,0 +1,276 @@
+package org.cheminfo.scripting.image.filters;
+
+import java.io.Closeable;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Pool of primitive arrays (byte, short, int, float, double and long) reused
+ * by the filters and the conversions instead of allocating new planes of the
+ * size of the image for every call.
+ *
+ * The arrays are grouped by element type and exact length rather than by
+ * size classes: most of them become the pixels of an ImageProcessor, whose
+ * array must have exactly width*height values, and the images of a batch
+ * have the same size, so the exact lengths are the ones reused. An array taken from the pool keeps the values of
+ * its previous use unless it is cleared. The pool holds at most maxBytes of
+ * free arrays, the arrays released the longest time ago being dropped first,
+ * and the arrays smaller than MIN_BYTES are not kept.
+ *
+ * Arrays are given back either explicitly with release, or by closing the
+ * Buffer handle they were taken with. An array must not be used any more once
+ * it is released.
+ */
+public class BufferPool {
+	/** Arrays smaller than this are cheaper to allocate than to look up */
+	public static final int MIN_BYTES = 4096;
+
+	private static final BufferPool shared = new BufferPool(Runtime
+			.getRuntime().maxMemory() / 16);
+
+	private long maxBytes;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long releases;
+	private long evictions;
+	/** Free arrays by type and length */
+	private Map<String, ArrayDeque<Object>> free = new HashMap<String, ArrayDeque<Object>>();
+	/** Free arrays in the order they were released */
+	private LinkedHashMap<Object, String> released = new LinkedHashMap<Object, String>();
+
+	/**
+	 * @param maxBytes
+	 *            maximal size of the free arrays kept, 0 to disable the pool
+	 */
+	public BufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the pool shared by the filters and the images, a sixteenth of
+	 * the maximal memory by default
+	 */
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * A pooled array that is released when the handle is closed
+	 */
+	public class Buffer implements Closeable {
+		private Object array;
+
+		private Buffer(Object array) {
+			this.array = array;
+		}
+
+		public Object getArray() {
+			return array;
+		}
+
+		public byte[] getBytes() {
+			return (byte[]) array;
+		}
+
+		public short[] getShorts() {
+			return (short[]) array;
+		}
+
+		public int[] getInts() {
+			return (int[]) array;
+		}
+
+		public float[] getFloats() {
+			return (float[]) array;
+		}
+
+		public double[] getDoubles() {
+			return (double[]) array;
+		}
+
+		public long[] getLongs() {
+			return (long[]) array;
+		}
+
+		/**
+		 * Sets all the values to 0
+		 */
+		public Buffer clear() {
+			BufferPool.clear(array);
+			return this;
+		}
+
+		/**
+		 * Gives the array back to the pool, closing it again has no effect
+		 */
+		public void close() {
+			if (array != null)
+				release(array);
+			array = null;
+		}
+	}
+
+	/**
+	 * Takes an array of the given element type and length
+	 *
+	 * @param type
+	 *            byte.class, short.class, int.class, float.class,
+	 *            double.class or long.class
+	 */
+	public Buffer buffer(Class<?> type, int length) {
+		return new Buffer(take(type, length));
+	}
+
+	public byte[] getBytes(int length) {
+		return (byte[]) take(byte.class, length);
+	}
+
+	public short[] getShorts(int length) {
+		return (short[]) take(short.class, length);
+	}
+
+	public int[] getInts(int length) {
+		return (int[]) take(int.class, length);
+	}
+
+	public float[] getFloats(int length) {
+		return (float[]) take(float.class, length);
+	}
+
+	public double[] getDoubles(int length) {
+		return (double[]) take(double.class, length);
+	}
+
+	public long[] getLongs(int length) {
+		return (long[]) take(long.class, length);
+	}
+
+	private Object take(Class<?> type, int length) {
+		if (getSize(type, length) >= MIN_BYTES) {
+			synchronized (this) {
+				ArrayDeque<Object> arrays = free.get(getKey(type, length));
+				if (arrays != null && !arrays.isEmpty()) {
+					// the last released array is the most likely to be cached
+					Object array = arrays.removeLast();
+					released.remove(array);
+					bytes -= getSize(type, length);
+					hits++;
+					return array;
+				}
+				misses++;
+			}
+		}
+		return Array.newInstance(type, length);
+	}
+
+	/**
+	 * Gives an array back to the pool. Arrays that are not primitive arrays,
+	 * too small or already in the pool are ignored.
+	 */
+	public synchronized void release(Object array) {
+		if (array == null || !array.getClass().isArray()
+				|| !array.getClass().getComponentType().isPrimitive()
+				|| released.containsKey(array))
+			return;
+		Class<?> type = array.getClass().getComponentType();
+		int length = Array.getLength(array);
+		long size = getSize(type, length);
+		if (size < MIN_BYTES || size > maxBytes)
+			return;
+		String key = getKey(type, length);
+		ArrayDeque<Object> arrays = free.get(key);
+		if (arrays == null) {
+			arrays = new ArrayDeque<Object>();
+			free.put(key, arrays);
+		}
+		arrays.addLast(array);
+		released.put(array, key);
+		bytes += size;
+		releases++;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Object, String>> iterator = released.entrySet()
+				.iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<Object, String> oldest = iterator.next();
+			Object array = oldest.getKey();
+			free.get(oldest.getValue()).remove(array);
+			iterator.remove();
+			bytes -= getSize(array.getClass().getComponentType(), Array
+					.getLength(array));
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		free.clear();
+		released.clear();
+		bytes = 0;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the counters {hits, misses, hitRate, releases, evictions,
+	 * buffers, bytes, maxBytes}
+	 */
+	public synchronized JSONObject getStatistics() {
+		JSONObject statistics = new JSONObject();
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("hitRate", hits + misses == 0 ? 0 : (double) hits
+				/ (hits + misses));
+		statistics.put("releases", releases);
+		statistics.put("evictions", evictions);
+		statistics.put("buffers", released.size());
+		statistics.put("bytes", bytes);
+		statistics.put("maxBytes", maxBytes);
+		return statistics;
+	}
+
+	/**
+	 * Sets all the values of a primitive array to 0
+	 */
+	public static void clear(Object array) {
+		if (array instanceof byte[])
+			Arrays.fill((byte[]) array, (byte) 0);
+		else if (array instanceof short[])
+			Arrays.fill((short[]) array, (short) 0);
+		else if (array instanceof int[])
+			Arrays.fill((int[]) array, 0);
+		else if (array instanceof float[])
+			Arrays.fill((float[]) array, 0);
+		else if (array instanceof double[])
+			Arrays.fill((double[]) array, 0);
+		else if (array instanceof long[])
+			Arrays.fill((long[]) array, 0);
+	}
+
+	private static String getKey(Class<?> type, int length) {
+		return type.getName() + length;
+	}
+
+	private static long getSize(Class<?> type, int length) {
+		int size = type == byte.class || type == boolean.class ? 1
+				: type == short.class || type == char.class ? 2
+						: type == long.class || type == double.class ? 8 : 4;
+		return (long) length * size;
+	}
+}
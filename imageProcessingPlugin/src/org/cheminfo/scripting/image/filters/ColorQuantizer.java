@@ -0,0 +1,689 @@
+package org.cheminfo.scripting.image.filters;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/**
+ * Reduces the colors of a RGB image to a palette of at most 256 colors with
+ * the variance-minimizing quantizer of Xiaolin Wu (Graphics Gems II), and
+ * returns the 8-bit image of the palette indexes. The source is not modified.
+ *
+ * The histogram of the 5-bit colors and its moments are filled by bands in
+ * parallel, one partial histogram per thread. The boxes of the color space are
+ * then split where the variance decreases the most. The palette can be
+ * refined by a few k-means iterations on a sample of the pixels, the
+ * assignments of the sample being computed in parallel.
+ *
+ * Each pixel gets the palette entry nearest to the mean color of its 5-bit
+ * cell (the center of the cell for the empty cells reached by dithering),
+ * from a table of the 32768 cells, the k-means iterations assigning the
+ * sample with the same table. With dithering the quantization error of each
+ * pixel is diffused to its neighbours (Floyd-Steinberg); the error of a row
+ * going to the next one, the dithering runs on a single thread.
+ */
+public class ColorQuantizer {
+	private static final int SIDE = 33;
+	private static final int SIZE = SIDE * SIDE * SIDE;
+	private static final int RED = 2;
+	private static final int GREEN = 1;
+	private static final int BLUE = 0;
+
+	private int nbColors = 256;
+	private int threads = 0;
+	private boolean dither = false;
+	private int iterations = 0;
+	private int sampleSize = 65536;
+	private int[] palette;
+	/** Mean color of each 5-bit cell (r<<10|g<<5|b) */
+	private int[] cellColors;
+
+	// moments of the histogram, cumulated by computeMoments
+	private long[] weights;
+	private long[] reds;
+	private long[] greens;
+	private long[] blues;
+	private double[] squares;
+
+	/**
+	 * @param nbColors
+	 *            maximal number of colors of the palette (2-256)
+	 */
+	public ColorQuantizer(int nbColors) {
+		if (nbColors < 2 || nbColors > 256)
+			throw new IllegalArgumentException(
+					"The number of colors must be between 2 and 256. Entered: "
+							+ nbColors);
+		this.nbColors = nbColors;
+	}
+
+	/**
+	 * Returns the image of the palette indexes of the colors of the
+	 * processor, with the palette as color model
+	 */
+	public ByteProcessor quantize(ColorProcessor processor) {
+		int[] pixels = (int[]) processor.getPixels();
+		int width = processor.getWidth();
+		int height = processor.getHeight();
+		computeHistogram(pixels, width, height);
+		computeCellColors();
+		computeMoments();
+		palette = computePalette();
+		weights = reds = greens = blues = null;
+		squares = null;
+		byte[] cells = iterations > 0 ? refine(pixels) : getInverseMap();
+		cellColors = null;
+		byte[] indexes = new byte[width * height];
+		if (dither)
+			dither(pixels, width, height, cells, indexes);
+		else
+			map(pixels, width, height, cells, indexes);
+		return new ByteProcessor(width, height, indexes, getColorModel());
+	}
+
+	/**
+	 * Returns the palette of the last image, as packed RGB values
+	 */
+	public int[] getPalette() {
+		return palette;
+	}
+
+	public IndexColorModel getColorModel() {
+		byte[] r = new byte[palette.length];
+		byte[] g = new byte[palette.length];
+		byte[] b = new byte[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			r[i] = (byte) (palette[i] >> 16);
+			g[i] = (byte) (palette[i] >> 8);
+			b[i] = (byte) palette[i];
+		}
+		return new IndexColorModel(8, palette.length, r, g, b);
+	}
+
+	private static int getIndex(int r, int g, int b) {
+		return (r * SIDE + g) * SIDE + b;
+	}
+
+	/**
+	 * Fills the histogram of the 5-bit colors (index 1 to 32 per channel, 0
+	 * being the origin of the cumulated moments) with the counts, the sums of
+	 * the channels and the sums of their squares
+	 */
+	private void computeHistogram(final int[] pixels, final int width,
+			int height) {
+		// one partial histogram per thread rather than per band, each one
+		// being about 1.4 MB. The 5 moments of a cell are next to each other
+		// so that a pixel updates a single cache line.
+		TileScheduler scheduler = new TileScheduler(threads);
+		int nbBands = Math.max(1, Math.min(scheduler.getThreads(), height
+				/ 16));
+		final long[][] partials = new long[nbBands][];
+		Runnable[] tasks = new Runnable[nbBands];
+		for (int i = 0; i < nbBands; i++) {
+			final int band = i;
+			final int yStart = height * i / nbBands;
+			final int yEnd = height * (i + 1) / nbBands;
+			tasks[i] = new Runnable() {
+				public void run() {
+					long[] moments = new long[SIZE * 5];
+					for (int j = yStart * width; j < yEnd * width; j++) {
+						int c = pixels[j];
+						int r = (c >> 16) & 0xff;
+						int g = (c >> 8) & 0xff;
+						int b = c & 0xff;
+						int index = getIndex((r >> 3) + 1, (g >> 3) + 1,
+								(b >> 3) + 1) * 5;
+						moments[index]++;
+						moments[index + 1] += r;
+						moments[index + 2] += g;
+						moments[index + 3] += b;
+						moments[index + 4] += r * r + g * g + b * b;
+					}
+					partials[band] = moments;
+				}
+			};
+		}
+		scheduler.runAll(tasks);
+		weights = new long[SIZE];
+		reds = new long[SIZE];
+		greens = new long[SIZE];
+		blues = new long[SIZE];
+		squares = new double[SIZE];
+		for (int band = 0; band < nbBands; band++) {
+			long[] moments = partials[band];
+			for (int i = 0; i < SIZE; i++) {
+				weights[i] += moments[i * 5];
+				reds[i] += moments[i * 5 + 1];
+				greens[i] += moments[i * 5 + 2];
+				blues[i] += moments[i * 5 + 3];
+				squares[i] += moments[i * 5 + 4];
+			}
+		}
+	}
+
+	/**
+	 * Fills the mean colors of the cells, the empty cells getting -1 unless
+	 * the dithering, that can give them pixels, needs their center
+	 */
+	private void computeCellColors() {
+		cellColors = new int[32768];
+		for (int r = 0; r < 32; r++) {
+			for (int g = 0; g < 32; g++) {
+				for (int b = 0; b < 32; b++) {
+					int index = getIndex(r + 1, g + 1, b + 1);
+					int cell = (r << 10) | (g << 5) | b;
+					long weight = weights[index];
+					if (weight > 0)
+						cellColors[cell] = (int) (reds[index] / weight) << 16
+								| (int) (greens[index] / weight) << 8
+								| (int) (blues[index] / weight);
+					else if (dither)
+						cellColors[cell] = ((r << 3) | 4) << 16
+								| ((g << 3) | 4) << 8 | ((b << 3) | 4);
+					else
+						cellColors[cell] = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cumulates the moments, so that each cell holds the sums over the box
+	 * from the origin to it
+	 */
+	private void computeMoments() {
+		long[] areaWeight = new long[SIDE];
+		long[] areaRed = new long[SIDE];
+		long[] areaGreen = new long[SIDE];
+		long[] areaBlue = new long[SIDE];
+		double[] areaSquare = new double[SIDE];
+		for (int r = 1; r < SIDE; r++) {
+			for (int i = 0; i < SIDE; i++) {
+				areaWeight[i] = areaRed[i] = areaGreen[i] = areaBlue[i] = 0;
+				areaSquare[i] = 0;
+			}
+			for (int g = 1; g < SIDE; g++) {
+				long lineWeight = 0, lineRed = 0, lineGreen = 0, lineBlue = 0;
+				double lineSquare = 0;
+				for (int b = 1; b < SIDE; b++) {
+					int index = getIndex(r, g, b);
+					int previous = getIndex(r - 1, g, b);
+					lineWeight += weights[index];
+					lineRed += reds[index];
+					lineGreen += greens[index];
+					lineBlue += blues[index];
+					lineSquare += squares[index];
+					areaWeight[b] += lineWeight;
+					areaRed[b] += lineRed;
+					areaGreen[b] += lineGreen;
+					areaBlue[b] += lineBlue;
+					areaSquare[b] += lineSquare;
+					weights[index] = weights[previous] + areaWeight[b];
+					reds[index] = reds[previous] + areaRed[b];
+					greens[index] = greens[previous] + areaGreen[b];
+					blues[index] = blues[previous] + areaBlue[b];
+					squares[index] = squares[previous] + areaSquare[b];
+				}
+			}
+		}
+	}
+
+	/**
+	 * A box of the color space, from (r0,g0,b0) exclusive to (r1,g1,b1)
+	 * inclusive
+	 */
+	private static class Box {
+		int r0, r1, g0, g1, b0, b1;
+		int volume;
+	}
+
+	private static long volume(Box box, long[] moment) {
+		return moment[getIndex(box.r1, box.g1, box.b1)]
+				- moment[getIndex(box.r1, box.g1, box.b0)]
+				- moment[getIndex(box.r1, box.g0, box.b1)]
+				+ moment[getIndex(box.r1, box.g0, box.b0)]
+				- moment[getIndex(box.r0, box.g1, box.b1)]
+				+ moment[getIndex(box.r0, box.g1, box.b0)]
+				+ moment[getIndex(box.r0, box.g0, box.b1)]
+				- moment[getIndex(box.r0, box.g0, box.b0)];
+	}
+
+	private static double volume(Box box, double[] moment) {
+		return moment[getIndex(box.r1, box.g1, box.b1)]
+				- moment[getIndex(box.r1, box.g1, box.b0)]
+				- moment[getIndex(box.r1, box.g0, box.b1)]
+				+ moment[getIndex(box.r1, box.g0, box.b0)]
+				- moment[getIndex(box.r0, box.g1, box.b1)]
+				+ moment[getIndex(box.r0, box.g1, box.b0)]
+				+ moment[getIndex(box.r0, box.g0, box.b1)]
+				- moment[getIndex(box.r0, box.g0, box.b0)];
+	}
+
+	/**
+	 * Returns the part of the volume of the box that does not depend on the
+	 * position of a cut in the direction
+	 */
+	private static long bottom(Box box, int direction, long[] moment) {
+		switch (direction) {
+		case RED:
+			return -moment[getIndex(box.r0, box.g1, box.b1)]
+					+ moment[getIndex(box.r0, box.g1, box.b0)]
+					+ moment[getIndex(box.r0, box.g0, box.b1)]
+					- moment[getIndex(box.r0, box.g0, box.b0)];
+		case GREEN:
+			return -moment[getIndex(box.r1, box.g0, box.b1)]
+					+ moment[getIndex(box.r1, box.g0, box.b0)]
+					+ moment[getIndex(box.r0, box.g0, box.b1)]
+					- moment[getIndex(box.r0, box.g0, box.b0)];
+		default:
+			return -moment[getIndex(box.r1, box.g1, box.b0)]
+					+ moment[getIndex(box.r1, box.g0, box.b0)]
+					+ moment[getIndex(box.r0, box.g1, box.b0)]
+					- moment[getIndex(box.r0, box.g0, box.b0)];
+		}
+	}
+
+	/**
+	 * Returns the rest of the volume of the box cut at position in the
+	 * direction
+	 */
+	private static long top(Box box, int direction, int position,
+			long[] moment) {
+		switch (direction) {
+		case RED:
+			return moment[getIndex(position, box.g1, box.b1)]
+					- moment[getIndex(position, box.g1, box.b0)]
+					- moment[getIndex(position, box.g0, box.b1)]
+					+ moment[getIndex(position, box.g0, box.b0)];
+		case GREEN:
+			return moment[getIndex(box.r1, position, box.b1)]
+					- moment[getIndex(box.r1, position, box.b0)]
+					- moment[getIndex(box.r0, position, box.b1)]
+					+ moment[getIndex(box.r0, position, box.b0)];
+		default:
+			return moment[getIndex(box.r1, box.g1, position)]
+					- moment[getIndex(box.r1, box.g0, position)]
+					- moment[getIndex(box.r0, box.g1, position)]
+					+ moment[getIndex(box.r0, box.g0, position)];
+		}
+	}
+
+	/**
+	 * Returns the weighted variance of the colors of the box
+	 */
+	private double variance(Box box) {
+		double dr = volume(box, reds);
+		double dg = volume(box, greens);
+		double db = volume(box, blues);
+		double square = volume(box, squares);
+		return square - (dr * dr + dg * dg + db * db) / volume(box, weights);
+	}
+
+	/**
+	 * Returns the best cut of the box in the direction (the position in
+	 * cut[0]) and the value it maximizes, 0 if the box can not be cut
+	 */
+	private double maximize(Box box, int direction, int first, int last,
+			int[] cut, long wholeRed, long wholeGreen, long wholeBlue,
+			long wholeWeight) {
+		long baseRed = bottom(box, direction, reds);
+		long baseGreen = bottom(box, direction, greens);
+		long baseBlue = bottom(box, direction, blues);
+		long baseWeight = bottom(box, direction, weights);
+		double max = 0;
+		cut[0] = -1;
+		for (int i = first; i < last; i++) {
+			long halfRed = baseRed + top(box, direction, i, reds);
+			long halfGreen = baseGreen + top(box, direction, i, greens);
+			long halfBlue = baseBlue + top(box, direction, i, blues);
+			long halfWeight = baseWeight + top(box, direction, i, weights);
+			if (halfWeight == 0)
+				continue;
+			double temp = ((double) halfRed * halfRed + (double) halfGreen
+					* halfGreen + (double) halfBlue * halfBlue)
+					/ halfWeight;
+			halfRed = wholeRed - halfRed;
+			halfGreen = wholeGreen - halfGreen;
+			halfBlue = wholeBlue - halfBlue;
+			halfWeight = wholeWeight - halfWeight;
+			if (halfWeight == 0)
+				continue;
+			temp += ((double) halfRed * halfRed + (double) halfGreen
+					* halfGreen + (double) halfBlue * halfBlue)
+					/ halfWeight;
+			if (temp > max) {
+				max = temp;
+				cut[0] = i;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Cuts the first box in two along the direction that reduces the variance
+	 * the most, the second part going to the second box. Returns false if
+	 * the box can not be cut.
+	 */
+	private boolean cut(Box first, Box second) {
+		long wholeRed = volume(first, reds);
+		long wholeGreen = volume(first, greens);
+		long wholeBlue = volume(first, blues);
+		long wholeWeight = volume(first, weights);
+		int[] cutRed = new int[1];
+		int[] cutGreen = new int[1];
+		int[] cutBlue = new int[1];
+		double maxRed = maximize(first, RED, first.r0 + 1, first.r1, cutRed,
+				wholeRed, wholeGreen, wholeBlue, wholeWeight);
+		double maxGreen = maximize(first, GREEN, first.g0 + 1, first.g1,
+				cutGreen, wholeRed, wholeGreen, wholeBlue, wholeWeight);
+		double maxBlue = maximize(first, BLUE, first.b0 + 1, first.b1,
+				cutBlue, wholeRed, wholeGreen, wholeBlue, wholeWeight);
+		int direction;
+		if (maxRed >= maxGreen && maxRed >= maxBlue) {
+			direction = RED;
+			if (cutRed[0] < 0)
+				return false;
+		} else if (maxGreen >= maxRed && maxGreen >= maxBlue) {
+			direction = GREEN;
+		} else {
+			direction = BLUE;
+		}
+		second.r1 = first.r1;
+		second.g1 = first.g1;
+		second.b1 = first.b1;
+		switch (direction) {
+		case RED:
+			second.r0 = first.r1 = cutRed[0];
+			second.g0 = first.g0;
+			second.b0 = first.b0;
+			break;
+		case GREEN:
+			second.g0 = first.g1 = cutGreen[0];
+			second.r0 = first.r0;
+			second.b0 = first.b0;
+			break;
+		default:
+			second.b0 = first.b1 = cutBlue[0];
+			second.r0 = first.r0;
+			second.g0 = first.g0;
+		}
+		first.volume = (first.r1 - first.r0) * (first.g1 - first.g0)
+				* (first.b1 - first.b0);
+		second.volume = (second.r1 - second.r0) * (second.g1 - second.g0)
+				* (second.b1 - second.b0);
+		return true;
+	}
+
+	/**
+	 * Splits the color space in boxes and returns their mean colors
+	 */
+	private int[] computePalette() {
+		Box[] boxes = new Box[nbColors];
+		double[] variances = new double[nbColors];
+		for (int i = 0; i < nbColors; i++)
+			boxes[i] = new Box();
+		boxes[0].r1 = boxes[0].g1 = boxes[0].b1 = SIDE - 1;
+		int count = nbColors;
+		int next = 0;
+		for (int i = 1; i < nbColors; i++) {
+			if (cut(boxes[next], boxes[i])) {
+				variances[next] = boxes[next].volume > 1 ? variance(boxes[next])
+						: 0;
+				variances[i] = boxes[i].volume > 1 ? variance(boxes[i]) : 0;
+			} else {
+				variances[next] = 0;
+				i--;
+			}
+			next = 0;
+			double max = variances[0];
+			for (int k = 1; k <= i; k++) {
+				if (variances[k] > max) {
+					max = variances[k];
+					next = k;
+				}
+			}
+			if (max <= 0) {
+				count = i + 1;
+				break;
+			}
+		}
+		int[] colors = new int[count];
+		int nbUsed = 0;
+		for (int i = 0; i < count; i++) {
+			long weight = volume(boxes[i], weights);
+			if (weight == 0)
+				continue;
+			int r = (int) ((volume(boxes[i], reds) + weight / 2) / weight);
+			int g = (int) ((volume(boxes[i], greens) + weight / 2) / weight);
+			int b = (int) ((volume(boxes[i], blues) + weight / 2) / weight);
+			colors[nbUsed++] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		int[] result = new int[nbUsed];
+		System.arraycopy(colors, 0, result, 0, nbUsed);
+		return result;
+	}
+
+	/**
+	 * Moves the palette colors to the mean of the sample pixels mapped to
+	 * them, for the given number of iterations or until no pixel changes of
+	 * color, and returns the inverse map of the final palette
+	 */
+	private byte[] refine(final int[] pixels) {
+		final int step = Math.max(1, pixels.length / sampleSize);
+		final int nbSamples = (pixels.length + step - 1) / step;
+		final byte[] assignments = new byte[nbSamples];
+		TileScheduler scheduler = new TileScheduler(threads);
+		int nbBands = scheduler.getNbBands(nbSamples);
+		final long[][] sums = new long[nbBands][];
+		final int[] changes = new int[nbBands];
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			final int length = palette.length;
+			final byte[] cells = getInverseMap();
+			scheduler.run(nbSamples, new TileScheduler.BandTask() {
+				public void process(int band, int start, int end) {
+					// count and sums of the channels per palette entry
+					long[] sum = new long[length * 4];
+					int changed = 0;
+					for (int i = start; i < end; i++) {
+						int c = pixels[i * step];
+						int index = cells[getCell((c >> 16) & 0xff,
+								(c >> 8) & 0xff, c & 0xff)] & 0xff;
+						if ((assignments[i] & 0xff) != index) {
+							assignments[i] = (byte) index;
+							changed++;
+						}
+						sum[index * 4]++;
+						sum[index * 4 + 1] += (c >> 16) & 0xff;
+						sum[index * 4 + 2] += (c >> 8) & 0xff;
+						sum[index * 4 + 3] += c & 0xff;
+					}
+					sums[band] = sum;
+					changes[band] = changed;
+				}
+			});
+			int changed = 0;
+			int[] updated = palette.clone();
+			for (int k = 0; k < palette.length; k++) {
+				long count = 0, r = 0, g = 0, b = 0;
+				for (int band = 0; band < nbBands; band++) {
+					count += sums[band][k * 4];
+					r += sums[band][k * 4 + 1];
+					g += sums[band][k * 4 + 2];
+					b += sums[band][k * 4 + 3];
+				}
+				// an entry without pixels keeps its color
+				if (count > 0)
+					updated[k] = 0xff000000
+							| (int) ((r + count / 2) / count) << 16
+							| (int) ((g + count / 2) / count) << 8
+							| (int) ((b + count / 2) / count);
+			}
+			for (int band = 0; band < nbBands; band++)
+				changed += changes[band];
+			palette = updated;
+			if (changed == 0 && iteration > 0)
+				break;
+		}
+		return getInverseMap();
+	}
+
+	/**
+	 * Returns the index of the palette color nearest to (r,g,b)
+	 */
+	private static int nearest(int[] colors, int r, int g, int b) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < colors.length; i++) {
+			int dr = ((colors[i] >> 16) & 0xff) - r;
+			int dg = ((colors[i] >> 8) & 0xff) - g;
+			int db = (colors[i] & 0xff) - b;
+			int distance = dr * dr + dg * dg + db * db;
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the index of the palette color nearest to the mean color of
+	 * each 5-bit cell (r<<10|g<<5|b)
+	 */
+	private byte[] getInverseMap() {
+		final byte[] cells = new byte[32768];
+		final int[] colors = palette;
+		new TileScheduler(threads).run(32, new TileScheduler.BandTask() {
+			public void process(int band, int rStart, int rEnd) {
+				for (int i = rStart << 10; i < rEnd << 10; i++) {
+					int c = cellColors[i];
+					if (c >= 0)
+						cells[i] = (byte) nearest(colors, (c >> 16) & 0xff,
+								(c >> 8) & 0xff, c & 0xff);
+				}
+			}
+		});
+		return cells;
+	}
+
+	private static int getCell(int r, int g, int b) {
+		return ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+	}
+
+	private void map(final int[] pixels, final int width, int height,
+			final byte[] cells, final byte[] indexes) {
+		new TileScheduler(threads).run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				for (int i = yStart * width; i < yEnd * width; i++) {
+					int c = pixels[i];
+					indexes[i] = cells[getCell((c >> 16) & 0xff,
+							(c >> 8) & 0xff, c & 0xff)];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Maps the pixels with Floyd-Steinberg error diffusion: 7/16 of the error
+	 * to the right, 3/16, 5/16 and 1/16 to the pixels below
+	 */
+	private void dither(int[] pixels, int width, int height, byte[] cells,
+			byte[] indexes) {
+		// errors of the current and of the next row, 3 channels per pixel
+		// with a margin of one pixel on each side
+		int[] current = new int[(width + 2) * 3];
+		int[] next = new int[(width + 2) * 3];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				int c = pixels[i];
+				int e = (x + 1) * 3;
+				int r = clamp(((c >> 16) & 0xff) + (current[e] >> 4));
+				int g = clamp(((c >> 8) & 0xff) + (current[e + 1] >> 4));
+				int b = clamp((c & 0xff) + (current[e + 2] >> 4));
+				int index = cells[getCell(r, g, b)] & 0xff;
+				indexes[i] = (byte) index;
+				int color = palette[index];
+				r -= (color >> 16) & 0xff;
+				g -= (color >> 8) & 0xff;
+				b -= color & 0xff;
+				current[e + 3] += r * 7;
+				current[e + 4] += g * 7;
+				current[e + 5] += b * 7;
+				next[e - 3] += r * 3;
+				next[e - 2] += g * 3;
+				next[e - 1] += b * 3;
+				next[e] += r * 5;
+				next[e + 1] += g * 5;
+				next[e + 2] += b * 5;
+				next[e + 3] += r;
+				next[e + 4] += g;
+				next[e + 5] += b;
+			}
+			int[] swap = current;
+			current = next;
+			next = swap;
+			Arrays.fill(next, 0);
+		}
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public boolean isDither() {
+		return dither;
+	}
+
+	/**
+	 * @param dither
+	 *            true to diffuse the quantization errors (Default false)
+	 */
+	public void setDither(boolean dither) {
+		this.dither = dither;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @param iterations
+	 *            maximal number of k-means iterations refining the palette,
+	 *            0 to keep the colors of Wu (Default 0)
+	 */
+	public void setIterations(int iterations) {
+		this.iterations = Math.max(0, iterations);
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @param sampleSize
+	 *            approximate number of pixels used by the k-means iterations
+	 *            (Default 65536)
+	 */
+	public void setSampleSize(int sampleSize) {
+		if (sampleSize < 1)
+			throw new IllegalArgumentException(
+					"The sample size must be at least 1. Entered: "
+							+ sampleSize);
+		this.sampleSize = sampleSize;
+	}
+}
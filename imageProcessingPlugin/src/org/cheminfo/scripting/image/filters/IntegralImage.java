@@ -0,0 +1,191 @@
+package org.cheminfo.scripting.image.filters;
+
+import ij.process.ImageProcessor;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Summed-area tables of the powers v, v^2, v^3 and v^4 of the pixel values of
+ * a 8-bit image. Once built, the sum of any power over any rectangular window
+ * is obtained with four array reads, so the mean, the variance and the fourth
+ * central moment of a window are computed in constant time whatever its size.
+ *
+ * The tables are (width+1)*(height+1) longs per power, the first row and the
+ * first column being zero. Pixels outside of the image are considered as 0,
+ * like ImageProcessor.getPixel does. The tables are taken from the shared
+ * BufferPool, release gives them back once the sums are not needed any more.
+ *
+ * The moments are computed exactly in integer arithmetic from the sums and
+ * divided only at the end, so they are the correctly rounded values of the
+ * moments over the pixels.
+ */
+public class IntegralImage {
+	public static final int MAX_POWER = 4;
+	/** Largest window for which n^4*255^4 fits in a long */
+	private static final long MAX_EXACT_PIXELS = 216;
+
+	private int width;
+	private int height;
+	private int stride;
+	private int maxPower;
+	private long[][] sums;
+
+	/**
+	 * Builds the tables of the four powers
+	 *
+	 * @param grayImage
+	 *            a 8-bit image
+	 */
+	public IntegralImage(ImageProcessor grayImage) {
+		this(grayImage, MAX_POWER);
+	}
+
+	/**
+	 * Builds the tables of the powers 1 to maxPower
+	 *
+	 * @param grayImage
+	 *            a 8-bit image, other types are converted to 8-bit
+	 * @param maxPower
+	 *            highest power to sum (1-4)
+	 */
+	public IntegralImage(ImageProcessor grayImage, int maxPower) {
+		if (!(grayImage.getPixels() instanceof byte[]))
+			grayImage = grayImage.convertToByte(true);
+		init((byte[]) grayImage.getPixels(), grayImage.getWidth(),
+				grayImage.getHeight(), maxPower);
+	}
+
+	public IntegralImage(byte[] pixels, int width, int height, int maxPower) {
+		init(pixels, width, height, maxPower);
+	}
+
+	private void init(byte[] pixels, int width, int height, int maxPower) {
+		if (maxPower < 1 || maxPower > MAX_POWER)
+			throw new IllegalArgumentException("maxPower must be between 1 and "
+					+ MAX_POWER + ". Entered: " + maxPower);
+		this.width = width;
+		this.height = height;
+		this.stride = width + 1;
+		this.maxPower = maxPower;
+		sums = new long[maxPower][];
+		BufferPool pool = BufferPool.getShared();
+		for (int p = 0; p < maxPower; p++) {
+			sums[p] = pool.getLongs(stride * (height + 1));
+			// the other values are all written below
+			Arrays.fill(sums[p], 0, stride, 0);
+			for (int y = 1; y <= height; y++)
+				sums[p][y * stride] = 0;
+		}
+
+		long[] rowSums = new long[maxPower];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int previous = y * stride + 1;
+			int current = previous + stride;
+			for (int p = 0; p < maxPower; p++)
+				rowSums[p] = 0;
+			for (int x = 0; x < width; x++) {
+				long value = pixels[offset + x] & 0xff;
+				long power = value;
+				for (int p = 0; p < maxPower; p++) {
+					rowSums[p] += power;
+					sums[p][current + x] = sums[p][previous + x] + rowSums[p];
+					power *= value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the sum of v^power over the window. The window may overlap the
+	 * border of the image, outside pixels count as 0.
+	 */
+	public long sum(int x, int y, int w, int h, int power) {
+		if (power < 1 || power > maxPower)
+			throw new IllegalArgumentException("power must be between 1 and "
+					+ maxPower + ". Entered: " + power);
+		int x1 = Math.max(x, 0);
+		int y1 = Math.max(y, 0);
+		int x2 = Math.min(x + w, width);
+		int y2 = Math.min(y + h, height);
+		if (x2 <= x1 || y2 <= y1)
+			return 0;
+		long[] table = sums[power - 1];
+		return table[y2 * stride + x2] - table[y1 * stride + x2]
+				- table[y2 * stride + x1] + table[y1 * stride + x1];
+	}
+
+	/**
+	 * Returns the mean of the window. The number of pixels is always w*h,
+	 * pixels outside of the image count as 0.
+	 */
+	public double mean(int x, int y, int w, int h) {
+		return (double) sum(x, y, w, h, 1) / ((double) w * h);
+	}
+
+	/**
+	 * Returns the (population) variance of the window
+	 */
+	public double variance(int x, int y, int w, int h) {
+		long n = (long) w * h;
+		long s1 = sum(x, y, w, h, 1);
+		long s2 = sum(x, y, w, h, 2);
+		// n*s2-s1*s1 is exact as long as the window has less than 2^20 pixels
+		return (double) (n * s2 - s1 * s1) / ((double) n * n);
+	}
+
+	/**
+	 * Returns the fourth moment around the mean of the window
+	 */
+	public double fourthMoment(int x, int y, int w, int h) {
+		long n = (long) w * h;
+		long s1 = sum(x, y, w, h, 1);
+		long s2 = sum(x, y, w, h, 2);
+		long s3 = sum(x, y, w, h, 3);
+		long s4 = sum(x, y, w, h, 4);
+		// n^3*sum((v-mean)^4) = n^3*s4 - 4*n^2*s1*s3 + 6*n*s1^2*s2 - 3*s1^4
+		double n4 = (double) n * n * n * n;
+		if (n <= MAX_EXACT_PIXELS) {
+			// the result is at most n^4*255^4, the intermediate terms may
+			// overflow but the wrapped long arithmetic gives it exactly
+			long s1s1 = s1 * s1;
+			long moment = n * n * n * s4 - 4 * n * n * s1 * s3 + 6 * n * s1s1
+					* s2 - 3 * s1s1 * s1s1;
+			return moment / n4;
+		}
+		BigInteger bn = BigInteger.valueOf(n);
+		BigInteger b1 = BigInteger.valueOf(s1);
+		BigInteger b11 = b1.multiply(b1);
+		BigInteger moment = bn.pow(3).multiply(BigInteger.valueOf(s4))
+				.subtract(bn.pow(2).multiply(b1).multiply(
+						BigInteger.valueOf(4 * s3)))
+				.add(bn.multiply(b11).multiply(BigInteger.valueOf(6 * s2)))
+				.subtract(b11.multiply(b11).multiply(BigInteger.valueOf(3)));
+		return moment.doubleValue() / n4;
+	}
+
+	/**
+	 * Gives the tables back to the buffer pool, the sums can not be computed
+	 * any more
+	 */
+	public void release() {
+		if (sums == null)
+			return;
+		for (long[] table : sums)
+			BufferPool.getShared().release(table);
+		sums = null;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMaxPower() {
+		return maxPower;
+	}
+}
@@ -2,81 +2,334 @@ package org.cheminfo.scripting.image.filters;
 
 import ij.process.ImageProcessor;
 
+/**
+ * Invariant feature filter: for each pixel, the kernel (by default
+ * sqrt(a*b)) is averaged over pairs of points a and b taken on two circles
+ * around the pixel, the second point being rotated by 90 degrees.
+ *
+ * The sampling offsets are computed once per extraction and the kernel is a
+ * 256x256 table, so the interior pixels only do array reads. The pixels close
+ * to the border, whose samples may fall outside of the image, are processed
+ * separately with bounds checks. They keep the original sampling, the
+ * coordinates x+4*cos(phi) being truncated, so the border values and thus the
+ * normalisation of the whole image are unchanged.
+ */
 public class InvariantFeatureHistogramFilter {
 	private ImageProcessor grayImage;
+	private int threads = 0;
+	private int rounds = 16;
+	private double firstRadius = 4;
+	private double secondRadius = 8;
+	private double[] kernel;
+
+	// sampling offsets, computed by prepare
+	private int width;
+	private int height;
+	private int[] dx1, dy1, dx2, dy2;
+	private double[] cx1, cy1, cx2, cy2;
+	private int[] offsets1, offsets2;
+	private int reach;
+	/** First coordinate from which the integer offsets give the same samples */
+	private int start;
 
 	public InvariantFeatureHistogramFilter(ImageProcessor grayImage) {
+		if (!(grayImage.getPixels() instanceof byte[]))
+			grayImage = grayImage.convertToByte(true);
 		this.grayImage = grayImage;
 	}
 
 	public byte[] performExtraction() {
-		int width = grayImage.getWidth();
-		int height = grayImage.getHeight();
-		int margin = 0;
-		int offset, i;
-		double[] invariant = new double[height * width];
-		double max = 0, min = 255;
+		prepare();
+		final byte[] source = (byte[]) grayImage.getPixels();
+		final byte[] pixels = new byte[height * width];
+		BufferPool.Buffer buffer = BufferPool.getShared().buffer(double.class,
+				height * width);
+		try {
+			computeInvariant(source, buffer.getDoubles(), pixels);
+		} finally {
+			buffer.close();
+		}
+		return pixels;
+	}
 
-		for (int y = margin; y < (height - margin); y++) {
-			offset = y * width;
-			for (int x = margin; x < (width - margin); x++) {
-				i = offset + x;
-				invariant[i] = localSupport(x, y);
-				if (invariant[i] > max)
-					max = invariant[i];
-				if (invariant[i] < min)
-					min = invariant[i];
+	/**
+	 * Computes the support of every pixel in invariant and writes it
+	 * normalized to 0-255 in pixels
+	 */
+	private void computeInvariant(final byte[] source,
+			final double[] invariant, final byte[] pixels) {
+		final int margin = 0;
+		TileScheduler scheduler = new TileScheduler(threads);
+
+		int nbBands = scheduler.getNbBands(height);
+		final double[] maxs = new double[nbBands];
+		final double[] mins = new double[nbBands];
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				int offset, i;
+				double max = 0, min = 255;
+				for (int y = Math.max(yStart, margin); y < Math.min(yEnd,
+						height - margin); y++) {
+					offset = y * width;
+					boolean interiorRow = y >= start && y < height - reach;
+					for (int x = margin; x < (width - margin); x++) {
+						i = offset + x;
+						if (interiorRow && x >= start && x < width - reach) {
+							invariant[i] = interiorSupport(source, i);
+						} else {
+							invariant[i] = borderSupport(source, x, y);
+						}
+						if (invariant[i] > max)
+							max = invariant[i];
+						if (invariant[i] < min)
+							min = invariant[i];
+					}
+				}
+				maxs[band] = max;
+				mins[band] = min;
 			}
+		});
+		double max = 0, min = 255;
+		for (int band = 0; band < nbBands; band++) {
+			max = Math.max(max, maxs[band]);
+			min = Math.min(min, mins[band]);
 		}
 
 		// Normalize values
-		byte[] pixels = new byte[height * width];
-		double interval = max - min;
-		for (i = 0; i < invariant.length; i++) {
-			double num = ((invariant[i] - min) / interval) * 255;
-			pixels[i] = (byte) (num);
+		final double minimum = min;
+		final double interval = max - min;
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				for (int i = yStart * width; i < yEnd * width; i++) {
+					double num = ((invariant[i] - minimum) / interval) * 255;
+					pixels[i] = (byte) (num);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computes the integer sampling offsets of the rounds and the distance
+	 * from the border beyond which all of them fall inside of the image and
+	 * give the same samples as the truncated coordinates
+	 */
+	private void prepare() {
+		width = grayImage.getWidth();
+		height = grayImage.getHeight();
+		if (kernel == null)
+			kernel = getSqrtKernel();
+		dx1 = new int[rounds];
+		dy1 = new int[rounds];
+		dx2 = new int[rounds];
+		dy2 = new int[rounds];
+		cx1 = new double[rounds];
+		cy1 = new double[rounds];
+		cx2 = new double[rounds];
+		cy2 = new double[rounds];
+		offsets1 = new int[rounds];
+		offsets2 = new int[rounds];
+		reach = 0;
+		start = 0;
+		int size = Math.max(width, height);
+		for (int r = 0; r < rounds; r++) {
+			double phi = 2 * Math.PI * (double) r / (double) rounds;
+			cx1[r] = firstRadius * Math.cos(phi);
+			cy1[r] = firstRadius * Math.sin(phi);
+			cx2[r] = -secondRadius * Math.sin(phi);
+			cy2[r] = secondRadius * Math.cos(phi);
+			dx1[r] = floor(cx1[r]);
+			dy1[r] = floor(cy1[r]);
+			dx2[r] = floor(cx2[r]);
+			dy2[r] = floor(cy2[r]);
+			offsets1[r] = dy1[r] * width + dx1[r];
+			offsets2[r] = dy2[r] * width + dx2[r];
+			reach = Math.max(reach, Math.max(
+					Math.max(Math.abs(dx1[r]), Math.abs(dy1[r])),
+					Math.max(Math.abs(dx2[r]), Math.abs(dy2[r]))));
+			start = Math.max(start, Math.max(Math.max(
+					getStart(cx1[r], dx1[r], size), getStart(cy1[r], dy1[r],
+							size)), Math.max(getStart(cx2[r], dx2[r], size),
+					getStart(cy2[r], dy2[r], size))));
 		}
+		start = Math.max(start, reach);
+	}
 
-		return pixels;
+	/**
+	 * Returns the coordinate from which (int)(offset+x) is always x+delta:
+	 * the rounding errors of sin and cos (4*cos(3*PI/2) is -7e-16, not 0) can
+	 * move the truncated coordinate of the small x to the previous pixel
+	 */
+	private static int getStart(double offset, int delta, int size) {
+		int start = 0;
+		for (int x = 0; x < size; x++) {
+			if ((int) (offset + x) != x + delta)
+				start = x + 1;
+		}
+		return start;
 	}
 
-	public double localSupport(int x, int y) {
+	/**
+	 * Rounds down the sampling coordinates, ignoring the rounding errors of
+	 * sin and cos (4*cos(PI/2) is 0, not 2.4e-16)
+	 */
+	private static int floor(double value) {
+		return (int) Math.floor(Math.rint(value * 1e6) / 1e6);
+	}
+
+	private double interiorSupport(byte[] source, int i) {
 		double sum = 0.0;
+		for (int r = 0; r < rounds; r++) {
+			sum += kernel[((source[i + offsets1[r]] & 0xff) << 8)
+					| (source[i + offsets2[r]] & 0xff)];
+		}
+		return sum / (2 * rounds);
+	}
 
-		int round = 16;
+	private double borderSupport(byte[] source, int x, int y) {
+		double sum = 0.0;
 		int total = 0;
-		for (int r = 0; r < round; r++) {
-			double phi = 2 * Math.PI * (double) r / (double) round;
+		for (int r = 0; r < rounds; r++) {
 			int a = 0, b = 0;
-			int x1 = (int) (4 * Math.cos(phi) + x);
-			int y1 = (int) (4 * Math.sin(phi) + y);
-			int x2 = (int) (-8 * Math.sin(phi) + x);
-			int y2 = (int) (8 * Math.cos(phi) + y);
-
-			if (x1 >= 0 && x1 < grayImage.getWidth() && y1 >= 0
-					&& y1 < grayImage.getHeight()) {
-				a = grayImage.getPixel(x1, y1);
+			int x1 = (int) (cx1[r] + x);
+			int y1 = (int) (cy1[r] + y);
+			int x2 = (int) (cx2[r] + x);
+			int y2 = (int) (cy2[r] + y);
+
+			if (x1 >= 0 && x1 < width && y1 >= 0 && y1 < height) {
+				a = source[y1 * width + x1] & 0xff;
 				total++;
 			}
 
-			if (x2 >= 0 && x2 < grayImage.getWidth() && y2 >= 0
-					&& y2 < grayImage.getHeight()) {
-				b = grayImage.getPixel(x2, y2);
+			if (x2 >= 0 && x2 < width && y2 >= 0 && y2 < height) {
+				b = source[y2 * width + x2] & 0xff;
 				total++;
 			}
 
-			sum += Math.sqrt((double) a * (double) b);
+			sum += kernel[(a << 8) | b];
 		}
 		double average = sum / (double) total;
 		return average;
 	}
 
+	public double localSupport(int x, int y) {
+		if (dx1 == null || kernel == null)
+			prepare();
+		return borderSupport((byte[]) grayImage.getPixels(), x, y);
+	}
+
+	/**
+	 * Returns the default kernel: sqrt(a*b) at index a*256+b
+	 */
+	public static double[] getSqrtKernel() {
+		return SqrtKernel.VALUES;
+	}
+
+	private static class SqrtKernel {
+		static final double[] VALUES = new double[256 * 256];
+		static {
+			for (int a = 0; a < 256; a++) {
+				for (int b = 0; b < 256; b++) {
+					VALUES[(a << 8) | b] = Math.sqrt((double) a * (double) b);
+				}
+			}
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * @param rounds
+	 *            number of pairs of points around each pixel (Default 16)
+	 */
+	public void setRounds(int rounds) {
+		if (rounds < 1)
+			throw new IllegalArgumentException(
+					"The number of rounds must be at least 1. Entered: "
+							+ rounds);
+		this.rounds = rounds;
+		dx1 = null;
+	}
+
+	public double getFirstRadius() {
+		return firstRadius;
+	}
+
+	/**
+	 * @param firstRadius
+	 *            radius of the circle of the first points (Default 4)
+	 */
+	public void setFirstRadius(double firstRadius) {
+		this.firstRadius = firstRadius;
+		dx1 = null;
+	}
+
+	public double getSecondRadius() {
+		return secondRadius;
+	}
+
+	/**
+	 * @param secondRadius
+	 *            radius of the circle of the second points (Default 8)
+	 */
+	public void setSecondRadius(double secondRadius) {
+		this.secondRadius = secondRadius;
+		dx1 = null;
+	}
+
+	/**
+	 * @param kernel
+	 *            values of the kernel for the pair of pixels (a,b) at index
+	 *            a*256+b, null for the default sqrt(a*b)
+	 */
+	public void setKernel(double[] kernel) {
+		if (kernel != null && kernel.length != 256 * 256)
+			throw new IllegalArgumentException(
+					"The kernel must have 65536 values. Entered: "
+							+ kernel.length);
+		this.kernel = kernel;
+	}
+
 	/**
 	 * Apply a invariant feature filter
 	 */
 	public static void invariantFeatureHistogram(ImageProcessor processor) {
+		invariantFeatureHistogram(processor, 0);
+	}
+
+	/**
+	 * Apply a invariant feature filter using the given number of threads (0
+	 * for all the processors)
+	 */
+	public static void invariantFeatureHistogram(ImageProcessor processor,
+			int threads) {
+		invariantFeatureHistogram(processor, threads, 16, 4, 8);
+	}
+
+	/**
+	 * Apply a invariant feature filter with the given sampling
+	 */
+	public static void invariantFeatureHistogram(ImageProcessor processor,
+			int threads, int rounds, double firstRadius, double secondRadius) {
 		InvariantFeatureHistogramFilter invariantTexture = new InvariantFeatureHistogramFilter(
 				processor.convertToByte(true));
+		invariantTexture.setThreads(threads);
+		invariantTexture.setRounds(rounds);
+		invariantTexture.setFirstRadius(firstRadius);
+		invariantTexture.setSecondRadius(secondRadius);
 		byte[] bytes = invariantTexture.performExtraction();
 		processor.setPixels(bytes);
 	}
@@ -2,10 +2,46 @@ package org.cheminfo.scripting.image.filters;
 
 import ij.process.ImageProcessor;
 
+/**
+ * Local binary pattern texture filter. Each neighbour brighter than the
+ * central pixel sets one bit of the code of the pixel.
+ *
+ * With a radius of 1 and 8 neighbours the 3x3 square neighbourhood is used,
+ * otherwise the neighbours are sampled on a circle and bilinearly
+ * interpolated, counterclockwise from the right. The code can then be mapped
+ * to its uniform, rotation invariant or uniform rotation invariant label, the
+ * bits of the square code being put in the order of the circle first.
+ *
+ * The pixels are processed row by row through precomputed offsets and
+ * weights, and no memory is allocated per pixel. Pixels closer to the border
+ * than the radius are left at 0.
+ */
 public class LocalBinaryPartitionFilter {
+	/** The code itself, at most 8 neighbours */
+	public static final int BASIC = 0;
+	/** Uniform patterns get their own label, the others share the last one */
+	public static final int UNIFORM = 1;
+	/** Smallest code among all the rotations, at most 8 neighbours */
+	public static final int ROTATION_INVARIANT = 2;
+	/** Number of bits set for uniform patterns, neighbours+1 otherwise */
+	public static final int UNIFORM_ROTATION_INVARIANT = 3;
+
+	public static final int MAX_NEIGHBORS = 16;
+
+	/**
+	 * Position on the circle (right, top-right, top, top-left, left,
+	 * bottom-left, bottom, bottom-right) of each bit of the square code
+	 */
+	private static final int[] SQUARE_TO_CIRCLE = { 3, 2, 1, 4, 0, 5, 6, 7 };
+
 	private int width;
 	private int height;
 	private ImageProcessor grayImage;
+	private int threads = 0;
+	private double radius = 1;
+	private int neighbors = 8;
+	private int mode = BASIC;
+	private boolean square = true;
 
 	public LocalBinaryPartitionFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
@@ -14,27 +50,75 @@ public class LocalBinaryPartitionFilter {
 	public byte[] performExtraction() {
 		width = grayImage.getWidth();
 		height = grayImage.getHeight();
-		byte[] pixels = (byte[]) grayImage.getPixels();
+		final byte[] pixels = (byte[]) grayImage.getPixels();
+		if (neighbors > 8 && (mode == BASIC || mode == ROTATION_INVARIANT))
+			throw new IllegalArgumentException(
+					"The codes of more than 8 neighbors only fit in a byte "
+							+ "in the uniform modes. Neighbors: " + neighbors);
 
-		byte[] result = new byte[width * height];
+		final byte[] result = new byte[width * height];
+		final Sampling sampling = new Sampling(width);
+		final byte[] labels = createLabels(neighbors, mode, sampling.square);
+		final int margin = sampling.margin;
 
-		int offset, index;
-		for (int y = 1; y < height - 1; y++) {
-			offset = y * width;
-			for (int x = 1; x < width - 1; x++) {
-				index = offset + x;
-				result[index] = analyzeTexture(pixels, x, y, index);
+		new TileScheduler(threads).run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				for (int y = Math.max(yStart, margin); y < Math.min(yEnd,
+						height - margin); y++) {
+					int start = y * width + margin;
+					int end = (y + 1) * width - margin;
+					if (sampling.square) {
+						analyzeRow(pixels, start, end, labels, result);
+					} else {
+						sampling.analyzeRow(pixels, start, end, labels, result);
+					}
+				}
 			}
-		}
+		});
 
 		return result;
 	}
 
 	/**
-	 * It check the neighborhood of a pixel and build a binary string in which
-	 * each position has 1 if its value is greater than the pixel and 0 if its
+	 * Codes the pixels start to end of a row with the 3x3 neighbourhood, the
+	 * bits being in the order top-left, top, top-right, left, right,
+	 * bottom-left, bottom, bottom-right, and maps them through labels if any
+	 * (built with toCircular)
+	 */
+	private void analyzeRow(byte[] pixels, int start, int end, byte[] labels,
+			byte[] result) {
+		if (labels == null) {
+			for (int index = start; index < end; index++) {
+				result[index] = (byte) squareCode(pixels, index, width);
+			}
+		} else {
+			for (int index = start; index < end; index++) {
+				result[index] = labels[squareCode(pixels, index, width)];
+			}
+		}
+	}
+
+	/**
+	 * The comparisons are done without branches: the sign bit of
+	 * localValue-neighbour is 1 when the neighbour is greater
+	 */
+	private static int squareCode(byte[] pixels, int index, int width) {
+		int localValue = pixels[index] & 0xff;
+		return ((localValue - (pixels[index - width - 1] & 0xff)) >>> 31)
+				| (((localValue - (pixels[index - width] & 0xff)) >>> 31) << 1)
+				| (((localValue - (pixels[index - width + 1] & 0xff)) >>> 31) << 2)
+				| (((localValue - (pixels[index - 1] & 0xff)) >>> 31) << 3)
+				| (((localValue - (pixels[index + 1] & 0xff)) >>> 31) << 4)
+				| (((localValue - (pixels[index + width - 1] & 0xff)) >>> 31) << 5)
+				| (((localValue - (pixels[index + width] & 0xff)) >>> 31) << 6)
+				| (((localValue - (pixels[index + width + 1] & 0xff)) >>> 31) << 7);
+	}
+
+	/**
+	 * It check the 3x3 neighborhood of a pixel and build a binary code in which
+	 * each bit is 1 if the neighbour is greater than the pixel and 0 if its
 	 * value is lesser than the pixel
-	 * 
+	 *
 	 * @param pixels
 	 *            The original array of pixels (Gray scale)
 	 * @param x
@@ -45,37 +129,275 @@ public class LocalBinaryPartitionFilter {
 	 *            The index position of the pixel in the array of pixels
 	 * @return
 	 */
-
 	public byte analyzeTexture(byte[] pixels, int x, int y, int index) {
-		// Take into account boundary conditions...
-		int[] neighbors = { x - 1 + width * (y - 1), x + width * (y - 1),
-				x + 1 + width * (y - 1), x - 1 + width * (y),
-				x + 1 + width * (y), x - 1 + width * (y + 1),
-				x + width * (y + 1), x + 1 + width * (y + 1) };
-
-		int localValue = pixels[index];
-		String binary = "";
-		int code = 0;
-		int one = 1;
-		int temp;
-
-		for (int pos = 0; pos < neighbors.length; pos++) {
-			temp = pixels[neighbors[pos]];
-			if (temp > localValue) {
-				binary = "1" + binary;
-				code += one << pos;
-			} else
-				binary = "0" + binary;
+		return (byte) squareCode(pixels, index, grayImage.getWidth());
+	}
+
+	/**
+	 * Precomputed neighbourhood of a pixel: for each neighbour the offsets of
+	 * the four pixels around the sampling point and their bilinear weights, in
+	 * fixed point so that the weights of a neighbour sum exactly to ONE
+	 */
+	private class Sampling {
+		static final int ONE = 1 << 16;
+		boolean square;
+		int margin;
+		int[] offsets;
+		int[] weights;
+
+		Sampling(int width) {
+			square = LocalBinaryPartitionFilter.this.square && radius == 1
+					&& neighbors == 8;
+			if (square) {
+				margin = 1;
+				return;
+			}
+			offsets = new int[4 * neighbors];
+			weights = new int[4 * neighbors];
+			for (int p = 0; p < neighbors; p++) {
+				double angle = 2 * Math.PI * p / neighbors;
+				// rounds the sampling points that fall on pixel centers
+				double dx = Math.rint(radius * Math.cos(angle) * 1e6) / 1e6;
+				double dy = Math.rint(-radius * Math.sin(angle) * 1e6) / 1e6;
+				int x0 = (int) Math.floor(dx);
+				int y0 = (int) Math.floor(dy);
+				double fx = dx - x0;
+				double fy = dy - y0;
+				offsets[4 * p] = y0 * width + x0;
+				offsets[4 * p + 1] = y0 * width + x0 + 1;
+				offsets[4 * p + 2] = (y0 + 1) * width + x0;
+				offsets[4 * p + 3] = (y0 + 1) * width + x0 + 1;
+				weights[4 * p + 1] = (int) Math.round(fx * (1 - fy) * ONE);
+				weights[4 * p + 2] = (int) Math.round((1 - fx) * fy * ONE);
+				weights[4 * p + 3] = (int) Math.round(fx * fy * ONE);
+				weights[4 * p] = ONE - weights[4 * p + 1] - weights[4 * p + 2]
+						- weights[4 * p + 3];
+				margin = Math.max(margin, Math.max(Math.abs(x0) + 1,
+						Math.abs(y0) + 1));
+			}
+		}
+
+		void analyzeRow(byte[] pixels, int start, int end, byte[] labels,
+				byte[] result) {
+			for (int index = start; index < end; index++) {
+				int localValue = (pixels[index] & 0xff) * ONE;
+				int code = 0;
+				for (int p = 0, q = 0; p < neighbors; p++, q += 4) {
+					int value = weights[q] * (pixels[index + offsets[q]] & 0xff)
+							+ weights[q + 1]
+							* (pixels[index + offsets[q + 1]] & 0xff)
+							+ weights[q + 2]
+							* (pixels[index + offsets[q + 2]] & 0xff)
+							+ weights[q + 3]
+							* (pixels[index + offsets[q + 3]] & 0xff);
+					// sign bit of localValue-value: 1 if the neighbour is greater
+					code |= ((localValue - value) >>> 31) << p;
+				}
+				result[index] = labels == null ? (byte) code : labels[code];
+			}
+		}
+	}
+
+	/**
+	 * Returns the table mapping the codes to the labels of the mode, null when
+	 * the code is the label. The labels treat the bits as neighbours on a
+	 * circle, the square codes are reordered first.
+	 */
+	private static byte[] createLabels(int neighbors, int mode, boolean square) {
+		if (mode == BASIC)
+			return null;
+		byte[] labels = new byte[1 << neighbors];
+		for (int code = 0; code < (1 << neighbors); code++) {
+			labels[code] = (byte) label(square ? toCircular(code) : code,
+					neighbors, mode);
 		}
-		return (byte) code;
+		return labels;
+	}
+
+	/**
+	 * Reorders the bits of a square code as the bits of the circular sampling
+	 * of radius 1 and 8 neighbours
+	 */
+	private static int toCircular(int code) {
+		int circular = 0;
+		for (int bit = 0; bit < 8; bit++) {
+			circular |= ((code >>> bit) & 1) << SQUARE_TO_CIRCLE[bit];
+		}
+		return circular;
+	}
+
+	private static int label(int code, int neighbors, int mode) {
+		switch (mode) {
+		case UNIFORM:
+			return uniformLabel(code, neighbors);
+		case ROTATION_INVARIANT:
+			return minimalRotation(code, neighbors);
+		case UNIFORM_ROTATION_INVARIANT:
+			return transitions(code, neighbors) <= 2 ? Integer.bitCount(code)
+					: neighbors + 1;
+		default:
+			return code;
+		}
+	}
+
+	private static int transitions(int code, int neighbors) {
+		int rotated = (code >>> 1) | ((code & 1) << (neighbors - 1));
+		return Integer.bitCount(code ^ rotated);
+	}
+
+	private static int minimalRotation(int code, int neighbors) {
+		int mask = (1 << neighbors) - 1;
+		int min = code;
+		for (int i = 1; i < neighbors; i++) {
+			code = ((code >>> 1) | (code << (neighbors - 1))) & mask;
+			if (code < min)
+				min = code;
+		}
+		return min;
+	}
+
+	/**
+	 * Uniform patterns are numbered by their number of bits set and their
+	 * rotation: 0 for no bit, then neighbors labels for each count of 1 to
+	 * neighbors-1 bits, then one label for all bits. The non uniform patterns
+	 * get neighbors*(neighbors-1)+2.
+	 */
+	private static int uniformLabel(int code, int neighbors) {
+		if (transitions(code, neighbors) > 2)
+			return neighbors * (neighbors - 1) + 2;
+		int ones = Integer.bitCount(code);
+		if (ones == 0)
+			return 0;
+		if (ones == neighbors)
+			return neighbors * (neighbors - 1) + 1;
+		// position of the first 1 following a 0
+		int rotation = 0;
+		while (((code >>> rotation) & 1) == 0
+				|| ((code >>> ((rotation + neighbors - 1) % neighbors)) & 1) == 1) {
+			rotation++;
+		}
+		return 1 + (ones - 1) * neighbors + rotation;
+	}
+
+	/**
+	 * Parses the name of a mode: basic, uniform, rotationInvariant or
+	 * uniformRotationInvariant
+	 */
+	public static int getMode(String name) {
+		if (name.equalsIgnoreCase("basic"))
+			return BASIC;
+		if (name.equalsIgnoreCase("uniform"))
+			return UNIFORM;
+		if (name.equalsIgnoreCase("rotationInvariant"))
+			return ROTATION_INVARIANT;
+		if (name.equalsIgnoreCase("uniformRotationInvariant"))
+			return UNIFORM_ROTATION_INVARIANT;
+		throw new IllegalArgumentException("Unknown LBP mode: " + name
+				+ ". Valid values: basic, uniform, rotationInvariant, "
+				+ "uniformRotationInvariant");
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @param radius
+	 *            distance of the neighbours to the pixel (Default 1)
+	 */
+	public void setRadius(double radius) {
+		if (!(radius > 0))
+			throw new IllegalArgumentException(
+					"The radius must be greater than 0. Entered: " + radius);
+		this.radius = radius;
+	}
+
+	public int getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * @param neighbors
+	 *            number of neighbours (Default 8), up to 8 for the basic and
+	 *            rotation invariant modes and up to 16 for the uniform ones
+	 */
+	public void setNeighbors(int neighbors) {
+		if (neighbors < 1 || neighbors > MAX_NEIGHBORS)
+			throw new IllegalArgumentException(
+					"The number of neighbors must be between 1 and "
+							+ MAX_NEIGHBORS + ". Entered: " + neighbors);
+		this.neighbors = neighbors;
+	}
+
+	public boolean isSquare() {
+		return square;
+	}
+
+	/**
+	 * @param square
+	 *            true to use the 3x3 square neighbourhood for a radius of 1
+	 *            and 8 neighbours, false to interpolate the diagonal
+	 *            neighbours on the circle (Default true)
+	 */
+	public void setSquare(boolean square) {
+		this.square = square;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            BASIC, UNIFORM, ROTATION_INVARIANT or
+	 *            UNIFORM_ROTATION_INVARIANT
+	 */
+	public void setMode(int mode) {
+		if (mode < BASIC || mode > UNIFORM_ROTATION_INVARIANT)
+			throw new IllegalArgumentException("Unknown LBP mode: " + mode);
+		this.mode = mode;
 	}
 
 	/**
 	 * Apply a local Binary Partition filter
 	 */
 	public static void localBinaryPartition(ImageProcessor processor) {
+		localBinaryPartition(processor, 0);
+	}
+
+	/**
+	 * Apply a local Binary Partition filter using the given number of threads
+	 * (0 for all the processors)
+	 */
+	public static void localBinaryPartition(ImageProcessor processor,
+			int threads) {
+		localBinaryPartition(processor, threads, 1, 8, BASIC);
+	}
+
+	/**
+	 * Apply a local Binary Partition filter with the given neighbourhood and
+	 * mode
+	 */
+	public static void localBinaryPartition(ImageProcessor processor,
+			int threads, double radius, int neighbors, int mode) {
 		LocalBinaryPartitionFilter localbinary = new LocalBinaryPartitionFilter(
 				processor.convertToByte(true));
+		localbinary.setThreads(threads);
+		localbinary.setRadius(radius);
+		localbinary.setNeighbors(neighbors);
+		localbinary.setMode(mode);
 		byte[] bytes = localbinary.performExtraction();
 		processor.setPixels(bytes);
 
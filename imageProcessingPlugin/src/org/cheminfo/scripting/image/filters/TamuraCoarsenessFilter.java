@@ -6,109 +6,136 @@ import ij.process.ImageProcessor;
  * @author jccaicedo
  */
 public class TamuraCoarsenessFilter {
+	public static final int MAX_WINDOW_SIZE = 12;
 	private int maxWindowSize = 6;
+	private int threads = 0;
+	private IntegralImage integral;
 	private ImageProcessor grayImage;
 
 	public TamuraCoarsenessFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
 	}
 
-	public byte[] performExtraction() {
-		int width = getGrayImage().getWidth();
-		int height = getGrayImage().getHeight();
-		byte[] coarseness = new byte[width * height];
-		int margin = 0; // in pixels
-
-		int offset, i;
-
-		for (int y = margin; y < (height - margin); y++) {
-			offset = y * width;
-			for (int x = margin; x < (width - margin); x++) {
-				i = offset + x;
-				coarseness[i] = (byte) selectHighestDiff(x, y);
-			}
-		}
-
-		return coarseness;
+	/**
+	 * @param integral
+	 *            summed-area tables of grayImage, shared with other filters
+	 */
+	public TamuraCoarsenessFilter(ImageProcessor grayImage,
+			IntegralImage integral) {
+		this.grayImage = grayImage;
+		this.integral = integral;
 	}
 
-	private int average(int x, int y, int windowSize) {
-		int limit = (int) Math.pow(2, windowSize);
-		int twoKMinusOne = (int) Math.pow(2, windowSize - 1);
-		int totalPixels = (int) Math.pow(2, 2 * windowSize);
-		int sum = 0;
-		int value;
-
-		for (int j = 1; j < limit; j++) {
-			for (int i = 1; i < limit; i++) {
-				value = getGrayImage().getPixel(x - twoKMinusOne + i,
-						y - twoKMinusOne + j);
-				sum += value;
+	public byte[] performExtraction() {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		final byte[] coarseness = new byte[width * height];
+		// the tables built here are given back once the coarseness is computed
+		boolean ownIntegral = integral == null;
+		IntegralImage sums = ownIntegral ? new IntegralImage(getGrayImage(), 1)
+				: integral;
+		BufferPool pool = BufferPool.getShared();
+		// for every pixel the highest difference found so far and its scale
+		BufferPool.Buffer maxValues = pool.buffer(int.class, width * height)
+				.clear();
+		BufferPool.Buffer maxKs = pool.buffer(byte.class, width * height)
+				.clear();
+		BufferPool.Buffer averages = pool.buffer(int.class, width * height);
+		try {
+			computeScales(sums, maxValues.getInts(), maxKs.getBytes(), averages
+					.getInts());
+			byte[] scales = maxKs.getBytes();
+			int step = 255 / maxWindowSize;
+			for (int i = 0; i < coarseness.length; i++) {
+				coarseness[i] = (byte) (scales[i] * step);
 			}
+		} finally {
+			maxValues.close();
+			maxKs.close();
+			averages.close();
+			if (ownIntegral)
+				sums.release();
 		}
-		return sum / totalPixels;
+		return coarseness;
 	}
 
 	/**
-	 * Calculate the difference between the non overlapping neighborhoods of a
-	 * given pixel
-	 * 
-	 * @param x
-	 *            X coordinate of pixel
-	 * @param y
-	 *            Y coordinate of pixel
-	 * @param windowSize
-	 *            Size of the neighborhood
-	 * @param horizontal
-	 *            The direction of analysis: Horizontal (true) or Vertical
-	 *            (false)
-	 * @return
+	 * Keeps for every pixel the window size giving the highest difference
+	 * between the averages of the opposite neighbouring windows
 	 */
-	private int diffBetweenNeighborhoods(int x, int y, int windowSize,
-			boolean horizontal) {
-		int value = 0;
-		int valueA, valueB;
-		int twoKMinusOne = (int) Math.pow(2, windowSize - 1);
-		int limit = (int) Math.pow(2, windowSize);
-
-		if (horizontal
-				&& !(x + limit > getGrayImage().getWidth() || x - limit < 0)) {
-			valueA = average(x + twoKMinusOne, y, windowSize);
-			valueB = average(x - twoKMinusOne, y, windowSize);
-			value = Math.abs(valueA - valueB);
-		}
-		if (!horizontal
-				&& !(y + limit > getGrayImage().getHeight() || y - limit < 0)) {
-			valueA = average(x, y + twoKMinusOne, windowSize);
-			valueB = average(x, y - twoKMinusOne, windowSize);
-			value = Math.abs(valueA - valueB);
+	private void computeScales(final IntegralImage integral,
+			final int[] maxValues, final byte[] maxKs, final int[] averages) {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		TileScheduler scheduler = new TileScheduler(threads);
+
+		for (int windowSize = 1; windowSize <= maxWindowSize; windowSize++) {
+			final int k = windowSize;
+			final int limit = 1 << k;
+			final boolean horizontal = 2 * limit <= width;
+			final boolean vertical = 2 * limit <= height;
+			if (!horizontal && !vertical)
+				continue;
+			scheduler.run(height, new TileScheduler.BandTask() {
+				public void process(int band, int yStart, int yEnd) {
+					computeAverages(integral, k, averages, yStart, yEnd);
+				}
+			});
+			// the differences read the averages of the neighbouring bands
+			final int twoKMinusOne = limit >> 1;
+			scheduler.run(height, new TileScheduler.BandTask() {
+				public void process(int band, int yStart, int yEnd) {
+					for (int y = yStart; y < yEnd; y++) {
+						int offset = y * width;
+						boolean validY = vertical && y - limit >= 0
+								&& y + limit <= height;
+						for (int x = 0; x < width; x++) {
+							int i = offset + x;
+							int value;
+							if (horizontal && x - limit >= 0
+									&& x + limit <= width) {
+								value = Math.abs(averages[i + twoKMinusOne]
+										- averages[i - twoKMinusOne]);
+								if (value > maxValues[i]) {
+									maxValues[i] = value;
+									maxKs[i] = (byte) k;
+								}
+							}
+							if (validY) {
+								value = Math.abs(averages[i + twoKMinusOne
+										* width]
+										- averages[i - twoKMinusOne * width]);
+								if (value > maxValues[i]) {
+									maxValues[i] = value;
+									maxKs[i] = (byte) k;
+								}
+							}
+						}
+					}
+				}
+			});
 		}
-		return value;
 	}
 
-	private int selectHighestDiff(int x, int y) {
-		int value;
-		int maxValue = 0;
-		boolean horizontal = true;
-		boolean vertical = false;
-		int maxK = 0;
-
-		for (int k = 1; k <= maxWindowSize; k++) {
-			value = diffBetweenNeighborhoods(x, y, k, horizontal);
-			if (value > maxValue) {
-				maxValue = value;
-				maxK = k;
-			}
-
-			value = diffBetweenNeighborhoods(x, y, k, vertical);
-			if (value > maxValue) {
-				maxValue = value;
-				maxK = k;
+	/**
+	 * Fills the rows yStart to yEnd of averages with the mean of the
+	 * (2^k-1)x(2^k-1) window centered on each pixel divided by 2^(2k), pixels
+	 * outside of the image counting as 0.
+	 */
+	private void computeAverages(IntegralImage integral, int windowSize,
+			int[] averages, int yStart, int yEnd) {
+		int width = integral.getWidth();
+		int side = (1 << windowSize) - 1;
+		int twoKMinusOne = 1 << (windowSize - 1);
+		long totalPixels = 1L << (2 * windowSize);
+		for (int y = yStart; y < yEnd; y++) {
+			int offset = y * width;
+			int y0 = y - twoKMinusOne + 1;
+			for (int x = 0; x < width; x++) {
+				averages[offset + x] = (int) (integral.sum(
+						x - twoKMinusOne + 1, y0, side, side, 1) / totalPixels);
 			}
 		}
-		int normalizedValue = 0;
-		normalizedValue = (maxK) * (255 / maxWindowSize);
-		return normalizedValue;
 	}
 
 	/**
@@ -117,6 +144,10 @@ public class TamuraCoarsenessFilter {
 	 * @uml.property name="maxWindowSize"
 	 */
 	public void setMaxWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+			throw new IllegalArgumentException(
+					"The window size must be between 1 and " + MAX_WINDOW_SIZE
+							+ ". Entered: " + windowSize);
 		this.maxWindowSize = windowSize;
 	}
 
@@ -128,6 +159,18 @@ public class TamuraCoarsenessFilter {
 		return maxWindowSize;
 	}
 
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	public ImageProcessor getGrayImage() {
 		return grayImage;
 	}
@@ -7,83 +7,109 @@ import java.awt.Rectangle;
 public class TamuraContrastFilter {
 	private ImageProcessor grayImage;
 	int margin = 6; // in pixels
+	private int threads = 0;
+	private IntegralImage integral;
 
 	public TamuraContrastFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
 	}
 
-	public byte[] performExtraction() {
-		int width = getGrayImage().getWidth();
-		int height = getGrayImage().getHeight();
-		double[] contrastArray = new double[width * height];
-		byte[] pixels = new byte[width * height];
+	/**
+	 * @param integral
+	 *            summed-area tables of grayImage up to the fourth power, shared
+	 *            with other filters
+	 */
+	public TamuraContrastFilter(ImageProcessor grayImage, IntegralImage integral) {
+		this.grayImage = grayImage;
+		this.integral = integral;
+	}
 
-		int offset, i;
-		double max = 0, min = 256;
-		Rectangle r = new Rectangle();
-
-		for (int y = 0; y < (height - 0); y++) {
-			offset = y * width;
-			for (int x = 0; x < (width - 0); x++) {
-				i = offset + x;
-				configRect(r, x, y, margin, width, height);
-				contrastArray[i] += calculateContrast(r);
-				if (contrastArray[i] > max)
-					max = contrastArray[i];
-				if (contrastArray[i] < min)
-					min = contrastArray[i];
-			}
-		}
-		// Normalize contrast values
-		double longInt = max - min;
-		for (i = 0; i < contrastArray.length; i++) {
-			double num = ((contrastArray[i] - min) / longInt) * 255;
-			pixels[i] = (byte) (num);
+	public byte[] performExtraction() {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		final byte[] pixels = new byte[width * height];
+		// the tables built here are given back once the contrast is computed
+		boolean ownIntegral = integral == null || integral.getMaxPower() < 4;
+		IntegralImage sums = ownIntegral ? new IntegralImage(getGrayImage())
+				: integral;
+		BufferPool.Buffer contrastBuffer = BufferPool.getShared().buffer(
+				double.class, width * height);
+		try {
+			computeContrast(sums, contrastBuffer.getDoubles(), pixels);
+		} finally {
+			contrastBuffer.close();
+			if (ownIntegral)
+				sums.release();
 		}
-
 		return pixels;
 	}
 
-	private double calculateContrast(Rectangle r) {
-		double mean = 0.0;
-		int value;
-
-		// Compute mean
-		for (int y = r.y; y < (r.y + r.height); y++) {
-			for (int x = r.x; x < (r.x + r.width); x++) {
-				value = getGrayImage().getPixel(x, y);
-				mean += value;
-			}
-		}
-		mean = mean / (r.width * r.height);
-		// Calculate standard deviation
-		double stddev = 0.0;
-		for (int y = r.y; y < (r.y + r.height); y++) {
-			for (int x = r.x; x < (r.x + r.width); x++) {
-				value = getGrayImage().getPixel(x, y);
-				// stddev += Math.pow(value - mean , 2);
-				double tmp = value - mean;
-				stddev += tmp * tmp;
+	/**
+	 * Computes the contrast of every pixel in contrastArray and writes it
+	 * normalized to 0-255 in pixels
+	 */
+	private void computeContrast(final IntegralImage integral,
+			final double[] contrastArray, final byte[] pixels) {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		TileScheduler scheduler = new TileScheduler(threads);
+
+		int nbBands = scheduler.getNbBands(height);
+		final double[] maxs = new double[nbBands];
+		final double[] mins = new double[nbBands];
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				int offset, i;
+				double max = 0, min = 256;
+				Rectangle r = new Rectangle();
+
+				for (int y = yStart; y < yEnd; y++) {
+					offset = y * width;
+					for (int x = 0; x < (width - 0); x++) {
+						i = offset + x;
+						configRect(r, x, y, margin, width, height);
+						contrastArray[i] = calculateContrast(integral, r);
+						if (contrastArray[i] > max)
+							max = contrastArray[i];
+						if (contrastArray[i] < min)
+							min = contrastArray[i];
+					}
+				}
+				maxs[band] = max;
+				mins[band] = min;
 			}
+		});
+		double max = 0, min = 256;
+		for (int band = 0; band < nbBands; band++) {
+			max = Math.max(max, maxs[band]);
+			min = Math.min(min, mins[band]);
 		}
-		stddev = Math.sqrt(stddev / (r.width * r.height));
-		// Calculate fourth momentum around the mean
-		double fourthMean = 0.0;
-		for (int y = r.y; y < (r.y + r.height); y++) {
-			for (int x = r.x; x < (r.x + r.width); x++) {
-				value = getGrayImage().getPixel(x, y);
-				// fourthMean += Math.pow(value - mean , 4);
-				double tmp = value - mean;
-				tmp = tmp * tmp; // tmp^2
-				fourthMean += tmp * tmp; // tmp^4
+
+		// Normalize contrast values
+		final double minimum = min;
+		final double longInt = max - min;
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				for (int i = yStart * width; i < yEnd * width; i++) {
+					double num = ((contrastArray[i] - minimum) / longInt) * 255;
+					pixels[i] = (byte) (num);
+				}
 			}
-		}
-		fourthMean = fourthMean / (r.width * r.height);
-		// Now, calculate the contrast
-		double contrast = 0.0;
+		});
+	}
+
+	/**
+	 * Calculates the contrast of the window: variance / (fourth moment)^(1/4).
+	 * A flat window has no contrast (0/0), it gives NaN like the direct
+	 * computation over the pixels did.
+	 */
+	private double calculateContrast(IntegralImage integral, Rectangle r) {
+		double variance = integral.variance(r.x, r.y, r.width, r.height);
+		if (variance == 0)
+			return Double.NaN;
+		double fourthMean = integral.fourthMoment(r.x, r.y, r.width, r.height);
 		// contrast = Math.pow(stddev,2) / ( Math.pow( fourthMean, 0.25 ) );
-		contrast = (stddev * stddev) / (Math.pow(fourthMean, 0.25));
-		return contrast;
+		return variance / (Math.pow(fourthMean, 0.25));
 	}
 
 	private void configRect(Rectangle r, int x, int y, int margin, int width,
@@ -117,4 +143,16 @@ public class TamuraContrastFilter {
 		this.margin = margin;
 	}
 
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 }
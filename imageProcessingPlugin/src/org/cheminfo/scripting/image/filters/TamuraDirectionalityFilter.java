@@ -1,82 +1,249 @@
 package org.cheminfo.scripting.image.filters;
 
-import ij.ImagePlus;
-import ij.gui.NewImage;
-import ij.process.Blitter;
+import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
+
+/**
+ * Tamura directionality: the orientation of the gradient of each pixel,
+ * mapped to 0-255 for angles of 0 to PI, and the histogram of the
+ * orientations of the pixels whose gradient is strong enough.
+ *
+ * Both 3x3 gradients are computed in a single pass over the bytes of the
+ * image and the orientation is read from a table indexed by the absolute
+ * values of the gradients, so the only image sized allocation is the result.
+ */
 public class TamuraDirectionalityFilter {
+	/** Largest absolute value of a 3x3 gradient of a 8-bit image */
+	private static final int MAX_GRADIENT = 3 * 255;
+	private static final int SIDE = MAX_GRADIENT + 1;
+
+	private static byte[] sameSignAngles;
+	private static byte[] oppositeSignAngles;
+
 	private ImageProcessor grayImage;
+	private int threads = 0;
+	private int histogramBins = 16;
+	private int threshold = 12;
+	private int[] histogram;
 
 	public TamuraDirectionalityFilter(ImageProcessor grayImage) {
+		if (!(grayImage.getPixels() instanceof byte[]))
+			grayImage = grayImage.convertToByte(true);
 		this.grayImage = grayImage;
 	}
 
 	public byte[] performExtraction() {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		final byte[] pixels = new byte[width * height];
+
+		TileScheduler scheduler = new TileScheduler(threads);
+		final int[][] histograms = new int[scheduler.getNbBands(height)][histogramBins];
+		scheduler.run(height, new TileScheduler.BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				processRows(new Rectangle(0, yStart, width, yEnd - yStart),
+						null, pixels, histograms[band]);
+			}
+		});
+
+		histogram = new int[histogramBins];
+		for (int[] bandHistogram : histograms) {
+			for (int bin = 0; bin < histogramBins; bin++)
+				histogram[bin] += bandHistogram[bin];
+		}
+		return pixels;
+	}
+
+	/**
+	 * Returns the histogram of the orientations of the pixels of a region of
+	 * interest, without computing the orientation image
+	 *
+	 * @see #getHistogram()
+	 */
+	public int[] getHistogram(Roi roi) {
+		Rectangle bounds = roi.getBounds().intersection(
+				new Rectangle(0, 0, getGrayImage().getWidth(), getGrayImage()
+						.getHeight()));
+		int[] roiHistogram = new int[histogramBins];
+		if (bounds.isEmpty())
+			return roiHistogram;
+		ImageProcessor mask = roi.getMask();
+		if (mask != null && !roi.getBounds().equals(bounds)) {
+			mask.setRoi(new Rectangle(bounds.x - roi.getBounds().x, bounds.y
+					- roi.getBounds().y, bounds.width, bounds.height));
+			mask = mask.crop();
+		}
+		processRows(bounds, mask == null ? null : (byte[]) mask.getPixels(),
+				null, roiHistogram);
+		return roiHistogram;
+	}
+
+	/**
+	 * Computes the orientations of the pixels of bounds, storing them in
+	 * pixels if not null, and counts the strong ones of the mask (same size as
+	 * bounds, all the pixels if null) in histogram. The pixels of the border
+	 * of the image are skipped.
+	 */
+	private void processRows(Rectangle bounds, byte[] mask, byte[] pixels,
+			int[] histogram) {
 		int width = getGrayImage().getWidth();
 		int height = getGrayImage().getHeight();
+		byte[] source = (byte[]) getGrayImage().getPixels();
+		byte[] sameSign = getAngles(true);
+		byte[] oppositeSign = getAngles(false);
+		int bins = histogram.length;
+		int minimalSum = 2 * threshold;
+		int xStart = Math.max(bounds.x, 1);
+		int xEnd = Math.min(bounds.x + bounds.width, width - 1);
+		for (int y = Math.max(bounds.y, 1); y < Math.min(bounds.y
+				+ bounds.height, height - 1); y++) {
+			int i = y * width + xStart;
+			int m = (y - bounds.y) * bounds.width + xStart - bounds.x;
+			for (int x = xStart; x < xEnd; x++, i++, m++) {
+				int topLeft = source[i - width - 1] & 0xff;
+				int top = source[i - width] & 0xff;
+				int topRight = source[i - width + 1] & 0xff;
+				int bottomLeft = source[i + width - 1] & 0xff;
+				int bottom = source[i + width] & 0xff;
+				int bottomRight = source[i + width + 1] & 0xff;
+				// masks { -1, 0, 1, -1, 0, 1, -1, 0, 1 } and
+				// { 1, 1, 1, 0, 0, 0, -1, -1, -1 }
+				int deltaH = topRight + (source[i + 1] & 0xff) + bottomRight
+						- topLeft - (source[i - 1] & 0xff) - bottomLeft;
+				int deltaV = topLeft + top + topRight - bottomLeft - bottom
+						- bottomRight;
+				int absH = deltaH < 0 ? -deltaH : deltaH;
+				int absV = deltaV < 0 ? -deltaV : deltaV;
+				byte angle = ((deltaH ^ deltaV) < 0 ? oppositeSign : sameSign)[absH
+						* SIDE + absV];
+				if (pixels != null)
+					pixels[i] = angle;
+				if (absH + absV >= minimalSum && (mask == null || mask[m] != 0))
+					histogram[(angle & 0xff) * bins / 256]++;
+			}
+		}
+	}
 
-		// Horizontal Results
-		ImagePlus iPlusH = NewImage.createFloatImage("Horizontal", width,
-				height, 1, NewImage.FILL_BLACK);
-		ImageProcessor imgProcH = iPlusH.getProcessor();
-		imgProcH.copyBits(getGrayImage(), 0, 0, Blitter.COPY);
-		// Vertical Results
-		ImagePlus iPlusV = NewImage.createFloatImage("Vertical", width, height,
-				1, NewImage.FILL_BLACK);
-		ImageProcessor imgProcV = iPlusV.getProcessor();
-		imgProcV.copyBits(getGrayImage(), 0, 0, Blitter.COPY);
-		// Masks
-		/*
-		 * int[] maskH = { -1,0,1, -2,0,2, -1,0,1 }; int[] maskV = { 1,2,1,
-		 * 0,0,0, -1,-2,-1 };
-		 */
-		int[] maskH = { -1, 0, 1, -1, 0, 1, -1, 0, 1 };
-		int[] maskV = { 1, 1, 1, 0, 0, 0, -1, -1, -1 };
-
-		// Calculate magnitude
-		imgProcV.convolve3x3(maskV);
-		imgProcH.convolve3x3(maskH);
-		/*
-		 * iPlusH.show(); iPlusV.show();
-		 */
-
-		int offset, i;
-
-		double[] values = new double[width * height];
-		float[] deltaV = (float[]) imgProcV.getPixels();
-		float[] deltaH = (float[]) imgProcH.getPixels();
-
-		double valueH;
-		double valueV;
-		double angle = 0;
-
-		for (int y = 1; y < height - 1; y++) {
-			offset = y * width;
-			for (int x = 1; x < width - 1; x++) {
-				i = offset + x;
-				valueH = (double) deltaH[i];
-				valueV = (double) deltaV[i];
-
-				if (valueH == 0 && valueV == 0)
-					angle = 0;
-				else if (valueH == 0)
-					// angle = 0;
-					angle = Math.PI;
-				else {
-					angle = Math.PI / 2 + Math.atan(valueV / valueH);
+	/**
+	 * Returns the table of the normalised angles PI/2+atan(deltaV/deltaH) for
+	 * the absolute values of the gradients, deltaH and deltaV having the same
+	 * sign or not. A null horizontal gradient gives PI, a null gradient 0.
+	 */
+	private static synchronized byte[] getAngles(boolean same) {
+		if (sameSignAngles == null) {
+			sameSignAngles = new byte[SIDE * SIDE];
+			oppositeSignAngles = new byte[SIDE * SIDE];
+			for (int absH = 0; absH < SIDE; absH++) {
+				for (int absV = 0; absV < SIDE; absV++) {
+					sameSignAngles[absH * SIDE + absV] = normalise(absH, absV);
+					oppositeSignAngles[absH * SIDE + absV] = normalise(-absH,
+							absV);
 				}
-				values[i] = angle;
 			}
 		}
-		// Normalize values
-		byte[] pixels = new byte[width * height];
-		for (i = 0; i < values.length; i++) {
-			double num = (values[i] / Math.PI) * 255;
-			pixels[i] = (byte) (num);
+		return same ? sameSignAngles : oppositeSignAngles;
+	}
+
+	private static byte normalise(double valueH, double valueV) {
+		double angle;
+		if (valueH == 0 && valueV == 0)
+			angle = 0;
+		else if (valueH == 0)
+			angle = Math.PI;
+		else
+			angle = Math.PI / 2 + Math.atan(valueV / valueH);
+		double num = (angle / Math.PI) * 255;
+		return (byte) (num);
+	}
+
+	/**
+	 * Returns the histogram of the orientations computed by the last
+	 * extraction. Only the pixels whose gradient (|deltaH|+|deltaV|)/2 reaches
+	 * the threshold are counted.
+	 */
+	public int[] getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Returns the Tamura directionality of the last extraction for a single
+	 * dominant orientation: 1 minus the second moment of the histogram around
+	 * its peak, divided by the second moment of a flat histogram. It is close
+	 * to 1 when all the orientations are the same and to 0 when they are
+	 * evenly spread.
+	 */
+	public double getDirectionality() {
+		return directionality(histogram);
+	}
+
+	/**
+	 * Returns the directionality of a histogram of orientations over [0,PI[
+	 *
+	 * @see #getDirectionality()
+	 */
+	public static double directionality(int[] histogram) {
+		int bins = histogram.length;
+		long total = 0;
+		int peak = 0;
+		for (int bin = 0; bin < bins; bin++) {
+			total += histogram[bin];
+			if (histogram[bin] > histogram[peak])
+				peak = bin;
 		}
+		if (total == 0)
+			return 0;
+		double moment = 0, flatMoment = 0;
+		for (int bin = 0; bin < bins; bin++) {
+			// orientations are defined modulo PI
+			int distance = Math.abs(bin - peak);
+			distance = Math.min(distance, bins - distance);
+			moment += (double) distance * distance * histogram[bin] / total;
+			flatMoment += (double) distance * distance / bins;
+		}
+		return flatMoment == 0 ? 1 : 1 - moment / flatMoment;
+	}
 
-		return pixels;
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getHistogramBins() {
+		return histogramBins;
+	}
+
+	/**
+	 * @param histogramBins
+	 *            number of bins of the histogram of orientations (Default 16)
+	 */
+	public void setHistogramBins(int histogramBins) {
+		if (histogramBins < 1 || histogramBins > 256)
+			throw new IllegalArgumentException(
+					"The number of bins must be between 1 and 256. Entered: "
+							+ histogramBins);
+		this.histogramBins = histogramBins;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            minimal gradient of the pixels counted in the histogram
+	 *            (Default 12)
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
 	}
 
 	public ImageProcessor getGrayImage() {
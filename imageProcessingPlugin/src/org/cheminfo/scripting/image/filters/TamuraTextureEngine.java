@@ -0,0 +1,191 @@
+package org.cheminfo.scripting.image.filters;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Computes the three Tamura features of an image together. The image is
+ * converted to 8-bit once, the summed-area tables are built once and shared by
+ * the coarseness and the contrast, and the three filters run concurrently.
+ *
+ * The result is either a 3-channel feature image (directionality in red,
+ * coarseness in green and contrast in blue) or a feature vector
+ * {coarseness, contrast, directionality} for the whole image or a region of
+ * interest.
+ */
+public class TamuraTextureEngine {
+	private ImageProcessor grayImage;
+	private int threads = 0;
+	private int maxWindowSize = 6;
+	private int margin = 6;
+
+	private byte[] coarseness;
+	private byte[] contrast;
+	private byte[] directionality;
+	private TamuraDirectionalityFilter directionalityFilter;
+
+	public TamuraTextureEngine(ImageProcessor processor) {
+		grayImage = processor.convertToByte(true);
+	}
+
+	public void performExtraction() {
+		final IntegralImage integral = new IntegralImage(grayImage);
+		TileScheduler scheduler = new TileScheduler(threads);
+		// the three filters share the threads
+		int filterThreads = (scheduler.getThreads() + 2) / 3;
+
+		final TamuraCoarsenessFilter coarsenessFilter = new TamuraCoarsenessFilter(
+				grayImage, integral);
+		coarsenessFilter.setMaxWindowSize(maxWindowSize);
+		coarsenessFilter.setThreads(filterThreads);
+		final TamuraContrastFilter contrastFilter = new TamuraContrastFilter(
+				grayImage, integral);
+		contrastFilter.setMargin(margin);
+		contrastFilter.setThreads(filterThreads);
+		directionalityFilter = new TamuraDirectionalityFilter(grayImage);
+		directionalityFilter.setThreads(filterThreads);
+
+		try {
+			scheduler.runAll(new Runnable[] { new Runnable() {
+				public void run() {
+					coarseness = coarsenessFilter.performExtraction();
+				}
+			}, new Runnable() {
+				public void run() {
+					contrast = contrastFilter.performExtraction();
+				}
+			}, new Runnable() {
+				public void run() {
+					directionality = directionalityFilter.performExtraction();
+				}
+			} });
+		} finally {
+			// the filters given the tables do not release them
+			integral.release();
+		}
+	}
+
+	/**
+	 * Returns the packed RGB feature image: directionality in red, coarseness
+	 * in green and contrast in blue
+	 */
+	public int[] getFeatureImage() {
+		int[] pixels = new int[coarseness.length];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = ((directionality[i] & 0xff) << 16)
+					| ((coarseness[i] & 0xff) << 8) | (contrast[i] & 0xff);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Returns the features of the whole image
+	 *
+	 * @see #getFeatures(Roi)
+	 */
+	public double[] getFeatures() {
+		return getFeatures(null);
+	}
+
+	/**
+	 * Returns the Tamura features of a region of interest (null for the whole
+	 * image): the coarseness is the mean of the best window size 2^k, the
+	 * contrast is variance/(fourth moment)^(1/4) of the gray levels and the
+	 * directionality is computed from the histogram of the orientations.
+	 */
+	public double[] getFeatures(Roi roi) {
+		int width = grayImage.getWidth();
+		int height = grayImage.getHeight();
+		Rectangle image = new Rectangle(0, 0, width, height);
+		Rectangle bounds = roi == null ? image : roi.getBounds()
+				.intersection(image);
+		ImageProcessor mask = roi == null ? null : roi.getMask();
+		Rectangle maskBounds = roi == null ? image : roi.getBounds();
+
+		byte[] gray = (byte[]) grayImage.getPixels();
+		byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+		int step = 255 / maxWindowSize;
+		long count = 0;
+		double sizes = 0;
+		long s1 = 0, s2 = 0;
+		double s3 = 0, s4 = 0;
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+				if (maskPixels != null
+						&& maskPixels[(y - maskBounds.y) * maskBounds.width + x
+								- maskBounds.x] == 0)
+					continue;
+				int i = y * width + x;
+				count++;
+				sizes += 1 << ((coarseness[i] & 0xff) / step);
+				long value = gray[i] & 0xff;
+				s1 += value;
+				s2 += value * value;
+				s3 += value * value * value;
+				s4 += value * value * value * value;
+			}
+		}
+		double[] features = new double[3];
+		if (count == 0)
+			return features;
+		features[0] = sizes / count;
+		double mean = (double) s1 / count;
+		double variance = (double) s2 / count - mean * mean;
+		double fourthMoment = (s4 - 4 * mean * s3 + 6 * mean * mean * s2)
+				/ count - 3 * mean * mean * mean * mean;
+		features[1] = variance <= 0 || fourthMoment <= 0 ? 0 : variance
+				/ Math.pow(fourthMoment, 0.25);
+		features[2] = TamuraDirectionalityFilter
+				.directionality(roi == null ? directionalityFilter
+						.getHistogram() : directionalityFilter.getHistogram(roi));
+		return features;
+	}
+
+	public byte[] getCoarseness() {
+		return coarseness;
+	}
+
+	public byte[] getContrast() {
+		return contrast;
+	}
+
+	public byte[] getDirectionality() {
+		return directionality;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads to use, 0 for all the processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+
+	/**
+	 * @see TamuraCoarsenessFilter#setMaxWindowSize(int)
+	 */
+	public void setMaxWindowSize(int maxWindowSize) {
+		this.maxWindowSize = maxWindowSize;
+	}
+
+	public int getMargin() {
+		return margin;
+	}
+
+	/**
+	 * @see TamuraContrastFilter#setMargin(int)
+	 */
+	public void setMargin(int margin) {
+		this.margin = margin;
+	}
+}
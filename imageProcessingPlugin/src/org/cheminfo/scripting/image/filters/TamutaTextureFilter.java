@@ -1,8 +1,6 @@
 package org.cheminfo.scripting.image.filters;
 
-import ij.ImagePlus;
-import ij.ImageStack;
-import ij.gui.NewImage;
+import ij.process.ColorProcessor;
 
 import org.cheminfo.scripting.image.EIJ;
 
@@ -11,48 +9,29 @@ public class TamutaTextureFilter {
 	 * Apply a tamura filter
 	 */
 	public static void tamura(EIJ eij) {
-		/* Tamura Coarseness */
-
-		TamuraCoarsenessFilter tamuraCoarseness = new TamuraCoarsenessFilter(
-				eij.getProcessor().convertToByte(true));
-		byte[] coarseness = tamuraCoarseness.performExtraction();
-
-		ImagePlus iCoarseness = NewImage.createByteImage("Coarseness", eij.getWidth(),
-				eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iCoarseness.getProcessor().setPixels(coarseness);
-
-		/* Tamura Contrast */
-
-		TamuraContrastFilter tamuraContrast = new TamuraContrastFilter(eij
-				.getProcessor().convertToByte(true));
-		byte[] contrast = tamuraContrast.performExtraction();
-
-		ImagePlus iContrast = NewImage.createByteImage("Contrast", eij.getWidth(),
-				eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iContrast.getProcessor().setPixels(contrast);
-
-		TamuraDirectionalityFilter tamuraDirectionality = new TamuraDirectionalityFilter(
-				eij.getProcessor().convertToByte(true));
-		byte[] directionality = tamuraDirectionality.performExtraction();
-
-		ImagePlus iDirectionality = NewImage.createByteImage("Directionality",
-				eij.getWidth(), eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iDirectionality.getProcessor().setPixels(directionality);
-
-		ImageStack stack1 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack1.addSlice("directionality", iDirectionality.getProcessor());
-
-		ImageStack stack2 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack2.addSlice("coarseness", iCoarseness.getProcessor());
+		tamura(eij, 0);
+	}
 
-		ImageStack stack3 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack3.addSlice("contrast", iContrast.getProcessor());
+	/**
+	 * Apply a tamura filter using the given number of threads (0 for all the
+	 * processors)
+	 */
+	public static void tamura(EIJ eij, int threads) {
+		tamura(eij, threads, true);
+	}
 
-		ij.plugin.RGBStackMerge merge = new ij.plugin.RGBStackMerge();
-		ImageStack result = merge.mergeStacks(eij.getWidth(), eij.getHeight(), 1, stack1, stack2,
-				stack3, true);
-		int[] pixels = (int[]) result.getPixels(1);
-		eij.getProcessor().setPixels(pixels);
-		eij.grey();
+	/**
+	 * Apply a tamura filter. The image receives the directionality in red, the
+	 * coarseness in green and the contrast in blue, and is converted to grey
+	 * if required.
+	 */
+	public static void tamura(EIJ eij, int threads, boolean grey) {
+		TamuraTextureEngine engine = new TamuraTextureEngine(eij.getProcessor());
+		engine.setThreads(threads);
+		engine.performExtraction();
+		eij.setProcessor(new ColorProcessor(eij.getWidth(), eij.getHeight(),
+				engine.getFeatureImage()));
+		if (grey)
+			eij.grey();
 	}
 }
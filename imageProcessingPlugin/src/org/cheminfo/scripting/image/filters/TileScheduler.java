@@ -0,0 +1,162 @@
+package org.cheminfo.scripting.image.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits an image in horizontal bands and processes them on several threads.
+ * The bands only write their own rows of the result and read their halo (the
+ * neighbourhood needed by the filter above and below the band) directly from
+ * the shared source planes, that are never modified while the bands run. As
+ * every output pixel is computed by the same code whatever the band it
+ * belongs to, the result does not depend on the number of threads.
+ *
+ * Reductions (like the global minimum and maximum needed for normalisation)
+ * are done by keeping one partial result per band, indexed by the band
+ * number, and combining them once run returns.
+ */
+public class TileScheduler {
+	/**
+	 * Number of bands per thread, a few bands per thread balance the load when
+	 * some rows are more expensive than others
+	 */
+	private static final int BANDS_PER_THREAD = 4;
+	private static final int MIN_BAND_HEIGHT = 16;
+
+	private static ExecutorService executor;
+
+	private int threads;
+
+	public interface BandTask {
+		/**
+		 * Processes the rows yStart (inclusive) to yEnd (exclusive)
+		 */
+		public void process(int band, int yStart, int yEnd);
+	}
+
+	/**
+	 * @param threads
+	 *            maximal number of threads used, 0 or less means all the
+	 *            available processors
+	 */
+	public TileScheduler(int threads) {
+		this.threads = threads > 0 ? threads : getDefaultThreads();
+	}
+
+	public static int getDefaultThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns the number of bands an image of this height is split into. It is
+	 * the size of the arrays of partial results given to run.
+	 */
+	public int getNbBands(int height) {
+		if (threads == 1)
+			return 1;
+		int nbBands = Math.min(threads * BANDS_PER_THREAD, height
+				/ MIN_BAND_HEIGHT);
+		return Math.max(nbBands, 1);
+	}
+
+	/**
+	 * Processes all the bands and returns once they are all done. An exception
+	 * thrown by a band is rethrown here.
+	 */
+	public void run(final int height, final BandTask task) {
+		final int nbBands = getNbBands(height);
+		if (nbBands == 1) {
+			task.process(0, 0, height);
+			return;
+		}
+		execute(nbBands, new BandTask() {
+			public void process(int band, int yStart, int yEnd) {
+				task.process(band, (int) ((long) height * band / nbBands),
+						(int) ((long) height * (band + 1) / nbBands));
+			}
+		});
+	}
+
+	/**
+	 * Runs independent tasks concurrently, at most threads at a time, and
+	 * returns once they are all done. An exception thrown by a task is
+	 * rethrown here.
+	 */
+	public void runAll(final Runnable[] tasks) {
+		execute(tasks.length, new BandTask() {
+			public void process(int index, int yStart, int yEnd) {
+				tasks[index].run();
+			}
+		});
+	}
+
+	/**
+	 * Calls task.process(index, 0, 0) for index 0 to count-1 on up to threads
+	 * threads, the calling thread included
+	 */
+	private void execute(final int count, final BandTask task) {
+		final AtomicInteger next = new AtomicInteger();
+		Runnable worker = new Runnable() {
+			public void run() {
+				int index;
+				while ((index = next.getAndIncrement()) < count) {
+					task.process(index, 0, 0);
+				}
+			}
+		};
+		int nbWorkers = Math.min(threads, count) - 1;
+		List<Future<?>> futures = new ArrayList<Future<?>>(nbWorkers);
+		for (int i = 0; i < nbWorkers; i++) {
+			futures.add(getExecutor().submit(worker));
+		}
+		RuntimeException error = null;
+		try {
+			worker.run();
+		} catch (RuntimeException ex) {
+			error = ex;
+			// prevents the other workers from starting new tasks
+			next.set(count);
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				if (error == null)
+					error = new RuntimeException(ex);
+			} catch (ExecutionException ex) {
+				if (error == null)
+					error = ex.getCause() instanceof RuntimeException ? (RuntimeException) ex
+							.getCause() : new RuntimeException(ex.getCause());
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "TileScheduler-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
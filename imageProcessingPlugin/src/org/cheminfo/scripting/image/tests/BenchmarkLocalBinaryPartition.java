@@ -0,0 +1,58 @@
+package org.cheminfo.scripting.image.tests;
+
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.cheminfo.scripting.image.filters.LocalBinaryPartitionFilter;
+
+public class BenchmarkLocalBinaryPartition {
+	/**
+	 * Expected throughput of the basic 3x3 filter on one thread, in megapixels
+	 * per second
+	 */
+	public static final double TARGET_MPX_PER_SECOND = 100;
+
+	/**
+	 * Measures the throughput of the local binary pattern filter on a random
+	 * 12 megapixels image.
+	 *
+	 * @param args
+	 *            optional number of threads (Default 1)
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int width = 4000;
+		int height = 3000;
+		byte[] pixels = new byte[width * height];
+		new Random(0).nextBytes(pixels);
+		ByteProcessor image = new ByteProcessor(width, height, pixels, null);
+
+		int[][] configurations = {
+				{ 1, 8, LocalBinaryPartitionFilter.BASIC },
+				{ 1, 8, LocalBinaryPartitionFilter.UNIFORM },
+				{ 2, 8, LocalBinaryPartitionFilter.ROTATION_INVARIANT },
+				{ 2, 16, LocalBinaryPartitionFilter.UNIFORM_ROTATION_INVARIANT } };
+		for (int[] configuration : configurations) {
+			LocalBinaryPartitionFilter filter = new LocalBinaryPartitionFilter(
+					image);
+			filter.setThreads(threads);
+			filter.setRadius(configuration[0]);
+			filter.setNeighbors(configuration[1]);
+			filter.setMode(configuration[2]);
+			// warm up
+			filter.performExtraction();
+			int runs = 5;
+			long start = System.nanoTime();
+			for (int i = 0; i < runs; i++)
+				filter.performExtraction();
+			double seconds = (System.nanoTime() - start) / 1e9 / runs;
+			double throughput = width * height / 1e6 / seconds;
+			System.out.println("radius " + configuration[0] + ", neighbors "
+					+ configuration[1] + ", mode " + configuration[2] + ": "
+					+ Math.round(throughput) + " Mpx/s");
+		}
+		System.out.println("Target for the basic filter on one thread: "
+				+ TARGET_MPX_PER_SECOND + " Mpx/s");
+	}
+}
@@ -0,0 +1,72 @@
+package org.cheminfo.scripting.image.tests;
+
+import ij.process.ByteProcessor;
+
+import org.cheminfo.scripting.image.filters.LocalBinaryPartitionFilter;
+
+public class TestLocalBinaryPartition {
+	/**
+	 * Checks that the 3x3 square neighbourhood and the circular sampling of
+	 * radius 1 and 8 neighbours give the same labels in the uniform and
+	 * rotation invariant modes.
+	 *
+	 * The test patterns are linear ramps: the bilinear interpolation of the
+	 * diagonal neighbours is then on the same side of the central pixel as
+	 * the corner pixels, so both neighbourhoods give the same comparisons.
+	 * The slopes where a diagonal neighbour equals the central pixel are
+	 * skipped, the interpolation not being exact, and so are the pixels of
+	 * the border of 2 pixels left at 0 by the circular sampling.
+	 */
+	public static void main(String[] args) {
+		int size = 9;
+		int[] modes = { LocalBinaryPartitionFilter.UNIFORM,
+				LocalBinaryPartitionFilter.ROTATION_INVARIANT,
+				LocalBinaryPartitionFilter.UNIFORM_ROTATION_INVARIANT };
+		int patterns = 0;
+		int errors = 0;
+		for (int a = -3; a <= 3; a++) {
+			for (int b = -3; b <= 3; b++) {
+				if (a + b == 0 || a - b == 0)
+					continue;
+				byte[] pixels = new byte[size * size];
+				for (int y = 0; y < size; y++) {
+					for (int x = 0; x < size; x++) {
+						pixels[y * size + x] = (byte) (128 + a * (x - size / 2) + b
+								* (y - size / 2));
+					}
+				}
+				ByteProcessor image = new ByteProcessor(size, size, pixels, null);
+				patterns++;
+				for (int mode : modes) {
+					byte[] square = extract(image, mode, true);
+					byte[] circular = extract(image, mode, false);
+					for (int i = 0; i < square.length; i++) {
+						int x = i % size;
+						int y = i / size;
+						if (x < 2 || y < 2 || x >= size - 2 || y >= size - 2)
+							continue;
+						if (square[i] != circular[i]) {
+							System.out.println("Slopes " + a + "," + b
+									+ ", mode " + mode + ": square label "
+									+ (square[i] & 0xff) + ", circular label "
+									+ (circular[i] & 0xff) + " at pixel " + i);
+							errors++;
+							break;
+						}
+					}
+				}
+			}
+		}
+		System.out.println(patterns + " patterns, " + errors + " errors");
+		if (errors > 0)
+			System.exit(1);
+	}
+
+	private static byte[] extract(ByteProcessor image, int mode, boolean square) {
+		LocalBinaryPartitionFilter filter = new LocalBinaryPartitionFilter(image);
+		filter.setThreads(1);
+		filter.setMode(mode);
+		filter.setSquare(square);
+		return filter.performExtraction();
+	}
+}
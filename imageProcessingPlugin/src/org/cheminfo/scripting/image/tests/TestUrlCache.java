@@ -0,0 +1,115 @@
+package org.cheminfo.scripting.image.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.cheminfo.function.scripting.SecureFileManager;
+import org.cheminfo.scripting.image.EIJ;
+import org.cheminfo.scripting.image.IJ;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestUrlCache {
+	private static int requests = 0;
+	private static int notModified = 0;
+	private static String etag = "\"v1\"";
+
+	/**
+	 * Serves tests/images/XTC1.png on a local server and checks that the
+	 * first load downloads it, the next loads revalidate it and a new version
+	 * is downloaded again.
+	 *
+	 * @param args
+	 *            optional folder of the cache (Default: a temporary folder)
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = args.length > 0 ? new File(args[0]) : new File(
+				System.getProperty("java.io.tmpdir"), "TestUrlCache"
+						+ System.nanoTime());
+		// the folder of the cache is set by the deployment
+		System.setProperty("eij.urlCache.directory", directory.getPath());
+		final File image = new File("tests/images/XTC1.png");
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				"127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+						"If-None-Match");
+				if (etag.equals(ifNoneMatch)) {
+					notModified++;
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().set("ETag", etag);
+				exchange.sendResponseHeaders(200, image.length());
+				OutputStream out = exchange.getResponseBody();
+				InputStream in = new FileInputStream(image);
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+				in.close();
+				exchange.close();
+			}
+		});
+		server.start();
+
+		directory.mkdirs();
+		String basedir = directory.getParent();
+		String key = SecureFileManager.getPathKey(basedir);
+		String url = "http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/images/XTC1.png";
+		try {
+			IJ ij = new IJ();
+
+			EIJ first = ij.load(basedir, key, url);
+			check(first != null && first.getWidth() > 0, "decoded");
+			check("XTC1.png".equals(first.getTitle()), "title");
+			check(requests == 1 && notModified == 0, "first load downloads");
+
+			EIJ second = ij.load(basedir, key, url);
+			check(second.getWidth() == first.getWidth(), "same image");
+			check(requests == 2 && notModified == 1, "second load revalidates");
+
+			etag = "\"v2\"";
+			ij.load(basedir, key, url);
+			check(requests == 3 && notModified == 1, "new version downloaded");
+
+			JSONObject statistics = new JSONObject(ij.getUrlCacheStatistics());
+			check(statistics.getInt("downloads") == 2, "downloads counted");
+			check(statistics.getInt("revalidations") == 1,
+					"revalidations counted");
+			// same content, a single cached file
+			check(directory.list().length == 2, "content addressed");
+
+			// the limits are those of the instance
+			ij.setUrlCache(basedir, key, "{maxDownloadSize:0}");
+			etag = "\"v3\"";
+			check(ij.load(basedir, key, url) == null, "size limit");
+			check(new IJ().load(basedir, key, url) != null,
+					"limits of another instance");
+			requests = 0;
+			new IJ().setUrlCache(basedir, key, "{directory:'other'}");
+			new IJ().load(basedir, key, url);
+			check(requests == 1 && directory.list().length == 2,
+					"directory not changed by a script");
+			System.out.println("OK " + statistics);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException("Failed: " + message);
+	}
+}